@@ -0,0 +1,76 @@
+"""
+   Copyright (c) 2010 Rackspace
+   All rights reserved.
+   
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions
+   are met:
+   1. Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+   2. Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+   3. Neither the name of the University nor the names of its contributors
+      may be used to endorse or promote products derived from this software
+      without specific prior written permission.
+   
+   THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+   ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+   IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+   ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+   FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+   DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+   OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+   HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+   LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+   OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+   SUCH DAMAGE.
+"""
+
+# Example child for ProcessBackend, run by CPython (2 or 3) rather than the
+# collector's Jython.  Reads flow frames from stdin, granting credit for each,
+# and logs per-protocol byte counts to stderr every so many frames.
+
+import struct
+import sys
+
+HEADER = struct.Struct(">iii")
+FRAME = struct.Struct(">ii")
+RECORD = struct.Struct(">qqqqiiiqqqqqHHiiiiiBBBx")
+MAGIC, VERSION = 0x464c5754, 1
+CREDIT = 4
+
+stdin = getattr(sys.stdin, "buffer", sys.stdin)
+stdout = getattr(sys.stdout, "buffer", sys.stdout)
+
+def read(n):
+    data = stdin.read(n)
+    if len(data) < n:
+        sys.exit(0)
+    return data
+
+def grant(frames):
+    stdout.write(struct.pack(">i", frames))
+    stdout.flush()
+
+magic, version, record_size = HEADER.unpack(read(HEADER.size))
+if magic != MAGIC or version != VERSION or record_size != RECORD.size:
+    sys.stderr.write("unexpected stream header\n")
+    sys.exit(1)
+
+grant(CREDIT)
+octets_by_protocol = {}
+frames = 0
+while True:
+    length, count = FRAME.unpack(read(FRAME.size))
+    data = read(length - 4)
+    # one frame's worth of credit back as soon as it's off the pipe.
+    grant(1)
+    for i in range(count):
+        flow = RECORD.unpack_from(data, i * record_size)
+        protocol = flow[20]
+        octets_by_protocol[protocol] = octets_by_protocol.get(protocol, 0) + flow[8]
+    frames += 1
+    if frames % 1000 == 0:
+        sys.stderr.write("bytes by protocol: %r\n" % octets_by_protocol)
+        sys.stderr.flush()
@@ -45,4 +45,22 @@ write = function write(record) {
                 );                          
     }
         
-}
\ No newline at end of file
+}
+
+// used instead of write() when the backend is given engines.
+writeBatch = function writeBatch(batch, size) {
+    var sources = batch.sourceAddr, dests = batch.destAddr, octets = batch.numOctets;
+    for (var i = 0; i < size; i++) {
+        if (batch.isIPv6(i))
+            continue;
+        System.out.println(
+                "JS Batch Proof! source=" + ipv4(sources[i]) + ":" + batch.sourcePort[i] +
+                ", dest=" + ipv4(dests[i]) + ":" + batch.destPort[i] +
+                ", bytes=" + octets[i]
+                );
+    }
+}
+
+function ipv4(addr) {
+    return [(addr >>> 24) & 0xff, (addr >>> 16) & 0xff, (addr >>> 8) & 0xff, addr & 0xff].join(".");
+}
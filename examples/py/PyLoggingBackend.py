@@ -42,4 +42,19 @@ class PyLoggingBackend(AbstractBackend):
                                                           flow.sourcePort, 
                                                           flow.destAddr.getCanonicalHostName(), 
                                                           flow.destPort, 
-                                                          flow.numOctets)
\ No newline at end of file
+                                                          flow.numOctets)
+
+    def write_batch(self, batch, size):
+        """Used instead of write() when the backend is given interpreters."""
+        sources, dests, octets = batch.sourceAddr, batch.destAddr, batch.numOctets
+        for i in xrange(size):
+            if batch.isIPv6(i):
+                continue
+            print "Python Batch Proof! source=%s:%d, dest=%s:%d, bytes=%d" % (_ipv4(sources[i]),
+                                                          batch.sourcePort[i],
+                                                          _ipv4(dests[i]),
+                                                          batch.destPort[i],
+                                                          octets[i])
+
+def _ipv4(addr):
+    return "%d.%d.%d.%d" % ((addr >> 24) & 0xff, (addr >> 16) & 0xff, (addr >> 8) & 0xff, addr & 0xff)
@@ -30,44 +30,39 @@ package com.rackspace.flewton.backend.cassandra;
 
 import com.rackspace.flewton.AbstractRecord;
 import com.rackspace.flewton.ConfigError;
-import com.rackspace.flewton.Flow;
+import com.rackspace.flewton.FlowBatch;
+import com.rackspace.flewton.backend.BatchBackends;
+import com.rackspace.flewton.backend.IBatchBackend;
+import com.rackspace.flewton.util.EpochSwap;
+import com.rackspace.flewton.util.LongLongMap;
 
 import static com.rackspace.flewton.util.HostResolver.int2ByteBuffer;
+import static com.rackspace.flewton.util.HostResolver.long2byte;
 
 import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.ColumnOrSuperColumn;
-import org.apache.cassandra.thrift.InvalidRequestException;
 import org.apache.cassandra.thrift.Mutation;
-import org.apache.cassandra.thrift.TimedOutException;
-import org.apache.cassandra.thrift.UnavailableException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
-import org.apache.thrift.TException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
- * Sends aggregated data up to cassandra every second or so.  Flows are condensed and buffered.
- * I attemped to make this class threadsafe.  Only curCounters is written to. Anything in oldCounters is considered
- * read-only.
+ * Sends aggregated data up to cassandra every second or so.  Flows are condensed and buffered, in primitive maps
+ * keyed by address and second.  Each writing thread counts into its own maps, so writers never contend; the pusher
+ * closes the epoch every second by swapping in a fresh one, waits for writers still in the old one to leave it, and
+ * then merges the per-thread maps into one snapshot and writes that.  Octet counts are 64 bits all the way to
+ * cassandra.
  **/
-public class CumulativeUsageBackend extends UsageBackend {
-    private static final Logger logger = LoggerFactory.getLogger(CumulativeUsageBackend.class);
-    
-    // counters get switched every second. This is the maximum number of old counters that will be batched up to cassandra.
-    private static final int MAX_COUNTER_BATCH = 5;
+public class CumulativeUsageBackend extends UsageBackend implements IBatchBackend {
     private static final int COUNTER_SWITCH_THRESHOLD = 1000; // ms.
     
-    private long lastSwitch = 0;
-    private Map<String, OctetCounter> curCounters = new HashMap<String, OctetCounter>();
-    private List<Map<String, OctetCounter>> oldCounters = new ArrayList<Map<String, OctetCounter>>();
+    private final EpochSwap<Epoch> epochs = new EpochSwap<Epoch>(new Epoch());
+    // this thread's counters, good for as long as the epoch they were made for is current.
+    private final ThreadLocal<Counters> mine = new ThreadLocal<Counters>();
     
     public CumulativeUsageBackend(HierarchicalConfiguration config) throws ConfigError {
         super(config);
@@ -78,132 +73,134 @@ public class CumulativeUsageBackend extends UsageBackend {
      * consumes the record. doesn't write to cassandra.
      */
     public void write(AbstractRecord record) {  
-        for (Flow flow : record.flows) {
-            boolean srcInternal = resolver.isInternal(flow.sourceAddr);
-            boolean dstInternal = resolver.isInternal(flow.destAddr);
-            
-            if (srcInternal && dstInternal) {
-                getCounter(localColFam, flow.sourceAddr).increment(flow.timestampCalculated, flow.numOctets);
-                getCounter(localColFam, flow.destAddr).increment(flow.timestampCalculated, flow.numOctets);  
-            } else if (srcInternal)
-                getCounter(egressColFam, flow.sourceAddr).increment(flow.timestampCalculated, flow.numOctets);
-            else if (dstInternal)
-                getCounter(ingressColFam, flow.destAddr).increment(flow.timestampCalculated, flow.numOctets);
-        }
-        
-        maybeSwitchCounters();
+        BatchBackends.write(this, record);
     }
     
-    // possibly switches out the conter with a fresh one so that the old one can be written.
-    private synchronized void maybeSwitchCounters() {
-        // just make sure to sync on something different than getCounter().
-        synchronized (oldCounters) {
-            long now = System.currentTimeMillis();
-            if (now - lastSwitch > COUNTER_SWITCH_THRESHOLD) {
-                oldCounters.add(curCounters);
-                curCounters = new HashMap<String, OctetCounter>();
-                lastSwitch = now;
+    /**
+     * consumes the batch. doesn't write to cassandra.
+     */
+    public void write(FlowBatch batch) {
+        final int[] sourceAddr = batch.sourceAddr;
+        final int[] destAddr = batch.destAddr;
+        final long[] numOctets = batch.numOctets;
+        final long[] timestamps = batch.timestampCalculated;
+        
+        EpochSwap.Epoch<Epoch> epoch = epochs.enter();
+        try {
+            Counters counters = countersFor(epoch.get());
+            for (int i = 0; i < batch.size(); i++) {
+                // counters are keyed by IPv4 address.
+                if (batch.isIPv6(i))
+                    continue;
+                boolean srcInternal = resolver.isInternal(sourceAddr[i]);
+                boolean dstInternal = resolver.isInternal(destAddr[i]);
+                long second = timestamps[i] / COUNTER_SWITCH_THRESHOLD;
+                
+                if (srcInternal && dstInternal) {
+                    counters.local.addAndGet(key(sourceAddr[i], second), numOctets[i]);
+                    counters.local.addAndGet(key(destAddr[i], second), numOctets[i]);
+                } else if (srcInternal)
+                    counters.egress.addAndGet(key(sourceAddr[i], second), numOctets[i]);
+                else if (dstInternal)
+                    counters.ingress.addAndGet(key(destAddr[i], second), numOctets[i]);
             }
+        } finally {
+            epoch.exit();
         }
     }
     
-    // gets the right current counter to increment.
-    private OctetCounter getCounter(String cf, InetAddress addr) {
-        // just make sure to sync on something different than maybeSwitch().
-        synchronized (curCounters) {
-            String key = cf + addr.toString();
-            OctetCounter counter = curCounters.get(key);
-            if (counter == null) {
-                counter = new OctetCounter(cf, addr);
-                curCounters.put(key, counter);
+    // counter keys: the address in the high half, the second in the low.
+    private static long key(int addr, long second) {
+        return ((long)addr << 32) | (second & 0xffffffffL);
+    }
+    
+    // this thread's counters in the given epoch, registering new ones the first time it writes to it.
+    private Counters countersFor(Epoch epoch) {
+        Counters counters = mine.get();
+        if (counters == null || counters.epoch != epoch) {
+            counters = new Counters(epoch);
+            epoch.parts.add(counters);
+            mine.set(counters);
+        }
+        return counters;
+    }
+    
+    /** one epoch: the counters of every thread that wrote during it. */
+    private static class Epoch {
+        private final ConcurrentLinkedQueue<Counters> parts = new ConcurrentLinkedQueue<Counters>();
+        
+        // adds up all the threads' counts; only once no one is writing to them.
+        private Counters merge() {
+            Counters total = new Counters(this);
+            for (Counters part : parts) {
+                total.local.addAll(part.local);
+                total.egress.addAll(part.egress);
+                total.ingress.addAll(part.ingress);
             }
-            return counter;
+            return total;
         }
     }
     
-    /** this is where the octet count accumulates */
-    private class OctetCounter {
-        private String cf;
-        private InetAddress addr;
-        private List<Long> stamps = new ArrayList<Long>();
-        private Map<Long, Integer> counts = new HashMap<Long, Integer>();
+    /** this is where the octet counts accumulate: by address and second, for each column family. */
+    private static class Counters {
+        private final Epoch epoch;
+        private final LongLongMap local = new LongLongMap();
+        private final LongLongMap egress = new LongLongMap();
+        private final LongLongMap ingress = new LongLongMap();
         
-        private OctetCounter(String cf, InetAddress addr)
-        {
-            this.cf = cf;
-            this.addr = addr;
+        private Counters(Epoch epoch) {
+            this.epoch = epoch;
         }
         
-        synchronized void increment(long stamp, int count) {
-            stamp = stamp / COUNTER_SWITCH_THRESHOLD * COUNTER_SWITCH_THRESHOLD; // todo: a cheaper way to do this? maybe stamp -= stamp % COUNTER_SWITCH_THRESHOLD
-            if (stamps.contains(stamp))
-                counts.put(stamp, counts.get(stamp) + count);
-            else {
-                stamps.add(stamp);
-                counts.put(stamp, count);
+        private boolean isEmpty() {
+            return local.size() == 0 && egress.size() == 0 && ingress.size() == 0;
+        }
+    }
+    
+    // one column per counted second, in the address's row.
+    private void addMutations(LongLongMap counts, final String cf, final Map<ByteBuffer, Map<String, List<Mutation>>> mutations) {
+        counts.forEach(new LongLongMap.Visitor() {
+            public void visit(long key, long octets) {
+                Mutation m = new Mutation();
+                m.column_or_supercolumn = new ColumnOrSuperColumn();
+                m.column_or_supercolumn.column = new Column(getTimeUUIDByteBuffer((key & 0xffffffffL) * COUNTER_SWITCH_THRESHOLD),
+                        ByteBuffer.wrap(long2byte(octets)), System.currentTimeMillis());
+                m.column_or_supercolumn.column.ttl = colTTL;
+                mutationsForKeyAndCf(int2ByteBuffer((int)(key >>> 32)), cf, mutations).add(m);
             }
-        }      
+        });
     }
-
+    
     /** 
-     * consumes the older counters, pushing them to the cassandra. I don't worry about concurrency here, since anything
-     * in oldCounters is done being modified.
+     * closes an epoch every second or so and hands its counts to the writer stage, which batches them up to
+     * cassandra without holding up the next epoch.
      */
     private class Pusher extends Thread {
+        private Pusher() {
+            super("cumulative-usage-pusher");
+            setDaemon(true);
+        }
+        
         public void run() {
+            long lastSwitch = System.currentTimeMillis();
             while (true) {
-                // wait if there is nothing to write.
-                while (oldCounters.size() == 0) {
-                    try { sleep(500); } catch (InterruptedException ex) { }
+                long wait = lastSwitch + COUNTER_SWITCH_THRESHOLD - System.currentTimeMillis();
+                if (wait > 0) {
+                    try { sleep(wait); } catch (InterruptedException ex) { }
+                    continue;
                 }
+                lastSwitch = System.currentTimeMillis();
                 
-                Map<ByteBuffer, Map<String, List<Mutation>>> mutations = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
-                // grab everything (at most 5 old counters)
-                int batchSize = 0;
-                while (oldCounters.size() > 0 && batchSize++ < MAX_COUNTER_BATCH) {
-                    Collection<OctetCounter> counters = oldCounters.remove(0).values();
-                    for (OctetCounter counter : counters) {
-                        for (Map.Entry<Long, Integer> entry : counter.counts.entrySet()) {
-                            Mutation m = new Mutation();
-                            m.column_or_supercolumn = new ColumnOrSuperColumn();
-                            m.column_or_supercolumn.column = new Column(getTimeUUIDByteBuffer(entry.getKey()),
-                                    int2ByteBuffer(entry.getValue()), System.currentTimeMillis());
-                            m.column_or_supercolumn.column.ttl = colTTL;
-                            mutationsForKeyAndCf(ByteBuffer.wrap(counter.addr.getAddress()), counter.cf, mutations).add(m);
-                        }
-                    }
-                }
+                Counters counters = epochs.swap(new Epoch()).merge();
+                if (counters.isEmpty())
+                    continue;
                 
-                // now write them.
-                long retry = 0; // indicates how many MS to sleep before retrying.
-                // first try.
-                try {
-                    write(mutations);
-                } catch (TimedOutException ex) {
-                    retry = 1;
-                } catch (UnavailableException ex) {
-                    retry = 1000;
-                } catch (InvalidRequestException e) {
-                    logger.error("DROPPING DATA " + e.getMessage(), e);
-                } catch (TException e) {
-                    logger.error("DROPPING DATA " + e.getMessage(), e);
-                }
+                Map<ByteBuffer, Map<String, List<Mutation>>> mutations = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+                addMutations(counters.local, localColFam, mutations);
+                addMutations(counters.egress, egressColFam, mutations);
+                addMutations(counters.ingress, ingressColFam, mutations);
                 
-                // maybe second try.
-                if (retry > 0) {
-                    try { Thread.sleep(retry); } catch (InterruptedException ignore) { }
-                    try {
-                        write(mutations);
-                    } catch (TimedOutException ex) {
-                        logger.error("DROPPING DATA " + ex.getMessage(), ex);
-                    } catch (UnavailableException ex) {
-                        logger.error("DROPPING DATA " + ex.getMessage(), ex);
-                    } catch (InvalidRequestException ex) {
-                        logger.error("DROPPING DATA " + ex.getMessage(), ex);
-                    } catch (TException ex) {
-                        logger.error("DROPPING DATA " + ex.getMessage(), ex);
-                    }
-                }
+                writer.submit(mutations);
             }
         }
     }
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend.cassandra;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.TimedOutException;
+import org.apache.cassandra.thrift.UnavailableException;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writer stage between the backends and Cassandra.  Submitted mutations are
+ * coalesced by row key into one pending map, which a dispatcher thread (woken
+ * by submits and completions, never polling) cuts into batches and hands to a
+ * pool of sender threads, so several batch_mutate calls are in flight at once
+ * across the client pool.
+ *
+ * Batch size and the number of batches in flight adapt to observed latency:
+ * both grow additively while calls finish under the target latency, and are
+ * halved when one runs over it or Cassandra times out or is unavailable.
+ * Batches that time out or find Cassandra unavailable are retried once, after
+ * a delay; anything else is dropped, as is new data when too many rows are
+ * already pending.
+ */
+public class MutationWriter {
+    private static final Logger logger = LoggerFactory.getLogger(MutationWriter.class);
+    private static final int MIN_BATCH_ROWS = 16;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final long TIMED_OUT_DELAY = 1;     // ms.
+    private static final long UNAVAILABLE_DELAY = 1000; // ms.
+
+    /** where batches go; UsageBackend's is a batch_mutate on a pooled client. */
+    public interface Sink {
+        void write(Map<ByteBuffer, Map<String, List<Mutation>>> mutations)
+        throws TimedOutException, UnavailableException, InvalidRequestException, TException;
+    }
+
+    private static class Batch {
+        private final Map<ByteBuffer, Map<String, List<Mutation>>> mutations;
+        private final int rows;
+        private int attempts = 0;
+        private long notBefore = 0; // nanoTime; for retries.
+
+        private Batch(Map<ByteBuffer, Map<String, List<Mutation>>> mutations) {
+            this.mutations = mutations;
+            this.rows = mutations.size();
+        }
+    }
+
+    private final Sink sink;
+    private final int maxBatchRows;
+    private final int maxInFlight;
+    private final int maxPendingRows;
+    private final long targetLatency; // ns.
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when there is something to send, or room to send it.
+    private final Condition ready = lock.newCondition();
+    // everything below is guarded by lock.
+    private Map<ByteBuffer, Map<String, List<Mutation>>> pending = new LinkedHashMap<ByteBuffer, Map<String, List<Mutation>>>();
+    private final LinkedList<Batch> retries = new LinkedList<Batch>();
+    private int inFlight = 0;
+    private int batchRows;
+    private int inFlightLimit = 1;
+    private long dropped = 0;
+
+    private final ExecutorService senders;
+
+    /**
+     * @param sink what to write batches with; it must be safe to call from several threads
+     * @param maxBatchRows most row keys in one batch_mutate
+     * @param maxInFlight most batch_mutate calls at once
+     * @param maxPendingRows most row keys to hold while waiting on Cassandra
+     * @param targetLatencyMillis batch_mutate latency to stay under
+     */
+    public MutationWriter(Sink sink, int maxBatchRows, int maxInFlight, int maxPendingRows, long targetLatencyMillis) {
+        this.sink = sink;
+        this.maxBatchRows = Math.max(maxBatchRows, 1);
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.maxPendingRows = maxPendingRows;
+        this.targetLatency = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        batchRows = Math.min(MIN_BATCH_ROWS, this.maxBatchRows);
+
+        senders = Executors.newFixedThreadPool(this.maxInFlight, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cassandra-sender-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Thread dispatcher = new Thread(new Dispatcher(), "cassandra-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * queues mutations to be written, merging them with any pending for the
+     * same row.  Never blocks on Cassandra.  The caller must not touch the map
+     * afterwards.
+     */
+    public void submit(Map<ByteBuffer, Map<String, List<Mutation>>> mutations) {
+        if (mutations.isEmpty())
+            return;
+        lock.lock();
+        try {
+            for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : mutations.entrySet()) {
+                Map<String, List<Mutation>> cfs = pending.get(row.getKey());
+                if (cfs == null) {
+                    if (pending.size() >= maxPendingRows) {
+                        dropped++;
+                        continue;
+                    }
+                    pending.put(row.getKey(), row.getValue());
+                    continue;
+                }
+                for (Map.Entry<String, List<Mutation>> cf : row.getValue().entrySet()) {
+                    List<Mutation> list = cfs.get(cf.getKey());
+                    if (list == null)
+                        cfs.put(cf.getKey(), cf.getValue());
+                    else
+                        list.addAll(cf.getValue());
+                }
+            }
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // takes up to batchRows rows off the front of pending.
+    private Batch cut() {
+        if (pending.size() <= batchRows) {
+            Batch batch = new Batch(pending);
+            pending = new LinkedHashMap<ByteBuffer, Map<String, List<Mutation>>>();
+            return batch;
+        }
+        Map<ByteBuffer, Map<String, List<Mutation>>> rows = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+        Iterator<Map.Entry<ByteBuffer, Map<String, List<Mutation>>>> it = pending.entrySet().iterator();
+        while (rows.size() < batchRows) {
+            Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row = it.next();
+            rows.put(row.getKey(), row.getValue());
+            it.remove();
+        }
+        return new Batch(rows);
+    }
+
+    private class Dispatcher implements Runnable {
+        public void run() {
+            while (true) {
+                Batch batch;
+                lock.lock();
+                try {
+                    batch = next();
+                    inFlight++;
+                } catch (InterruptedException ex) {
+                    continue;
+                } finally {
+                    lock.unlock();
+                }
+                senders.execute(new Send(batch));
+            }
+        }
+
+        // waits for a batch that can be sent now; retries that are due go first.
+        private Batch next() throws InterruptedException {
+            while (true) {
+                if (inFlight >= inFlightLimit) {
+                    ready.await();
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (!retries.isEmpty() && retries.getFirst().notBefore - now <= 0)
+                    return retries.removeFirst();
+                if (!pending.isEmpty())
+                    return cut();
+                if (retries.isEmpty())
+                    ready.await();
+                else
+                    ready.awaitNanos(retries.getFirst().notBefore - now);
+            }
+        }
+    }
+
+    private class Send implements Runnable {
+        private final Batch batch;
+
+        private Send(Batch batch) {
+            this.batch = batch;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            long retryDelay = 0;
+            try {
+                sink.write(batch.mutations);
+            } catch (TimedOutException ex) {
+                retryDelay = TIMED_OUT_DELAY;
+            } catch (UnavailableException ex) {
+                retryDelay = UNAVAILABLE_DELAY;
+            } catch (InvalidRequestException ex) {
+                logger.error("DROPPING DATA " + ex.getMessage(), ex);
+            } catch (TException ex) {
+                logger.error("DROPPING DATA " + ex.getMessage(), ex);
+            } catch (RuntimeException ex) {
+                // e.g. no client could be borrowed.
+                logger.error("DROPPING DATA " + ex.getMessage(), ex);
+            }
+            finished(batch, System.nanoTime() - start, retryDelay);
+        }
+    }
+
+    private void finished(Batch batch, long latency, long retryDelay) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (retryDelay == 0 && latency <= targetLatency) {
+                inFlightLimit = Math.min(inFlightLimit + 1, maxInFlight);
+                batchRows = Math.min(batchRows + MIN_BATCH_ROWS, maxBatchRows);
+            } else {
+                inFlightLimit = Math.max(inFlightLimit / 2, 1);
+                batchRows = Math.max(batchRows / 2, Math.min(MIN_BATCH_ROWS, maxBatchRows));
+            }
+
+            if (retryDelay > 0) {
+                if (++batch.attempts < MAX_ATTEMPTS) {
+                    batch.notBefore = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelay);
+                    retryLater(batch);
+                } else {
+                    logger.error("DROPPING DATA: {} rows failed {} times", batch.rows, batch.attempts);
+                    dropped += batch.rows;
+                }
+            }
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // keeps retries in the order they fall due, since their delays differ; the dispatcher only looks at the first.
+    private void retryLater(Batch batch) {
+        ListIterator<Batch> it = retries.listIterator(retries.size());
+        while (it.hasPrevious()) {
+            if (it.previous().notBefore - batch.notBefore <= 0) {
+                it.next();
+                break;
+            }
+        }
+        it.add(batch);
+    }
+
+    /** row keys waiting to be sent. */
+    public int getPendingRows() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** rows dropped, for want of room or after failed retries. */
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** current batch size limit, in rows. */
+    public int getBatchRows() {
+        lock.lock();
+        try {
+            return batchRows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** current limit on batch_mutate calls in flight. */
+    public int getInFlightLimit() {
+        lock.lock();
+        try {
+            return inFlightLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -33,7 +33,7 @@ import com.rackspace.flewton.ConfigError;
 import com.rackspace.flewton.Flow;
 import com.rackspace.flewton.backend.AbstractBackend;
 import com.rackspace.flewton.util.HostResolver;
-import static com.rackspace.flewton.util.HostResolver.int2ByteBuffer;
+import static com.rackspace.flewton.util.HostResolver.long2byte;
 
 import com.rackspace.flewton.util.UUIDGen;
 import org.apache.cassandra.thrift.Cassandra;
@@ -65,6 +65,7 @@ public class UsageBackend extends AbstractBackend {
     protected final int colTTL;
     
     protected HostResolver resolver;
+    protected final MutationWriter writer;
     private ThriftClientPool clientPool;
 
     private String getRequiredString(HierarchicalConfiguration config, String key) throws ConfigError {
@@ -86,46 +87,21 @@ public class UsageBackend extends AbstractBackend {
         
         resolver = new HostResolver(config);
         clientPool = new ThriftClientPool(keyspace, config.getStringArray("storageNode"));
+        writer = new MutationWriter(new MutationWriter.Sink() {
+            public void write(Map<ByteBuffer, Map<String, List<Mutation>>> mutations)
+            throws TimedOutException, UnavailableException, InvalidRequestException, TException {
+                UsageBackend.this.write(mutations);
+            }
+        }, config.getInt("maxBatchRows", 1000), config.getInt("maxInFlight", 8),
+           config.getInt("maxPendingRows", 100000), config.getLong("targetLatencyMillis", 100));
     }
 
     /**
-     * attempts to write the record.  will retry once if there is a time out or unavailable error. all other errors
-     * are treated as unrecoverable and the data is dropped.
+     * hands the record's mutations to the writer stage, which coalesces them with others by row and writes them
+     * in batches; see {@link MutationWriter}.
      */
     public void write(AbstractRecord record) {
-        final long ts = System.currentTimeMillis();
-        final Map<ByteBuffer, Map<String, List<Mutation>>> mutations = makeMutations(record, resolver, ts);
-        if (mutations.size() == 0) return; // nothing to do.
-        long retry = 0; // indicates how many MS to sleep before retrying.
-        
-        // first try.
-        try {
-            write(mutations);
-        } catch (TimedOutException ex) {
-            retry = 1;
-        } catch (UnavailableException ex) {
-            retry = 1000;
-        } catch (InvalidRequestException e) {
-            logger.error("DROPPING DATA " + e.getMessage(), e);
-        } catch (TException e) {
-            logger.error("DROPPING DATA " + e.getMessage(), e);
-        }
-        
-        // maybe second try.
-        if (retry > 0) {
-            try { Thread.sleep(retry); } catch (InterruptedException ignore) { }
-            try {
-                write(mutations);
-            } catch (TimedOutException ex) {
-                logger.error("DROPPING DATA " + ex.getMessage(), ex);
-            } catch (UnavailableException ex) {
-                logger.error("DROPPING DATA " + ex.getMessage(), ex);
-            } catch (InvalidRequestException ex) {
-                logger.error("DROPPING DATA " + ex.getMessage(), ex);
-            } catch (TException ex) {
-                logger.error("DROPPING DATA " + ex.getMessage(), ex);
-            }
-        }
+        writer.submit(makeMutations(record, resolver, System.currentTimeMillis()));
     }
     
     // convert record to a mapped list of mutations suitable for batch_mutate.
@@ -140,34 +116,34 @@ public class UsageBackend extends AbstractBackend {
                 Mutation m = new Mutation();
                 m.column_or_supercolumn = new ColumnOrSuperColumn();
                 m.column_or_supercolumn.column = new Column(getTimeUUIDByteBuffer(flow.timestampCalculated),
-                        int2ByteBuffer(flow.numOctets), ts);
+                        ByteBuffer.wrap(long2byte(flow.numOctets)), ts);
                 m.column_or_supercolumn.column.ttl = colTTL;
                 mutationsForKeyAndCf(ByteBuffer.wrap(flow.sourceAddr.getAddress()), localColFam, mutations).add(m);
                 // dst
                 m = new Mutation();
                 m.column_or_supercolumn = new ColumnOrSuperColumn();
                 m.column_or_supercolumn.column = new Column(getTimeUUIDByteBuffer(flow.timestampCalculated),
-                        int2ByteBuffer(flow.numOctets), ts);
+                        ByteBuffer.wrap(long2byte(flow.numOctets)), ts);
                 m.column_or_supercolumn.column.ttl = colTTL;
                 mutationsForKeyAndCf(ByteBuffer.wrap(flow.destAddr.getAddress()), localColFam, mutations).add(m);
             } else if (srcInternal) { // inbound
                 Mutation m = new Mutation();
                 m.column_or_supercolumn = new ColumnOrSuperColumn();
                 m.column_or_supercolumn.column = new Column(getTimeUUIDByteBuffer(flow.timestampCalculated),
-                        int2ByteBuffer(flow.numOctets), ts);
+                        ByteBuffer.wrap(long2byte(flow.numOctets)), ts);
                 m.column_or_supercolumn.column.ttl = colTTL;
                 mutationsForKeyAndCf(ByteBuffer.wrap(flow.sourceAddr.getAddress()), ingressColFam, mutations).add(m);
             } else if (dstInternal) { // outbound
                 Mutation m = new Mutation();
                 m.column_or_supercolumn = new ColumnOrSuperColumn();
                 m.column_or_supercolumn.column = new Column(getTimeUUIDByteBuffer(flow.timestampCalculated),
-                        int2ByteBuffer(flow.numOctets), ts);
+                        ByteBuffer.wrap(long2byte(flow.numOctets)), ts);
                 m.column_or_supercolumn.column.ttl = colTTL;
                 mutationsForKeyAndCf(ByteBuffer.wrap(flow.destAddr.getAddress()), egressColFam, mutations).add(m);
             } else {
-                // FIXME: can actually happen.
-                logger.error("{} nor {} belong to us, how can this be?", flow.sourceAddr.getCanonicalHostName(),
-                        flow.destAddr.getCanonicalHostName());
+                // FIXME: can actually happen.  (no reverse lookups here; this is the receive thread.)
+                logger.error("{} nor {} belong to us, how can this be?", flow.sourceAddr.getHostAddress(),
+                        flow.destAddr.getHostAddress());
                 continue;
             }
         }
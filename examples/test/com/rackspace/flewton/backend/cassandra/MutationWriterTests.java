@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend.cassandra;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.TimedOutException;
+import org.apache.cassandra.thrift.UnavailableException;
+import org.apache.thrift.TException;
+import org.junit.Test;
+
+public class MutationWriterTests {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // records every call; calls wait for the gate, if any, then sleep, then fail as scripted.
+    private static class FakeSink implements MutationWriter.Sink {
+        final List<Map<ByteBuffer, Map<String, List<Mutation>>>> calls =
+            Collections.synchronizedList(new ArrayList<Map<ByteBuffer, Map<String, List<Mutation>>>>());
+        final Queue<TException> failures = new ConcurrentLinkedQueue<TException>();
+        volatile CountDownLatch gate;
+        volatile long sleepMillis = 0;
+
+        public void write(Map<ByteBuffer, Map<String, List<Mutation>>> mutations) throws TException {
+            calls.add(mutations);
+            try {
+                CountDownLatch waitFor = gate;
+                if (waitFor != null)
+                    waitFor.await();
+                if (sleepMillis > 0)
+                    Thread.sleep(sleepMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            TException failure = failures.poll();
+            if (failure != null)
+                throw failure;
+        }
+
+        // the row keys of each call, in order.
+        List<String> keys(int call) {
+            List<String> keys = new ArrayList<String>();
+            for (ByteBuffer key : calls.get(call).keySet())
+                keys.add(UTF8.decode(key.duplicate()).toString());
+            Collections.sort(keys);
+            return keys;
+        }
+    }
+
+    private static abstract class Until {
+        abstract boolean done();
+
+        void await() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!done()) {
+                assert System.currentTimeMillis() < deadline : "timed out";
+                Thread.sleep(2);
+            }
+        }
+    }
+
+    private static ByteBuffer key(String key) {
+        return ByteBuffer.wrap(key.getBytes(UTF8));
+    }
+
+    // one mutation in column family cf for each key.
+    private static Map<ByteBuffer, Map<String, List<Mutation>>> rows(String cf, String... keys) {
+        Map<ByteBuffer, Map<String, List<Mutation>>> rows = new LinkedHashMap<ByteBuffer, Map<String, List<Mutation>>>();
+        for (String key : keys) {
+            Map<String, List<Mutation>> cfs = new HashMap<String, List<Mutation>>();
+            cfs.put(cf, new ArrayList<Mutation>(Arrays.asList(new Mutation())));
+            rows.put(key(key), cfs);
+        }
+        return rows;
+    }
+
+    private static String[] keys(String prefix, int count) {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++)
+            keys[i] = prefix + i;
+        return keys;
+    }
+
+    private static void awaitCalls(final FakeSink sink, final int count) throws InterruptedException {
+        new Until() {
+            boolean done() {
+                return sink.calls.size() >= count;
+            }
+        }.await();
+    }
+
+    private static void awaitLimits(final MutationWriter writer, final int inFlight, final int batchRows)
+    throws InterruptedException {
+        new Until() {
+            boolean done() {
+                return writer.getInFlightLimit() == inFlight && writer.getBatchRows() == batchRows;
+            }
+        }.await();
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        FakeSink sink = new FakeSink();
+        sink.gate = new CountDownLatch(1);
+        MutationWriter writer = new MutationWriter(sink, 1000, 1, 1000, 1000);
+        writer.submit(rows("cf1", "a"));
+        awaitCalls(sink, 1);
+
+        // while the first call is out, writes to the same rows merge.
+        writer.submit(rows("cf1", "a"));
+        writer.submit(rows("cf2", "a"));
+        writer.submit(rows("cf1", "b"));
+        writer.submit(rows("cf1", "a"));
+        assert writer.getPendingRows() == 2;
+        sink.gate.countDown();
+        awaitCalls(sink, 2);
+
+        assert sink.keys(1).equals(Arrays.asList("a", "b"));
+        Map<String, List<Mutation>> a = sink.calls.get(1).get(key("a"));
+        assert a.get("cf1").size() == 2 && a.get("cf2").size() == 1;
+        assert writer.getDropped() == 0;
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        FakeSink sink = new FakeSink();
+        sink.gate = new CountDownLatch(1);
+        MutationWriter writer = new MutationWriter(sink, 1000, 4, 1000, 1000);
+        writer.submit(rows("cf", "first"));
+        awaitCalls(sink, 1);
+        writer.submit(rows("cf", keys("row", 40)));
+        sink.gate.countDown();
+
+        // the first call's success lets two batches of up to 32 rows out at once.
+        awaitCalls(sink, 3);
+        int[] sizes = { sink.calls.get(1).size(), sink.calls.get(2).size() };
+        Arrays.sort(sizes);
+        assert sizes[0] == 8 && sizes[1] == 32;
+    }
+
+    @Test
+    public void testAimd() throws Exception {
+        FakeSink sink = new FakeSink();
+        MutationWriter writer = new MutationWriter(sink, 64, 4, 1000, 50);
+        assert writer.getInFlightLimit() == 1 && writer.getBatchRows() == 16;
+
+        // additive increase while calls are quick...
+        int[][] expected = { { 2, 32 }, { 3, 48 }, { 4, 64 }, { 4, 64 } };
+        for (int n = 0; n < expected.length; n++) {
+            writer.submit(rows("cf", "row" + n));
+            awaitCalls(sink, n + 1);
+            awaitLimits(writer, expected[n][0], expected[n][1]);
+        }
+
+        // ...multiplicative decrease when one is slow...
+        sink.sleepMillis = 100;
+        writer.submit(rows("cf", "slow"));
+        awaitLimits(writer, 2, 32);
+        sink.sleepMillis = 0;
+
+        // ...or fails, down to the minimums (the retry waits out Cassandra being unavailable).
+        sink.failures.add(new UnavailableException());
+        writer.submit(rows("cf", "unavailable"));
+        awaitLimits(writer, 1, 16);
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        FakeSink sink = new FakeSink();
+        final MutationWriter writer = new MutationWriter(sink, 1000, 1, 1000, 1000);
+
+        // a timed out batch is retried promptly, even behind one waiting out Cassandra being unavailable.
+        sink.failures.add(new UnavailableException());
+        sink.failures.add(new TimedOutException());
+        writer.submit(rows("cf", "unavailable"));
+        awaitCalls(sink, 1);
+        Thread.sleep(50);
+        writer.submit(rows("cf", "timedOut"));
+        awaitCalls(sink, 4);
+        assert sink.keys(2).equals(Arrays.asList("timedOut"));
+        assert sink.keys(3).equals(Arrays.asList("unavailable"));
+        assert writer.getDropped() == 0;
+
+        // batches are only retried once.
+        sink.failures.add(new TimedOutException());
+        sink.failures.add(new TimedOutException());
+        writer.submit(rows("cf", "x", "y"));
+        awaitCalls(sink, 6);
+        new Until() {
+            boolean done() {
+                return writer.getDropped() == 2;
+            }
+        }.await();
+        assert sink.calls.size() == 6;
+    }
+
+    @Test
+    public void testMaxPendingRows() throws Exception {
+        FakeSink sink = new FakeSink();
+        sink.gate = new CountDownLatch(1);
+        MutationWriter writer = new MutationWriter(sink, 1000, 1, 10, 1000);
+        writer.submit(rows("cf", "first"));
+        awaitCalls(sink, 1);
+
+        writer.submit(rows("cf", keys("row", 15)));
+        assert writer.getPendingRows() == 10;
+        assert writer.getDropped() == 5;
+        // rows already pending still take more mutations.
+        writer.submit(rows("cf", "row0", "row1"));
+        assert writer.getDropped() == 5;
+
+        sink.gate.countDown();
+        awaitCalls(sink, 2);
+        assert sink.calls.get(1).size() == 10;
+    }
+}
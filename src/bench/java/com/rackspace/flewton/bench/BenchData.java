@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+
+/**
+ * Realistic inputs shared by the benchmarks: full (30 flow) Netflow v5
+ * datagrams whose addresses are split between a large set of "internal"
+ * CIDR blocks and the rest of the address space.  Everything is generated
+ * from a fixed seed so runs are comparable.
+ */
+public class BenchData {
+    public static final int FLOWS_PER_DATAGRAM = 30;
+    public static final int V5_HEADER_SIZE = 24;
+    public static final int V5_FLOW_SIZE = 48;
+    public static final int NETWORKS = 200;
+
+    private final Random random = new Random(0x666c6577L);
+    private final int[] networks = new int[NETWORKS];
+    private final int[] prefixes = new int[NETWORKS];
+
+    public BenchData() {
+        // a mix of block sizes, as found in a real network list.
+        for (int i = 0; i < NETWORKS; i++) {
+            prefixes[i] = 16 + random.nextInt(13);
+            networks[i] = random.nextInt() & (0xffffffff << (32 - prefixes[i]));
+        }
+    }
+
+    /** backend configuration listing the internal networks. */
+    public HierarchicalConfiguration config() {
+        HierarchicalConfiguration config = new HierarchicalConfiguration();
+        for (int i = 0; i < NETWORKS; i++)
+            config.addProperty("network", dotted(networks[i]) + "/" + prefixes[i]);
+        return config;
+    }
+
+    /** an address, internal half of the time. */
+    public int address() {
+        if (random.nextBoolean())
+            return random.nextInt();
+        int n = random.nextInt(NETWORKS);
+        return networks[n] | (random.nextInt() >>> prefixes[n]);
+    }
+
+    /** count distinct v5 datagrams, each carrying FLOWS_PER_DATAGRAM flows. */
+    public byte[][] v5Datagrams(int count) {
+        byte[][] datagrams = new byte[count][];
+        for (int i = 0; i < count; i++)
+            datagrams[i] = v5Datagram(i);
+        return datagrams;
+    }
+
+    private byte[] v5Datagram(int sequence) {
+        int uptime = 3600000 + sequence * 1000;
+        ByteBuffer datagram = ByteBuffer.allocate(V5_HEADER_SIZE + FLOWS_PER_DATAGRAM * V5_FLOW_SIZE);
+        datagram.putShort((short)5);
+        datagram.putShort((short)FLOWS_PER_DATAGRAM);
+        datagram.putInt(uptime);
+        datagram.putInt(1300000000 + sequence);
+        datagram.putInt(0);
+        datagram.putInt(sequence * FLOWS_PER_DATAGRAM);
+        datagram.putInt(0);   // engine, sampling
+        for (int f = 0; f < FLOWS_PER_DATAGRAM; f++) {
+            boolean tcp = random.nextInt(10) < 8;
+            int packets = 1 + random.nextInt(1000);
+            datagram.putInt(address());
+            datagram.putInt(address());
+            datagram.putInt(address());
+            datagram.putShort((short)random.nextInt(64));
+            datagram.putShort((short)random.nextInt(64));
+            datagram.putInt(packets);
+            datagram.putInt(packets * (40 + random.nextInt(1460)));
+            datagram.putInt(uptime - 30000 - random.nextInt(30000));
+            datagram.putInt(uptime - random.nextInt(30000));
+            datagram.putShort((short)(1024 + random.nextInt(64511)));
+            datagram.putShort((short)(tcp ? 443 : 53));
+            datagram.put((byte)0);
+            datagram.put((byte)(tcp ? 0x1b : 0));
+            datagram.put((byte)(tcp ? 6 : 17));
+            datagram.put((byte)0);
+            datagram.putShort((short)random.nextInt(65536));
+            datagram.putShort((short)random.nextInt(65536));
+            datagram.putInt(0);   // masks, padding
+        }
+        return datagram.array();
+    }
+
+    private static String dotted(int addr) {
+        return (addr >>> 24) + "." + ((addr >>> 16) & 0xff) + "." + ((addr >>> 8) & 0xff) + "." + (addr & 0xff);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rackspace.flewton.CorruptDatagram;
+import com.rackspace.flewton.Flow;
+import com.rackspace.flewton.FlowBatch;
+import com.rackspace.flewton.Recordv5;
+
+/** Decoding a full v5 datagram: header only, into a FlowBatch, and into Flow objects. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Recordv5Benchmark {
+    private byte[][] datagrams;
+    private FlowBatch batch;
+    private int next;
+
+    @Setup
+    public void setup() {
+        datagrams = new BenchData().v5Datagrams(64);
+        batch = new FlowBatch();
+    }
+
+    private Recordv5 decodeNext() throws CorruptDatagram {
+        ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(datagrams[next++ & 63]);
+        buffer.readShort();
+        return new Recordv5(buffer);
+    }
+
+    @Benchmark
+    public Recordv5 decode() throws CorruptDatagram {
+        return decodeNext();
+    }
+
+    @Benchmark
+    public FlowBatch decodeToBatch() throws CorruptDatagram {
+        batch.clear();
+        decodeNext().appendTo(batch);
+        return batch;
+    }
+
+    @Benchmark
+    public Flow decodeToFlows() throws CorruptDatagram {
+        List<Flow> flows = decodeNext().flows;
+        return flows.get(flows.size() - 1);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.CorruptDatagram;
+import com.rackspace.flewton.Flow;
+import com.rackspace.flewton.FlowSerializer;
+import com.rackspace.flewton.Recordv5;
+
+/**
+ * XML serialization of a single flow and of a whole (30 flow) record, as
+ * Strings, and of the record streamed by a FlowSerializer as XML and JSON.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    private AbstractRecord record;
+    private Flow[] flows;
+    private int next;
+    private FlowSerializer xml;
+    private FlowSerializer json;
+    private ByteBuffer out;
+
+    @Setup
+    public void setup() throws CorruptDatagram {
+        ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(new BenchData().v5Datagrams(1)[0]);
+        buffer.readShort();
+        record = new Recordv5(buffer);
+        flows = record.flows.toArray(new Flow[BenchData.FLOWS_PER_DATAGRAM]);
+        xml = new FlowSerializer(FlowSerializer.Format.XML);
+        json = new FlowSerializer(FlowSerializer.Format.JSON_LINES);
+        out = ByteBuffer.allocate(1 << 16);
+    }
+
+    @Benchmark
+    public String flowToXmlString() {
+        return flows[next++ % BenchData.FLOWS_PER_DATAGRAM].toXmlString();
+    }
+
+    @Benchmark
+    public String recordToXmlString() {
+        return record.toXmlString();
+    }
+
+    @Benchmark
+    public ByteBuffer recordToXmlStream() {
+        out.clear();
+        xml.append(record);
+        xml.writeTo(out);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer recordToJsonLines() {
+        out.clear();
+        json.append(record);
+        json.writeTo(out);
+        return out;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.ConfigError;
+import com.rackspace.flewton.CorruptDatagram;
+import com.rackspace.flewton.FlowBatch;
+import com.rackspace.flewton.Recordv5;
+import com.rackspace.flewton.backend.TopTalkersBackend;
+
+/**
+ * Aggregating one datagram's worth (30 flows) of traffic, through the record
+ * and the batch interfaces.  Records and batches are decoded up front so only
+ * the backend is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TopTalkersBenchmark {
+    private static final int DATAGRAMS = 256;
+
+    private TopTalkersBackend backend;
+    private AbstractRecord[] records;
+    private FlowBatch[] batches;
+    private int next;
+
+    @Setup
+    public void setup() throws CorruptDatagram, ConfigError {
+        BenchData data = new BenchData();
+        backend = new TopTalkersBackend(data.config());
+        records = new AbstractRecord[DATAGRAMS];
+        batches = new FlowBatch[DATAGRAMS];
+        byte[][] datagrams = data.v5Datagrams(DATAGRAMS);
+        for (int i = 0; i < DATAGRAMS; i++) {
+            ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(datagrams[i]);
+            buffer.readShort();
+            records[i] = new Recordv5(buffer);
+            batches[i] = new FlowBatch(BenchData.FLOWS_PER_DATAGRAM);
+            records[i].appendTo(batches[i]);
+        }
+    }
+
+    @Benchmark
+    public void writeRecord() {
+        backend.write(records[next++ & (DATAGRAMS - 1)]);
+    }
+
+    @Benchmark
+    public void writeBatch() {
+        backend.write(batches[next++ & (DATAGRAMS - 1)]);
+    }
+}
@@ -29,30 +29,139 @@
 
 package com.rackspace.flewton;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 
+import com.rackspace.flewton.util.PrefixLabels;
+
 public abstract class AbstractRecord {
     private static final String FLOWS_TAG = "flows";
 
     public List<Flow> flows = new ArrayList<Flow>();
 
+    private final long receivedNanos = System.nanoTime();
+
+    // set before the record is handed to backends.
+    private PrefixLabels labels;
+    private InetAddress exporter;
+    private int exporterId = 0;
+
     public AbstractRecord(ChannelBuffer buffer) {
     }
 
     /**
-     * Serialize record to an XML string.
+     * {@link System#nanoTime()} when decoding of this record began, which is as
+     * close as we get to when its datagram was received.  Backends can use it to
+     * measure how long records take to reach them.
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * Record the address of the device that exported this record.
+     */
+    public void setExporter(InetAddress exporter) {
+        this.exporter = exporter;
+        // an Inet4Address's hash code is the address itself.
+        this.exporterId = exporter == null ? 0 : exporter.hashCode();
+    }
+
+    /** the device that exported this record, or null if unknown. */
+    public InetAddress getExporter() {
+        return exporter;
+    }
+
+    /**
+     * the exporter as an int: its IPv4 address, or a hash of its IPv6 address;
+     * 0 if unknown.  Carried in {@link FlowBatch#exporter}.
+     */
+    public int getExporterId() {
+        return exporterId;
+    }
+
+    /**
+     * Label the source and destination of this record's flows, now or (for lazy
+     * flows) when they are built, and of the rows it appends to batches.
+     * 
+     * @param labels prefix labels; null for none.
+     */
+    public void setLabels(PrefixLabels labels) {
+        this.labels = labels;
+        if (labels != null)
+            labelFlows(labels);
+    }
+
+    /** the labels set by {@link #setLabels(PrefixLabels)}, or null for none. */
+    public PrefixLabels getLabels() {
+        return labels;
+    }
+
+    /**
+     * Label the flows built so far.  Records that build their flows later
+     * label them then instead.
+     */
+    protected void labelFlows(PrefixLabels labels) {
+        for (Flow flow : flows)
+            label(flow, labels);
+    }
+
+    /**
+     * Append this record's flows, labelled and with their exporter, to a
+     * column-oriented batch.
+     * 
+     * @param batch batch to add flows to.
+     */
+    public final void appendTo(FlowBatch batch) {
+        int from = batch.size();
+        appendFlows(batch);
+        PrefixLabels current = labels;
+        for (int i = from; i < batch.size(); i++) {
+            batch.exporter[i] = exporterId;
+            // label tables are IPv4 only.
+            boolean unlabelled = current == null || batch.isIPv6(i);
+            batch.sourceLabel[i] = unlabelled ? PrefixLabels.NO_LABEL : current.lookup(batch.sourceAddr[i]);
+            batch.destLabel[i] = unlabelled ? PrefixLabels.NO_LABEL : current.lookup(batch.destAddr[i]);
+        }
+    }
+
+    /**
+     * Append this record's flows to a column-oriented batch; the labels and
+     * exporter are filled in afterwards.  Decoders should override this to fill the batch
+     * without creating Flow objects.
+     * 
+     * @param batch batch to add flows to.
+     */
+    protected void appendFlows(FlowBatch batch) {
+        batch.ensureCapacity(flows.size());
+        for (Flow flow : flows)
+            batch.add(flow);
+    }
+
+    static void label(Flow flow, PrefixLabels labels) {
+        // Inet4Address's hash code is the address itself.
+        if (flow.sourceAddr instanceof Inet4Address)
+            flow.sourceLabel = labels.lookup(flow.sourceAddr.hashCode());
+        if (flow.destAddr instanceof Inet4Address)
+            flow.destLabel = labels.lookup(flow.destAddr.hashCode());
+    }
+
+    /**
+     * Serialize record to an XML string.  To stream records out, use a
+     * {@link FlowSerializer} instead.
      * 
      * @return XML representation of record.
      */
     public String toXmlString() {
-        StringBuilder out = new StringBuilder();
+        StringBuilder out = new StringBuilder(1024 * (flows.size() + 1));
         out.append('<').append(FLOWS_TAG).append('>');
 
         for (Flow flow : flows) {
-            out.append(flow.toXmlString());
+            flow.appendXml(out);
         }
 
         out.append("</").append(FLOWS_TAG).append('>');
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Common ground for template based formats (Netflow v9, IPFIX).  Subclasses
+ * parse the datagram's sets, maintain the {@link TemplateCache}, and register
+ * each flow data set with {@link #addDataSet}; records are then decoded in
+ * place using the template's plan.
+ */
+public abstract class AbstractTemplateRecord extends LazyRecord {
+    private static final Logger logger = LoggerFactory.getLogger(AbstractTemplateRecord.class);
+    private final List<DataSet> dataSets = new ArrayList<DataSet>(2);
+    private int count = 0;
+
+    public AbstractTemplateRecord(ChannelBuffer buffer) {
+        super(buffer);
+    }
+
+    /**
+     * registers a data set whose records should be reported as flows.
+     *
+     * @param data buffer holding the set's records, from its reader index to its writer index
+     * @param bootMillis exporter boot time, for uptime-relative timestamps (or Template.UNKNOWN_BOOT)
+     * @param exportMillis time the set was exported
+     */
+    protected void addDataSet(Template template, ChannelBuffer data, long bootMillis, long exportMillis) {
+        if (!template.isFlow())
+            return;
+        DataSet set = new DataSet(template, data, bootMillis, exportMillis);
+        if (set.count == 0)
+            return;
+        dataSets.add(set);
+        count += set.count;
+    }
+
+    /**
+     * caches a template, picking up any data that arrived ahead of it.
+     */
+    protected void storeTemplate(Template template, InetAddress exporter, long domain, TemplateCache templates) {
+        logger.trace("template {} from {}", template.getId(), exporter);
+        List<TemplateCache.Pending> ready = templates.put(exporter, domain, template);
+        if (ready != null)
+            for (TemplateCache.Pending pending : ready)
+                addDataSet(template, pending.data, pending.bootMillis, pending.exportMillis);
+    }
+
+    /** call once all data sets have been added. */
+    protected void finish() {
+        setLazyFlows(count);
+    }
+
+    /** number of flows in this record. */
+    public int getFlowCount() {
+        return count;
+    }
+
+    @Override
+    protected Flow makeFlow(int i) {
+        for (DataSet set : dataSets) {
+            if (i < set.count)
+                return set.template.toFlow(set.data, set.offset(i), set.located, set.base(i),
+                        set.bootMillis, set.exportMillis);
+            i -= set.count;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    protected void appendFlows(FlowBatch batch) {
+        batch.ensureCapacity(count);
+        for (DataSet set : dataSets) {
+            for (int i = 0; i < set.count; i++)
+                set.template.toBatch(set.data, set.offset(i), set.located, set.base(i),
+                        set.bootMillis, set.exportMillis, batch);
+        }
+    }
+
+    private static class DataSet {
+        private final Template template;
+        private final ChannelBuffer data;
+        private final long bootMillis;
+        private final long exportMillis;
+        private final int start;
+        private final int count;
+        // variable-length templates: offsets of the decoded fields of every record.
+        private final int[] located;
+
+        private DataSet(Template template, ChannelBuffer data, long bootMillis, long exportMillis) {
+            this.template = template;
+            this.data = data;
+            this.bootMillis = bootMillis;
+            this.exportMillis = exportMillis;
+            this.start = data.readerIndex();
+
+            int minLength = template.getRecordLength();
+            if (minLength == 0) {
+                count = 0;
+                located = null;
+            } else if (template.isFixedLength()) {
+                // anything left over at the end is padding.
+                count = data.readableBytes() / minLength;
+                located = null;
+            } else {
+                // walk the records once; at most this many can fit.
+                int fields = template.getDecodedFields();
+                int[] offsets = new int[(data.readableBytes() / minLength) * fields];
+                int records = 0, at = start, limit = data.writerIndex();
+                while (limit - at >= minLength) {
+                    int length = template.locate(data, at, limit, offsets, records * fields);
+                    if (length < 0)
+                        break;
+                    at += length;
+                    records++;
+                }
+                count = records;
+                located = offsets;
+            }
+        }
+
+        private int offset(int i) {
+            return start + i * template.getRecordLength();
+        }
+
+        private int base(int i) {
+            return i * template.getDecodedFields();
+        }
+    }
+}
@@ -34,6 +34,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.rackspace.flewton.backend.IBackend;
+import com.rackspace.flewton.backend.IBatchBackend;
+import com.rackspace.flewton.backend.ICounterBackend;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -44,17 +46,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rackspace.flewton.backend.NullBackend;
+import com.rackspace.flewton.util.PrefixLabels;
 
 public class CollectorHandler extends SimpleChannelHandler {
     private static final Logger logger = LoggerFactory.getLogger(CollectorHandler.class);
     private static final boolean logUnhandledVersions = Boolean.parseBoolean(System.getProperty("flewton.log_unhandled_versions", "false"));
     private static List<IBackend> backEnds = new ArrayList<IBackend>();
+    private static TemplateCache templates = new TemplateCache();
+    private static final SequenceTracker sequences = new SequenceTracker();
+    private static PrefixLabels labels = null;
     private static final int HEX_LENGTH = 16;
     
     static {
         backEnds.add(new NullBackend(new HierarchicalConfiguration()));
     }
     
+    // one handler per channel, and so per receive thread; reused for every datagram.
+    private final FlowBatch batch = new FlowBatch();
+    
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
         ChannelBuffer buff = (ChannelBuffer)e.getMessage();
         int version = buff.readShort();
@@ -64,8 +73,21 @@ public class CollectorHandler extends SimpleChannelHandler {
         AbstractRecord record =  null;
         try {
             switch (version) {
+                case 0:
+                    // sFlow's version is 32 bits wide, so it starts with zeros.
+                    record = new RecordSflowv5(buff);
+                    break;
                 case 5:
-                    record = new Recordv5(buff);
+                    Recordv5 v5 = new Recordv5(buff);
+                    sequences.update(((InetSocketAddress)e.getRemoteAddress()).getAddress(),
+                            (v5.getEngineType() << 8) | v5.getEngineId(), v5.getFlowSequence(), v5.getFlowCount());
+                    record = v5;
+                    break;
+                case 9:
+                    record = new Recordv9(buff, ((InetSocketAddress)e.getRemoteAddress()).getAddress(), templates);
+                    break;
+                case 10:
+                    record = new Recordv10(buff, ((InetSocketAddress)e.getRemoteAddress()).getAddress(), templates);
                     break;
                 default:
                     if (logUnhandledVersions) {
@@ -80,13 +102,37 @@ public class CollectorHandler extends SimpleChannelHandler {
             }
         } catch (CorruptDatagram err) {
             logger.error("Encountered a corrupt frame, skipping.");
+            logger.debug("Corrupt frame: {}", err.getMessage());
             return;
         }
         
         // Send record to backends
         assert record != null;
-        for (IBackend backend : backEnds)
-            backend.write(record);
+        record.setExporter(((InetSocketAddress)e.getRemoteAddress()).getAddress());
+        record.setLabels(labels);
+        if (record instanceof RecordSflowv5) {
+            List<InterfaceCounters> counters = ((RecordSflowv5)record).counters;
+            if (!counters.isEmpty())
+                for (IBackend backend : backEnds)
+                    if (backend instanceof ICounterBackend)
+                        ((ICounterBackend)backend).writeCounters(counters);
+            // counter-only datagrams are of no interest to flow backends.
+            if (record.flows.isEmpty())
+                return;
+        }
+        
+        boolean batched = false;
+        for (IBackend backend : backEnds) {
+            if (backend instanceof IBatchBackend) {
+                if (!batched) {
+                    batch.clear();
+                    record.appendTo(batch);
+                    batched = true;
+                }
+                ((IBatchBackend)backend).write(batch);
+            } else
+                backend.write(record);
+        }
     }
     
     // dumps the contents of a buffer
@@ -136,4 +182,23 @@ public class CollectorHandler extends SimpleChannelHandler {
     public static void setBackends(List<IBackend> backends) {
         backEnds = backends;
     }
+    
+    /** the backends records are written to. */
+    public static List<IBackend> getBackends() {
+        return backEnds;
+    }
+    
+    public static void setTemplateCache(TemplateCache cache) {
+        templates = cache;
+    }
+    
+    /** prefix labels to give flows; null for none. */
+    public static void setLabels(PrefixLabels prefixLabels) {
+        labels = prefixLabels;
+    }
+    
+    /** Netflow v5 sequence numbers, and the flows found lost from gaps in them. */
+    public static SequenceTracker getSequenceTracker() {
+        return sequences;
+    }
 }
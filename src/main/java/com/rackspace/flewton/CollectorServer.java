@@ -29,7 +29,10 @@
 package com.rackspace.flewton;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
@@ -37,21 +40,26 @@ import java.util.concurrent.Executors;
 
 import com.rackspace.flewton.backend.ExtBackendFactory;
 import com.rackspace.flewton.backend.IBackend;
+import com.rackspace.flewton.backend.QueuedBackend;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.apache.commons.configuration.SubnodeConfiguration;
 import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.FixedReceiveBufferSizePredictorFactory;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.DatagramChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.rackspace.flewton.backend.AbstractBackend;
+import com.rackspace.flewton.util.GrowingReceiveBufferSizePredictorFactory;
+import com.rackspace.flewton.util.PrefixLabels;
 
 public class CollectorServer {
     private static final Logger logger = LoggerFactory.getLogger(CollectorServer.class);
@@ -69,6 +77,12 @@ public class CollectorServer {
     
     private int remotePort;
     private String listenAddress;
+    private int receiveSockets = 1;
+    private int receiveBufferSize = 2048;
+    private int maxDatagramSize = GrowingReceiveBufferSizePredictorFactory.MAX_DATAGRAM_SIZE;
+    
+    private DatagramChannelFactory channelFactory;
+    private final ChannelGroup channels = new DefaultChannelGroup("flewton");
 
     private static List<IBackend> createBackends(String[] backendNames, HierarchicalINIConfiguration config) throws ConfigError {
         List<IBackend> backends = new ArrayList<IBackend>();
@@ -78,15 +92,19 @@ public class CollectorServer {
                 logger.info("Adding backend: {}", name);
                 IBackend backend = null;
                 SubnodeConfiguration subConfig = config.getSection(name.replace('.', '/'));
-                if (name.startsWith("py/"))
+                if (name.startsWith("py/") && subConfig.getInt("interpreters", 0) > 0)
+                    backend = ExtBackendFactory.createPooledPythonBackend(name, subConfig);
+                else if (name.startsWith("py/"))
                     backend = ExtBackendFactory.createPythonBackend(name, config);
+                else if (name.startsWith("js/") && subConfig.getInt("engines", 0) > 0)
+                    backend = ExtBackendFactory.createPooledScriptBackend(name, subConfig);
                 else if (name.startsWith("js/"))
                     backend = ExtBackendFactory.createJavascriptBackend(name, config);
                 else {
                     Class<?> backendClass = Class.forName(name.replace('/', '.'));
-                    backend = (AbstractBackend)backendClass.getConstructor(HierarchicalConfiguration.class).newInstance(subConfig);
+                    backend = (IBackend)backendClass.getConstructor(HierarchicalConfiguration.class).newInstance(subConfig);
                 }
-                backends.add(backend);
+                backends.add(QueuedBackend.wrap(backend, name, subConfig));
             } catch (ClassNotFoundException e) {
                 logger.error("Backend not found: {} (not in classpath?)", name);
             } catch (InstantiationException e) {
@@ -152,10 +170,38 @@ public class CollectorServer {
     }
     
     public void setup() throws ConfigurationException, ConfigError {
-        HierarchicalINIConfiguration config = createConfig();
-        
+        setup(createConfig());
+    }
+    
+    /** configures the server from an already loaded (or built) configuration. */
+    public void setup(HierarchicalINIConfiguration config) throws ConfigError {
         // UDP port number.
         remotePort = config.getInt("listenPort", 9995);
+        // Number of sockets (each with its own receive thread) bound to that port.
+        receiveSockets = config.getInt("receiveSockets", 1);
+        if (receiveSockets < 1)
+            receiveSockets = Runtime.getRuntime().availableProcessors();
+        // Initial and largest datagram buffer sizes.
+        receiveBufferSize = config.getInt("receiveBufferSize", receiveBufferSize);
+        maxDatagramSize = config.getInt("maxDatagramSize", maxDatagramSize);
+        // Netflow v9/IPFIX data that arrives ahead of its template is held this long.
+        CollectorHandler.setTemplateCache(new TemplateCache(
+                config.getInt("templateWaitSecs", TemplateCache.DEFAULT_PENDING_MILLIS / 1000) * 1000L,
+                config.getInt("maxPendingDataSets", TemplateCache.DEFAULT_MAX_PENDING)));
+        // Compiled prefix label table, and how often to check it for a new one.
+        String labelTable = config.getString("labelTable", null);
+        if (labelTable != null) {
+            try {
+                PrefixLabels labels = new PrefixLabels(new File(labelTable));
+                int reloadSecs = config.getInt("labelReloadSecs", 60);
+                if (reloadSecs > 0)
+                    labels.startReloading(reloadSecs * 1000L);
+                CollectorHandler.setLabels(labels);
+            } catch (IOException e) {
+                throw new ConfigError("Unable to load label table " + labelTable, e);
+            }
+        }
+        
         // Backend class names
         String[] backEnds = config.getStringArray("backendClass");
 
@@ -170,8 +216,9 @@ public class CollectorServer {
     
     /* jsvc */
     public void start() {
-        DatagramChannelFactory f = new NioDatagramChannelFactory(Executors.newCachedThreadPool());
-        ConnectionlessBootstrap bootstrap = new ConnectionlessBootstrap(f);
+        // one NIO worker (selector thread) per socket; channels are handed to workers round-robin.
+        channelFactory = new NioDatagramChannelFactory(Executors.newCachedThreadPool(), receiveSockets);
+        ConnectionlessBootstrap bootstrap = new ConnectionlessBootstrap(channelFactory);
 
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             @Override
@@ -183,8 +230,9 @@ public class CollectorServer {
         // Disable broadcast
         bootstrap.setOption("broadcast", false);
 
-        // Allow packets as large as 2048 bytes (default is 768)
-        bootstrap.setOption("receiveBufferSizePredictorFactory", new FixedReceiveBufferSizePredictorFactory(2048));
+        // Start with receiveBufferSize byte packets (Netty defaults to 768), growing as exporters send larger ones
+        bootstrap.setOption("receiveBufferSizePredictorFactory",
+                new GrowingReceiveBufferSizePredictorFactory(receiveBufferSize, maxDatagramSize));
 
         InetSocketAddress sockAddress = null;
 
@@ -197,12 +245,67 @@ public class CollectorServer {
             sockAddress = new InetSocketAddress(getListenAddress(), getListenPort());
         }
 
-        bootstrap.bind(sockAddress);
+        if (receiveSockets == 1) {
+            channels.add(bootstrap.bind(sockAddress));
+            return;
+        }
+        
+        // Several sockets share the port via SO_REUSEPORT; the kernel hashes exporters across them.
+        for (int i = 0; i < receiveSockets; i++) {
+            Channel channel;
+            try {
+                channel = channelFactory.newChannel(bootstrap.getPipelineFactory().getPipeline());
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to initialize a pipeline.", ex);
+            }
+            channel.getConfig().setOptions(bootstrap.getOptions());
+            
+            if (!setReusePort(channel)) {
+                channel.close().awaitUninterruptibly();
+                if (i == 0) {
+                    logger.warn("SO_REUSEPORT is not available; falling back to a single socket.");
+                    channels.add(bootstrap.bind(sockAddress));
+                    return;
+                }
+                break;
+            }
+            
+            ChannelFuture future = channel.bind(sockAddress).awaitUninterruptibly();
+            if (!future.isSuccess()) {
+                channel.close().awaitUninterruptibly();
+                throw new RuntimeException("Failed to bind to: " + sockAddress, future.getCause());
+            }
+            channels.add(channel);
+        }
+        
+        logger.info("Receiving on {} sockets", channels.size());
+    }
+    
+    // SO_REUSEPORT is only reachable through the Java 9+ socket option API, so this is all reflection.
+    private static boolean setReusePort(Channel channel) {
+        try {
+            Field field = channel.getClass().getDeclaredField("datagramChannel");
+            field.setAccessible(true);
+            Object nioChannel = field.get(channel);
+            Class<?> optionClass = Class.forName("java.net.SocketOption");
+            Object reusePort = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            Method setOption = Class.forName("java.nio.channels.NetworkChannel").getMethod("setOption", optionClass, Object.class);
+            setOption.invoke(nioChannel, reusePort, Boolean.TRUE);
+            return true;
+        } catch (InvocationTargetException ex) {
+            logger.debug("Unable to set SO_REUSEPORT", ex.getCause());
+            return false;
+        } catch (Exception ex) {
+            logger.debug("Unable to set SO_REUSEPORT", ex);
+            return false;
+        }
     }
     
     /* jsvc */
     public void stop() {
-        
+        channels.close().awaitUninterruptibly();
+        if (channelFactory != null)
+            channelFactory.releaseExternalResources();
     }
     
     /* jsvc */
@@ -225,4 +328,12 @@ public class CollectorServer {
 	public void setListenAddress(String listenAddress) {
 		this.listenAddress = listenAddress;
 	}
+
+	public int getReceiveSockets() {
+		return receiveSockets;
+	}
+
+	public void setReceiveSockets(int receiveSockets) {
+		this.receiveSockets = receiveSockets;
+	}
 }
@@ -30,6 +30,8 @@ package com.rackspace.flewton;
 
 import java.net.InetAddress;
 
+import com.rackspace.flewton.util.PrefixLabels;
+
 public class Flow {
     private static final String FLOW_TAG  = "flow";
     private static final String ATTR_TAG  = "attribute";
@@ -55,17 +57,18 @@ public class Flow {
 
     public long timestampCalculated;
 
-    private static String wrapAttribute(String name, Object value) {
-        return String.format(
-                "<%s><%s>%s</%s><%s>%s</%s></%s>",
-                ATTR_TAG,
-                NAME_TAG,
-                name,
-                NAME_TAG,
-                VALUE_TAG,
-                value,
-                VALUE_TAG,
-                ATTR_TAG);
+    /**
+     * labels (e.g. tenant ids) of the source and destination addresses, from
+     * the collector's {@link PrefixLabels} table;
+     * NO_LABEL when there is no table or the address isn't in it.
+     */
+    public int sourceLabel = PrefixLabels.NO_LABEL;
+    public int destLabel = PrefixLabels.NO_LABEL;
+
+    private static void wrapAttribute(StringBuilder out, String name, Object value) {
+        out.append('<').append(ATTR_TAG).append("><").append(NAME_TAG).append('>').append(name)
+           .append("</").append(NAME_TAG).append("><").append(VALUE_TAG).append('>').append(value)
+           .append("</").append(VALUE_TAG).append("></").append(ATTR_TAG).append('>');
     }
 
     /**
@@ -74,30 +77,40 @@ public class Flow {
      * @return XML representation of flow.
      */
     public String toXmlString() {
-        StringBuilder out = new StringBuilder();
+        StringBuilder out = new StringBuilder(1024);
+        appendXml(out);
+        return out.toString();
+    }
 
+    /**
+     * Serialize flow as XML onto out.  {@link FlowSerializer} does the same
+     * (and JSON) from a {@link FlowBatch} without the Strings.
+     */
+    public void appendXml(StringBuilder out) {
         out.append('<').append(FLOW_TAG).append('>');
 
-        out.append(wrapAttribute("sourceAddr", sourceAddr.getHostAddress()));
-        out.append(wrapAttribute("destAddr", destAddr.getHostAddress()));
-        out.append(wrapAttribute("nextHop", nextHop.getHostAddress()));
-        out.append(wrapAttribute("snmpIn", snmpIn));
-        out.append(wrapAttribute("snmpOut", snmpOut));
-        out.append(wrapAttribute("numPackets", numPackets));
-        out.append(wrapAttribute("numOctets", numOctets));
-        out.append(wrapAttribute("timeFirst", timeFirst));
-        out.append(wrapAttribute("timeLast", timeLast));
-        out.append(wrapAttribute("sourcePort", sourcePort));
-        out.append(wrapAttribute("destPort", destPort));
-        out.append(wrapAttribute("tcpFlags", tcpFlags));
-        out.append(wrapAttribute("protocol", protocol));
-        out.append(wrapAttribute("tos", tos));
-        out.append(wrapAttribute("sourceAS", sourceAS));
-        out.append(wrapAttribute("destAS", destAS));
-        out.append(wrapAttribute("timestampCalculated", timestampCalculated));
+        wrapAttribute(out, "sourceAddr", sourceAddr.getHostAddress());
+        wrapAttribute(out, "destAddr", destAddr.getHostAddress());
+        wrapAttribute(out, "nextHop", nextHop.getHostAddress());
+        wrapAttribute(out, "snmpIn", snmpIn);
+        wrapAttribute(out, "snmpOut", snmpOut);
+        wrapAttribute(out, "numPackets", numPackets);
+        wrapAttribute(out, "numOctets", numOctets);
+        wrapAttribute(out, "timeFirst", timeFirst);
+        wrapAttribute(out, "timeLast", timeLast);
+        wrapAttribute(out, "sourcePort", sourcePort);
+        wrapAttribute(out, "destPort", destPort);
+        wrapAttribute(out, "tcpFlags", tcpFlags);
+        wrapAttribute(out, "protocol", protocol);
+        wrapAttribute(out, "tos", tos);
+        wrapAttribute(out, "sourceAS", sourceAS);
+        wrapAttribute(out, "destAS", destAS);
+        wrapAttribute(out, "timestampCalculated", timestampCalculated);
+        if (sourceLabel != PrefixLabels.NO_LABEL)
+            wrapAttribute(out, "sourceLabel", sourceLabel);
+        if (destLabel != PrefixLabels.NO_LABEL)
+            wrapAttribute(out, "destLabel", destLabel);
 
         out.append("</").append(FLOW_TAG).append('>');
-
-        return out.toString();
     }
 }
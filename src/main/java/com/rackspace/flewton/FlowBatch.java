@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.Inet4Address;
+import java.util.Arrays;
+
+import com.rackspace.flewton.util.Address;
+import com.rackspace.flewton.util.HostResolver;
+
+/**
+ * Column-oriented (struct-of-arrays) flow storage.  Row <code>i</code> of the
+ * batch is spread across the parallel arrays below, which are only valid up to
+ * {@link #size()}.  Decoders append to a batch directly (see
+ * {@link AbstractRecord#appendTo(FlowBatch)}) and batches are reused, so scans
+ * over the columns touch contiguous primitive memory and allocate nothing.
+ *
+ * Source and destination addresses of either family are held as pairs of
+ * long columns, in {@link Address}'s form (IPv4 IPv4-mapped), which is what
+ * aggregations should key on.  For IPv4 flows, the addresses are also packed
+ * big-endian into the int columns (10.0.0.1 is 0x0a000001), which are 0 for
+ * IPv6 flows, as is the next hop, which is only carried for IPv4.
+ */
+public class FlowBatch {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public long[] sourceHigh;
+    public long[] sourceLow;
+    public long[] destHigh;
+    public long[] destLow;
+    public int[] sourceAddr;
+    public int[] destAddr;
+    public int[] nextHop;
+    public int[] snmpIn;
+    public int[] snmpOut;
+    public long[] numPackets;
+    public long[] numOctets;
+    public long[] timeFirst;
+    public long[] timeLast;
+    public int[] sourcePort;
+    public int[] destPort;
+    public byte[] tcpFlags;
+    public byte[] protocol;
+    public byte[] tos;
+    public int[] sourceAS;
+    public int[] destAS;
+    public long[] timestampCalculated;
+    /**
+     * the exporter each flow came from: its IPv4 address, or a hash of its
+     * IPv6 address (see {@link AbstractRecord#getExporterId()}); 0 if unknown.
+     */
+    public int[] exporter;
+    /** see {@link Flow#sourceLabel}. */
+    public int[] sourceLabel;
+    public int[] destLabel;
+
+    private int size = 0;
+
+    public FlowBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FlowBatch(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    /** number of flows in the batch. */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return sourceAddr.length;
+    }
+
+    /** empties the batch, keeping its storage. */
+    public void clear() {
+        size = 0;
+    }
+
+    /** makes room for at least <code>extra</code> more flows. */
+    public void ensureCapacity(int extra) {
+        int needed = size + extra;
+        if (needed > capacity())
+            allocate(Math.max(needed, capacity() * 2));
+    }
+
+    /**
+     * reserves the next row and returns its index.  The caller is expected to
+     * set every column of that row.
+     */
+    public int add() {
+        ensureCapacity(1);
+        return size++;
+    }
+
+    /** true if row i is an IPv6 flow. */
+    public boolean isIPv6(int i) {
+        return !Address.isIPv4(sourceHigh[i], sourceLow[i]);
+    }
+
+    /** sets the source and destination of row i to a pair of IPv4 addresses. */
+    public void setIPv4(int i, int source, int dest) {
+        sourceHigh[i] = 0;
+        sourceLow[i] = Address.mapIPv4(source);
+        destHigh[i] = 0;
+        destLow[i] = Address.mapIPv4(dest);
+        sourceAddr[i] = source;
+        destAddr[i] = dest;
+    }
+
+    /** sets the source and destination of row i to a pair of IPv6 addresses. */
+    public void setIPv6(int i, long sourceHigh, long sourceLow, long destHigh, long destLow) {
+        this.sourceHigh[i] = sourceHigh;
+        this.sourceLow[i] = sourceLow;
+        this.destHigh[i] = destHigh;
+        this.destLow[i] = destLow;
+        sourceAddr[i] = 0;
+        destAddr[i] = 0;
+    }
+
+    /** appends a flow; returns false (and skips it) if it mixes address families. */
+    public boolean add(Flow flow) {
+        boolean ipv4 = flow.sourceAddr instanceof Inet4Address;
+        if (ipv4 != flow.destAddr instanceof Inet4Address)
+            return false;
+        int i = add();
+        if (ipv4)
+            // Inet4Address's hash code is the address itself.
+            setIPv4(i, flow.sourceAddr.hashCode(), flow.destAddr.hashCode());
+        else
+            setIPv6(i, Address.high(flow.sourceAddr), Address.low(flow.sourceAddr),
+                    Address.high(flow.destAddr), Address.low(flow.destAddr));
+        nextHop[i] = flow.nextHop instanceof Inet4Address ? flow.nextHop.hashCode() : 0;
+        snmpIn[i] = flow.snmpIn;
+        snmpOut[i] = flow.snmpOut;
+        numPackets[i] = flow.numPackets;
+        numOctets[i] = flow.numOctets;
+        timeFirst[i] = flow.timeFirst;
+        timeLast[i] = flow.timeLast;
+        sourcePort[i] = flow.sourcePort;
+        destPort[i] = flow.destPort;
+        tcpFlags[i] = flow.tcpFlags;
+        protocol[i] = flow.protocol;
+        tos[i] = flow.tos;
+        sourceAS[i] = flow.sourceAS;
+        destAS[i] = flow.destAS;
+        timestampCalculated[i] = flow.timestampCalculated;
+        exporter[i] = 0;
+        sourceLabel[i] = flow.sourceLabel;
+        destLabel[i] = flow.destLabel;
+        return true;
+    }
+
+    /** creates a (heap) Flow from row i. */
+    public Flow getFlow(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("flow " + i + " of " + size);
+        Flow flow = new Flow();
+        flow.sourceAddr = Address.toInetAddress(sourceHigh[i], sourceLow[i]);
+        flow.destAddr = Address.toInetAddress(destHigh[i], destLow[i]);
+        flow.nextHop = HostResolver.int2InetAddress(nextHop[i]);
+        flow.snmpIn = snmpIn[i];
+        flow.snmpOut = snmpOut[i];
+        flow.numPackets = numPackets[i];
+        flow.numOctets = numOctets[i];
+        flow.timeFirst = timeFirst[i];
+        flow.timeLast = timeLast[i];
+        flow.sourcePort = sourcePort[i];
+        flow.destPort = destPort[i];
+        flow.tcpFlags = tcpFlags[i];
+        flow.protocol = protocol[i];
+        flow.tos = tos[i];
+        flow.sourceAS = sourceAS[i];
+        flow.destAS = destAS[i];
+        flow.timestampCalculated = timestampCalculated[i];
+        flow.sourceLabel = sourceLabel[i];
+        flow.destLabel = destLabel[i];
+        return flow;
+    }
+
+    private void allocate(int capacity) {
+        // Arrays.copyOf() on a null array would NPE, so the first allocation is special.
+        if (sourceAddr == null) {
+            sourceHigh = new long[capacity];
+            sourceLow = new long[capacity];
+            destHigh = new long[capacity];
+            destLow = new long[capacity];
+            sourceAddr = new int[capacity];
+            destAddr = new int[capacity];
+            nextHop = new int[capacity];
+            snmpIn = new int[capacity];
+            snmpOut = new int[capacity];
+            numPackets = new long[capacity];
+            numOctets = new long[capacity];
+            timeFirst = new long[capacity];
+            timeLast = new long[capacity];
+            sourcePort = new int[capacity];
+            destPort = new int[capacity];
+            tcpFlags = new byte[capacity];
+            protocol = new byte[capacity];
+            tos = new byte[capacity];
+            sourceAS = new int[capacity];
+            destAS = new int[capacity];
+            timestampCalculated = new long[capacity];
+            exporter = new int[capacity];
+            sourceLabel = new int[capacity];
+            destLabel = new int[capacity];
+            return;
+        }
+        sourceHigh = Arrays.copyOf(sourceHigh, capacity);
+        sourceLow = Arrays.copyOf(sourceLow, capacity);
+        destHigh = Arrays.copyOf(destHigh, capacity);
+        destLow = Arrays.copyOf(destLow, capacity);
+        sourceAddr = Arrays.copyOf(sourceAddr, capacity);
+        destAddr = Arrays.copyOf(destAddr, capacity);
+        nextHop = Arrays.copyOf(nextHop, capacity);
+        snmpIn = Arrays.copyOf(snmpIn, capacity);
+        snmpOut = Arrays.copyOf(snmpOut, capacity);
+        numPackets = Arrays.copyOf(numPackets, capacity);
+        numOctets = Arrays.copyOf(numOctets, capacity);
+        timeFirst = Arrays.copyOf(timeFirst, capacity);
+        timeLast = Arrays.copyOf(timeLast, capacity);
+        sourcePort = Arrays.copyOf(sourcePort, capacity);
+        destPort = Arrays.copyOf(destPort, capacity);
+        tcpFlags = Arrays.copyOf(tcpFlags, capacity);
+        protocol = Arrays.copyOf(protocol, capacity);
+        tos = Arrays.copyOf(tos, capacity);
+        sourceAS = Arrays.copyOf(sourceAS, capacity);
+        destAS = Arrays.copyOf(destAS, capacity);
+        timestampCalculated = Arrays.copyOf(timestampCalculated, capacity);
+        exporter = Arrays.copyOf(exporter, capacity);
+        sourceLabel = Arrays.copyOf(sourceLabel, capacity);
+        destLabel = Arrays.copyOf(destLabel, capacity);
+    }
+}
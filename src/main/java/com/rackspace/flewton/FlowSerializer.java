@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.rackspace.flewton.util.Address;
+import com.rackspace.flewton.util.PrefixLabels;
+
+/**
+ * Serializes flows, straight from a {@link FlowBatch}, into a reusable byte
+ * buffer that is then written to an OutputStream or ByteBuffer.  Numbers
+ * and addresses are formatted digit by digit into the buffer, so once the
+ * buffer has grown to fit a record nothing is allocated per flow.
+ *
+ * XML output is the schema of {@link AbstractRecord#toXmlString()} and
+ * {@link Flow#toXmlString()}.  JSON output is one object per line, with the
+ * same names; numbers are bare, and tcpFlags, protocol and tos unsigned.
+ * Not thread-safe; use one per thread.
+ */
+public class FlowSerializer {
+    public enum Format { XML, JSON_LINES }
+
+    private static final byte[] FLOWS_OPEN = ascii("<flows>");
+    private static final byte[] FLOWS_CLOSE = ascii("</flows>");
+    private static final byte[] FLOW_OPEN = ascii("<flow>");
+    private static final byte[] FLOW_CLOSE = ascii("</flow>");
+    private static final byte[] ATTR_OPEN = ascii("<attribute><name>");
+    private static final byte[] ATTR_MIDDLE = ascii("</name><value>");
+    private static final byte[] ATTR_CLOSE = ascii("</value></attribute>");
+    private static final byte[] MIN_LONG = ascii(Long.toString(Long.MIN_VALUE));
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private static final byte[] SOURCE_ADDR = ascii("sourceAddr");
+    private static final byte[] DEST_ADDR = ascii("destAddr");
+    private static final byte[] NEXT_HOP = ascii("nextHop");
+    private static final byte[] SNMP_IN = ascii("snmpIn");
+    private static final byte[] SNMP_OUT = ascii("snmpOut");
+    private static final byte[] NUM_PACKETS = ascii("numPackets");
+    private static final byte[] NUM_OCTETS = ascii("numOctets");
+    private static final byte[] TIME_FIRST = ascii("timeFirst");
+    private static final byte[] TIME_LAST = ascii("timeLast");
+    private static final byte[] SOURCE_PORT = ascii("sourcePort");
+    private static final byte[] DEST_PORT = ascii("destPort");
+    private static final byte[] TCP_FLAGS = ascii("tcpFlags");
+    private static final byte[] PROTOCOL = ascii("protocol");
+    private static final byte[] TOS = ascii("tos");
+    private static final byte[] SOURCE_AS = ascii("sourceAS");
+    private static final byte[] DEST_AS = ascii("destAS");
+    private static final byte[] TIMESTAMP = ascii("timestampCalculated");
+    private static final byte[] SOURCE_LABEL = ascii("sourceLabel");
+    private static final byte[] DEST_LABEL = ascii("destLabel");
+
+    private final Format format;
+    private final FlowBatch scratch = new FlowBatch();
+    private byte[] buf = new byte[8192];
+    private int pos = 0;
+    // JSON: whether the next field is the object's first.
+    private boolean first;
+
+    public FlowSerializer(Format format) {
+        this.format = format;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte)s.charAt(i);
+        return bytes;
+    }
+
+    /** serializes a record: a &lt;flows&gt; element, or a line per flow. */
+    public void append(AbstractRecord record) {
+        scratch.clear();
+        record.appendTo(scratch);
+        append(scratch, 0, scratch.size());
+    }
+
+    /** serializes rows [from, to) of the batch as one record. */
+    public void append(FlowBatch batch, int from, int to) {
+        if (format == Format.XML)
+            put(FLOWS_OPEN);
+        for (int i = from; i < to; i++)
+            appendFlow(batch, i);
+        if (format == Format.XML)
+            put(FLOWS_CLOSE);
+    }
+
+    /** serializes row i of the batch: a &lt;flow&gt; element, or a line. */
+    public void appendFlow(FlowBatch batch, int i) {
+        if (format == Format.XML)
+            put(FLOW_OPEN);
+        else {
+            put((byte)'{');
+            first = true;
+        }
+
+        name(SOURCE_ADDR);
+        address(batch.sourceHigh[i], batch.sourceLow[i]);
+        end();
+        name(DEST_ADDR);
+        address(batch.destHigh[i], batch.destLow[i]);
+        end();
+        name(NEXT_HOP);
+        ipv4(batch.nextHop[i]);
+        end();
+        number(SNMP_IN, batch.snmpIn[i]);
+        number(SNMP_OUT, batch.snmpOut[i]);
+        number(NUM_PACKETS, batch.numPackets[i]);
+        number(NUM_OCTETS, batch.numOctets[i]);
+        number(TIME_FIRST, batch.timeFirst[i]);
+        number(TIME_LAST, batch.timeLast[i]);
+        number(SOURCE_PORT, batch.sourcePort[i]);
+        number(DEST_PORT, batch.destPort[i]);
+        octet(TCP_FLAGS, batch.tcpFlags[i]);
+        octet(PROTOCOL, batch.protocol[i]);
+        octet(TOS, batch.tos[i]);
+        number(SOURCE_AS, batch.sourceAS[i]);
+        number(DEST_AS, batch.destAS[i]);
+        number(TIMESTAMP, batch.timestampCalculated[i]);
+        if (batch.sourceLabel[i] != PrefixLabels.NO_LABEL)
+            number(SOURCE_LABEL, batch.sourceLabel[i]);
+        if (batch.destLabel[i] != PrefixLabels.NO_LABEL)
+            number(DEST_LABEL, batch.destLabel[i]);
+
+        if (format == Format.XML)
+            put(FLOW_CLOSE);
+        else {
+            put((byte)'}');
+            put((byte)'\n');
+        }
+    }
+
+    /** number of bytes serialized and not yet written out. */
+    public int size() {
+        return pos;
+    }
+
+    /** discards whatever has been serialized, keeping the buffer. */
+    public void clear() {
+        pos = 0;
+    }
+
+    /** writes out what has been serialized, and clears it. */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+
+    /**
+     * copies what has been serialized into the buffer, and clears it.
+     * @throws java.nio.BufferOverflowException if it doesn't fit, in which case nothing is copied.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.put(buf, 0, pos);
+        pos = 0;
+    }
+
+    /** a copy of what has been serialized, as a String. */
+    public String toString() {
+        char[] chars = new char[pos];
+        for (int i = 0; i < pos; i++)
+            chars[i] = (char)buf[i];
+        return new String(chars);
+    }
+
+    private void name(byte[] name) {
+        if (format == Format.XML) {
+            put(ATTR_OPEN);
+            put(name);
+            put(ATTR_MIDDLE);
+        } else {
+            if (!first)
+                put((byte)',');
+            first = false;
+            put((byte)'"');
+            put(name);
+            put((byte)'"');
+            put((byte)':');
+        }
+    }
+
+    private void end() {
+        if (format == Format.XML)
+            put(ATTR_CLOSE);
+    }
+
+    private void number(byte[] name, long value) {
+        name(name);
+        digits(value);
+        end();
+    }
+
+    // bytes are signed in the XML, as Flow.toXmlString() has always had them.
+    private void octet(byte[] name, byte value) {
+        number(name, format == Format.XML ? value : value & 0xff);
+    }
+
+    // addresses are strings in JSON; written the way InetAddress.getHostAddress() does.
+    private void address(long high, long low) {
+        if (format == Format.JSON_LINES)
+            put((byte)'"');
+        if (Address.isIPv4(high, low))
+            dottedQuad((int)low);
+        else {
+            for (int group = 0; group < 8; group++) {
+                if (group > 0)
+                    put((byte)':');
+                long word = group < 4 ? high : low;
+                hex((int)(word >>> (48 - 16 * (group % 4))) & 0xffff);
+            }
+        }
+        if (format == Format.JSON_LINES)
+            put((byte)'"');
+    }
+
+    private void ipv4(int addr) {
+        if (format == Format.JSON_LINES)
+            put((byte)'"');
+        dottedQuad(addr);
+        if (format == Format.JSON_LINES)
+            put((byte)'"');
+    }
+
+    private void dottedQuad(int addr) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            digits((addr >>> shift) & 0xff);
+            if (shift > 0)
+                put((byte)'.');
+        }
+    }
+
+    // lower case, no leading zeros.
+    private void hex(int value) {
+        boolean leading = true;
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            int digit = (value >>> shift) & 0xf;
+            if (leading && digit == 0 && shift > 0)
+                continue;
+            leading = false;
+            put(HEX[digit]);
+        }
+    }
+
+    private void digits(long value) {
+        if (value == Long.MIN_VALUE) {
+            put(MIN_LONG);
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        int length = 1;
+        for (long v = value / 10; v != 0; v /= 10)
+            length++;
+        for (int i = pos + length - 1; i >= pos; i--) {
+            buf[i] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        pos += length;
+    }
+
+    private void put(byte b) {
+        ensure(1);
+        buf[pos++] = b;
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void ensure(int extra) {
+        if (pos + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(pos + extra, buf.length * 2));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * An sFlow generic interface counters record: totals for one interface of
+ * one agent, as of the agent's uptime.  Counters are those of IF-MIB and
+ * wrap accordingly; unsupported ones are reported as all ones.
+ */
+public class InterfaceCounters {
+    // bytes in a generic interface counters record.
+    public static final int SIZE = 88;
+
+    public InetAddress agent;
+    public long uptime;
+    public int ifIndex;
+    public int ifType;
+    public long ifSpeed;
+    public int ifDirection;
+    public int ifStatus;
+    public long inOctets;
+    public long inUcastPkts;
+    public long inMulticastPkts;
+    public long inBroadcastPkts;
+    public long inDiscards;
+    public long inErrors;
+    public long inUnknownProtos;
+    public long outOctets;
+    public long outUcastPkts;
+    public long outMulticastPkts;
+    public long outBroadcastPkts;
+    public long outDiscards;
+    public long outErrors;
+    public int promiscuousMode;
+
+    static InterfaceCounters read(ChannelBuffer data, InetAddress agent, long uptime) {
+        InterfaceCounters counters = new InterfaceCounters();
+        counters.agent = agent;
+        counters.uptime = uptime;
+        counters.ifIndex = data.readInt();
+        counters.ifType = data.readInt();
+        counters.ifSpeed = data.readLong();
+        counters.ifDirection = data.readInt();
+        counters.ifStatus = data.readInt();
+        counters.inOctets = data.readLong();
+        counters.inUcastPkts = data.readUnsignedInt();
+        counters.inMulticastPkts = data.readUnsignedInt();
+        counters.inBroadcastPkts = data.readUnsignedInt();
+        counters.inDiscards = data.readUnsignedInt();
+        counters.inErrors = data.readUnsignedInt();
+        counters.inUnknownProtos = data.readUnsignedInt();
+        counters.outOctets = data.readLong();
+        counters.outUcastPkts = data.readUnsignedInt();
+        counters.outMulticastPkts = data.readUnsignedInt();
+        counters.outBroadcastPkts = data.readUnsignedInt();
+        counters.outDiscards = data.readUnsignedInt();
+        counters.outErrors = data.readUnsignedInt();
+        counters.promiscuousMode = data.readInt();
+        return counters;
+    }
+
+    /** true if the interface is administratively and operationally up. */
+    public boolean isUp() {
+        return (ifStatus & 3) == 3;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.rackspace.flewton.util.PrefixLabels;
+
+/**
+ * A record whose Flow objects are only built, using {@link #makeFlow(int)},
+ * the first time <code>flows</code> is read.  Decoders that can serve
+ * backends without Flow objects extend this to avoid creating them.
+ */
+public abstract class LazyRecord extends AbstractRecord {
+    public LazyRecord(ChannelBuffer buffer) {
+        super(buffer);
+    }
+
+    /**
+     * Replace <code>flows</code> with a list that is built on first use.
+     * 
+     * @param count number of flows in the record.
+     */
+    protected void setLazyFlows(int count) {
+        flows = new LazyFlows(count);
+    }
+
+    /**
+     * Create flow i of this record.
+     */
+    protected abstract Flow makeFlow(int i);
+
+    @Override
+    protected void labelFlows(PrefixLabels labels) {
+        // lazy flows pick up the labels when they are built.
+        if (!(flows instanceof LazyFlows))
+            super.labelFlows(labels);
+    }
+
+    // Flow objects are only created when a backend asks for them, and then all at once.
+    private class LazyFlows extends AbstractList<Flow> implements RandomAccess {
+        private final int count;
+        private volatile Flow[] materialized;
+
+        private LazyFlows(int count) {
+            this.count = count;
+        }
+
+        private Flow[] materialize() {
+            Flow[] result = materialized;
+            if (result == null) {
+                synchronized (this) {
+                    result = materialized;
+                    if (result == null) {
+                        result = new Flow[count];
+                        PrefixLabels current = getLabels();
+                        for (int i = 0; i < count; i++) {
+                            result[i] = makeFlow(i);
+                            if (current != null)
+                                label(result[i], current);
+                        }
+                        materialized = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Flow get(int index) {
+            return materialize()[index];
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * sFlow v5 datagram (http://sflow.org/sflow_version_5.txt).  Each flow sample
+ * becomes one Flow, decoded from the sampled packet's header (or from the
+ * sampled IPv4/IPv6 record when the agent sends that instead), with its
+ * packet and octet counts multiplied by the sampling rate so that it
+ * estimates the traffic the sample stands for.
+ *
+ * Generic interface counter samples are not flows; they are collected in
+ * {@link #counters} for backends implementing
+ * {@link com.rackspace.flewton.backend.ICounterBackend}.
+ *
+ * sFlow carries no wall clock time, so flows are timestamped when decoded.
+ */
+public class RecordSflowv5 extends AbstractRecord {
+    private static final Logger logger = LoggerFactory.getLogger(RecordSflowv5.class);
+    public static final int VERSION = 5;
+
+    // sample formats
+    public static final int FLOW_SAMPLE = 1;
+    public static final int COUNTER_SAMPLE = 2;
+    public static final int EXPANDED_FLOW_SAMPLE = 3;
+    public static final int EXPANDED_COUNTER_SAMPLE = 4;
+
+    // flow record formats
+    public static final int RAW_PACKET_HEADER = 1;
+    public static final int SAMPLED_IPV4 = 3;
+    public static final int SAMPLED_IPV6 = 4;
+    public static final int EXTENDED_ROUTER = 1002;
+    public static final int EXTENDED_GATEWAY = 1003;
+
+    // counter record formats
+    public static final int GENERIC_INTERFACE_COUNTERS = 1;
+
+    // raw packet header protocols
+    public static final int HEADER_ETHERNET = 1;
+    public static final int HEADER_IPV4 = 11;
+    public static final int HEADER_IPV6 = 12;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86dd;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88a8;
+    private static final int PROTO_TCP = 6;
+    private static final int PROTO_UDP = 17;
+
+    /** interface counters found in the datagram's counter samples. */
+    public List<InterfaceCounters> counters = new ArrayList<InterfaceCounters>();
+
+    private final InetAddress agent;
+    private final long subAgentId;
+    private final long sequence;
+    private final long uptime;
+    private final long receivedMillis;
+
+    /**
+     * Accepts a ChannelBuffer whose readerIndex has already been advanced past the
+     * first 16 bits, which for sFlow are the (zero) high bits of its 32 bit version.
+     *
+     * @param buffer datagram message received from ChannelHandler
+     * @throws CorruptDatagram if unable to parse a valid sFlow v5 header or sample
+     */
+    public RecordSflowv5(ChannelBuffer buffer) throws CorruptDatagram {
+        super(buffer);
+        receivedMillis = System.currentTimeMillis();
+
+        try {
+            int version = buffer.readUnsignedShort();
+            if (version != VERSION)
+                throw new CorruptDatagram("sFlow v" + version + " is not supported");
+
+            agent = readAddress(buffer);
+            if (agent == null)
+                throw new CorruptDatagram("sFlow datagram has no agent address");
+            subAgentId = buffer.readUnsignedInt();
+            sequence = buffer.readUnsignedInt();
+            uptime = buffer.readUnsignedInt();
+            long samples = buffer.readUnsignedInt();
+
+            for (long s = 0; s < samples; s++) {
+                int format = buffer.readInt();
+                int length = buffer.readInt();
+                if (length < 0 || length > buffer.readableBytes())
+                    throw new CorruptDatagram("Bad sample length: " + length);
+                ChannelBuffer sample = buffer.readSlice(length);
+
+                switch (format) {
+                    case FLOW_SAMPLE:
+                        readFlowSample(sample, false);
+                        break;
+                    case EXPANDED_FLOW_SAMPLE:
+                        readFlowSample(sample, true);
+                        break;
+                    case COUNTER_SAMPLE:
+                        readCounterSample(sample, false);
+                        break;
+                    case EXPANDED_COUNTER_SAMPLE:
+                        readCounterSample(sample, true);
+                        break;
+                    default:
+                        logger.trace("skipping sample format {}", format);
+                }
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            throw new CorruptDatagram("sFlow datagram truncated");
+        }
+    }
+
+    private void readFlowSample(ChannelBuffer sample, boolean expanded) throws CorruptDatagram {
+        sample.skipBytes(expanded ? 12 : 8); // sequence, source id
+        long rate = sample.readUnsignedInt();
+        if (rate == 0)
+            rate = 1;
+        sample.skipBytes(8); // sample pool, drops
+
+        Flow flow = new Flow();
+        if (expanded) {
+            flow.snmpIn = readExpandedInterface(sample);
+            flow.snmpOut = readExpandedInterface(sample);
+        } else {
+            flow.snmpIn = readInterface(sample);
+            flow.snmpOut = readInterface(sample);
+        }
+
+        long frameLength = 0;
+        int records = sample.readInt();
+        for (int r = 0; r < records; r++) {
+            int format = sample.readInt();
+            ChannelBuffer data = sample.readSlice(sample.readInt());
+            switch (format) {
+                case RAW_PACKET_HEADER:
+                    if (flow.sourceAddr == null)
+                        frameLength = readRawHeader(data, flow);
+                    break;
+                case SAMPLED_IPV4:
+                    if (flow.sourceAddr == null)
+                        frameLength = readSampledIp(data, flow, 4);
+                    break;
+                case SAMPLED_IPV6:
+                    if (flow.sourceAddr == null)
+                        frameLength = readSampledIp(data, flow, 16);
+                    break;
+                case EXTENDED_ROUTER:
+                    flow.nextHop = readAddress(data);
+                    break;
+                case EXTENDED_GATEWAY:
+                    readGateway(data, flow);
+                    break;
+            }
+        }
+
+        // not IP (ARP, say), or a header we couldn't make sense of.
+        if (flow.sourceAddr == null)
+            return;
+
+        if (flow.nextHop == null)
+            flow.nextHop = toAddress(new byte[flow.sourceAddr.getAddress().length]);
+        flow.numPackets = rate;
+        flow.numOctets = frameLength * rate;
+        flow.timeFirst = uptime;
+        flow.timeLast = uptime;
+        flow.timestampCalculated = receivedMillis;
+        flows.add(flow);
+    }
+
+    private void readCounterSample(ChannelBuffer sample, boolean expanded) {
+        sample.skipBytes(expanded ? 12 : 8); // sequence, source id
+        int records = sample.readInt();
+        for (int r = 0; r < records; r++) {
+            int format = sample.readInt();
+            ChannelBuffer data = sample.readSlice(sample.readInt());
+            if (format == GENERIC_INTERFACE_COUNTERS && data.readableBytes() >= InterfaceCounters.SIZE)
+                counters.add(InterfaceCounters.read(data, agent, uptime));
+        }
+    }
+
+    // compact interface: two bits of format, 30 of value; only format 0 is an ifIndex.
+    private static int readInterface(ChannelBuffer sample) {
+        int value = sample.readInt();
+        return (value >>> 30) == 0 ? value : 0;
+    }
+
+    private static int readExpandedInterface(ChannelBuffer sample) {
+        int format = sample.readInt();
+        int value = sample.readInt();
+        return format == 0 ? value : 0;
+    }
+
+    // returns the frame length
+    private static long readRawHeader(ChannelBuffer data, Flow flow) throws CorruptDatagram {
+        int protocol = data.readInt();
+        long frameLength = data.readUnsignedInt();
+        data.skipBytes(4); // stripped
+        int headerLength = data.readInt();
+        if (headerLength < 0 || headerLength > data.readableBytes())
+            throw new CorruptDatagram("Bad packet header length: " + headerLength);
+        readHeader(data.slice(data.readerIndex(), headerLength), protocol, flow);
+        return frameLength;
+    }
+
+    /**
+     * Fills in a flow's addresses, protocol, tos, ports and TCP flags from a
+     * sampled packet header, as far as the (usually truncated) header allows.
+     * Leaves sourceAddr null if the header isn't IPv4 or IPv6.
+     */
+    static void readHeader(ChannelBuffer header, int protocol, Flow flow) {
+        int limit = header.capacity();
+        int at = 0;
+        int type;
+        switch (protocol) {
+            case HEADER_ETHERNET:
+                if (limit < 14)
+                    return;
+                type = header.getUnsignedShort(12);
+                at = 14;
+                while ((type == ETHERTYPE_VLAN || type == ETHERTYPE_QINQ) && limit >= at + 4) {
+                    type = header.getUnsignedShort(at + 2);
+                    at += 4;
+                }
+                break;
+            case HEADER_IPV4:
+                type = ETHERTYPE_IPV4;
+                break;
+            case HEADER_IPV6:
+                type = ETHERTYPE_IPV6;
+                break;
+            default:
+                return;
+        }
+
+        if (type == ETHERTYPE_IPV4) {
+            if (limit - at < 20 || (header.getUnsignedByte(at) >> 4) != 4)
+                return;
+            int headerLength = (header.getUnsignedByte(at) & 0x0f) * 4;
+            flow.tos = header.getByte(at + 1);
+            boolean laterFragment = (header.getUnsignedShort(at + 6) & 0x1fff) != 0;
+            flow.protocol = header.getByte(at + 9);
+            flow.sourceAddr = getAddress(header, at + 12, 4);
+            flow.destAddr = getAddress(header, at + 16, 4);
+            // only the first fragment carries the transport header.
+            if (!laterFragment)
+                readPorts(header, at + headerLength, flow);
+        } else if (type == ETHERTYPE_IPV6) {
+            if (limit - at < 40 || (header.getUnsignedByte(at) >> 4) != 6)
+                return;
+            flow.tos = (byte)(header.getInt(at) >>> 20); // traffic class
+            int next = header.getUnsignedByte(at + 6);
+            flow.sourceAddr = getAddress(header, at + 8, 16);
+            flow.destAddr = getAddress(header, at + 24, 16);
+            at += 40;
+
+            // walk the extension headers to find the transport protocol.
+            boolean laterFragment = false;
+            while (limit - at >= 8) {
+                if (next == 0 || next == 43 || next == 60) { // hop-by-hop, routing, destination options
+                    int length = (header.getUnsignedByte(at + 1) + 1) * 8;
+                    next = header.getUnsignedByte(at);
+                    at += length;
+                } else if (next == 44) {                    // fragment
+                    laterFragment = (header.getUnsignedShort(at + 2) & 0xfff8) != 0;
+                    next = header.getUnsignedByte(at);
+                    at += 8;
+                } else
+                    break;
+            }
+            flow.protocol = (byte)next;
+            if (!laterFragment)
+                readPorts(header, at, flow);
+        }
+    }
+
+    private static void readPorts(ChannelBuffer header, int at, Flow flow) {
+        int limit = header.capacity();
+        if (flow.protocol != PROTO_TCP && flow.protocol != PROTO_UDP)
+            return;
+        if (limit - at >= 4) {
+            flow.sourcePort = header.getUnsignedShort(at);
+            flow.destPort = header.getUnsignedShort(at + 2);
+        }
+        if (flow.protocol == PROTO_TCP && limit - at >= 14)
+            flow.tcpFlags = header.getByte(at + 13);
+    }
+
+    // sampled IPv4 and IPv6 records differ only in address size (and IPv6 calls tos priority).
+    private static long readSampledIp(ChannelBuffer data, Flow flow, int addressSize) throws CorruptDatagram {
+        long length = data.readUnsignedInt();
+        flow.protocol = (byte)data.readInt();
+        flow.sourceAddr = readAddress(data, addressSize);
+        flow.destAddr = readAddress(data, addressSize);
+        flow.sourcePort = data.readInt();
+        flow.destPort = data.readInt();
+        flow.tcpFlags = (byte)data.readInt();
+        flow.tos = (byte)data.readInt();
+        return length;
+    }
+
+    private static void readGateway(ChannelBuffer data, Flow flow) throws CorruptDatagram {
+        InetAddress nextHop = readAddress(data);
+        if (nextHop != null)
+            flow.nextHop = nextHop;
+        int routerAS = data.readInt();
+        flow.sourceAS = data.readInt();
+        data.skipBytes(4); // source peer AS
+        // the destination AS is the last one on the path; an empty path means it is ours.
+        flow.destAS = routerAS;
+        int segments = data.readInt();
+        for (int s = 0; s < segments; s++) {
+            data.skipBytes(4); // segment type
+            int length = data.readInt();
+            if (length < 0 || length > data.readableBytes() / 4)
+                throw new CorruptDatagram("Bad AS path segment length: " + length);
+            if (length > 0) {
+                data.skipBytes((length - 1) * 4);
+                flow.destAS = data.readInt();
+            }
+        }
+    }
+
+    // an address preceded by its type: 1 for IPv4, 2 for IPv6.  null if unknown.
+    private static InetAddress readAddress(ChannelBuffer buffer) throws CorruptDatagram {
+        int type = buffer.readInt();
+        switch (type) {
+            case 0:
+                return null;
+            case 1:
+                return readAddress(buffer, 4);
+            case 2:
+                return readAddress(buffer, 16);
+            default:
+                throw new CorruptDatagram("Unknown address type: " + type);
+        }
+    }
+
+    private static InetAddress readAddress(ChannelBuffer buffer, int size) {
+        InetAddress address = getAddress(buffer, buffer.readerIndex(), size);
+        buffer.skipBytes(size);
+        return address;
+    }
+
+    private static InetAddress getAddress(ChannelBuffer buffer, int at, int size) {
+        byte[] bytes = new byte[size];
+        buffer.getBytes(at, bytes);
+        return toAddress(bytes);
+    }
+
+    private static InetAddress toAddress(byte[] bytes) {
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException ex) {
+            // only thrown for lengths other than 4 and 16.
+            throw new AssertionError(ex);
+        }
+    }
+
+    /** address of the switch or router that sent the datagram. */
+    public InetAddress getAgent() {
+        return agent;
+    }
+
+    public long getSubAgentId() {
+        return subAgentId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /** agent uptime, in milliseconds. */
+    public long getUptime() {
+        return uptime;
+    }
+}
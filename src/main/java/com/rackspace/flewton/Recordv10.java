@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * IPFIX (Netflow v10, RFC 7011) message.  Handled like {@link Recordv9}, with
+ * templates cached per exporter and observation domain, plus IPFIX's
+ * variable-length and enterprise-specific information elements; the latter
+ * are skipped over, but never decoded.
+ */
+public class Recordv10 extends AbstractTemplateRecord {
+    public static final int HEADER_SIZE = 16;
+    public static final int TEMPLATE_SET = 2;
+    public static final int OPTIONS_TEMPLATE_SET = 3;
+    public static final int MIN_DATA_SET = 256;
+    private static final int ENTERPRISE_BIT = 0x8000;
+
+    private final long millisSinceEpoch;
+    private final long sequence;
+    private final long observationDomain;
+
+    /**
+     * Accepts a ChannelBuffer whose readerIndex has already been advanced past the
+     * version found at the front of all Netflow headers.
+     *
+     * @param buffer datagram message received from ChannelHandler
+     * @param exporter address the datagram came from
+     * @param templates template cache shared by all IPFIX records
+     * @throws CorruptDatagram if unable to parse a valid IPFIX header or set
+     */
+    public Recordv10(ChannelBuffer buffer, InetAddress exporter, TemplateCache templates) throws CorruptDatagram {
+        super(buffer);
+
+        if (buffer.readableBytes() < (HEADER_SIZE-2))
+            throw new CorruptDatagram("Insufficent data to parse IPFIX header");
+
+        int length = buffer.readUnsignedShort();
+        // a message longer than what we received was truncated on the way in.
+        if (length < HEADER_SIZE || length - 4 > buffer.readableBytes())
+            throw new CorruptDatagram("IPFIX message length " + length + " doesn't match datagram");
+        millisSinceEpoch = buffer.readUnsignedInt() * 1000;
+        sequence = buffer.readUnsignedInt();
+        observationDomain = buffer.readUnsignedInt();
+        int end = buffer.readerIndex() + length - HEADER_SIZE;
+
+        while (end - buffer.readerIndex() >= 4) {
+            int start = buffer.readerIndex();
+            int id = buffer.getUnsignedShort(start);
+            int setLength = buffer.getUnsignedShort(start + 2);
+            if (setLength < 4 || start + setLength > end)
+                throw new CorruptDatagram("Bad set length: " + setLength);
+            ChannelBuffer set = buffer.slice(start + 4, setLength - 4);
+            buffer.skipBytes(setLength);
+
+            if (id == TEMPLATE_SET)
+                readTemplates(set, exporter, templates, false);
+            else if (id == OPTIONS_TEMPLATE_SET)
+                readTemplates(set, exporter, templates, true);
+            else if (id >= MIN_DATA_SET) {
+                Template template = templates.get(exporter, observationDomain, id);
+                if (template == null)
+                    templates.defer(exporter, observationDomain, id, set, Template.UNKNOWN_BOOT, millisSinceEpoch);
+                else
+                    addDataSet(template, set, Template.UNKNOWN_BOOT, millisSinceEpoch);
+            }
+            // set ids 0, 1 and 4-255 are reserved.
+        }
+
+        finish();
+    }
+
+    private void readTemplates(ChannelBuffer set, InetAddress exporter, TemplateCache templates, boolean options)
+    throws CorruptDatagram {
+        // withdrawals are just an id and a zero field count, even in options template sets.
+        while (set.readableBytes() >= 4) {
+            int templateId = set.readUnsignedShort();
+            int fieldCount = set.readUnsignedShort();
+            if (fieldCount == 0 && (templateId == TEMPLATE_SET || templateId == OPTIONS_TEMPLATE_SET)) {
+                // withdraws every (options) template of the observation domain.
+                templates.removeAll(exporter, observationDomain, templateId == OPTIONS_TEMPLATE_SET);
+                continue;
+            }
+            // padding is all zeros, and zero isn't a valid template id.
+            if (templateId < MIN_DATA_SET)
+                break;
+            if (fieldCount == 0) {
+                templates.remove(exporter, observationDomain, templateId);
+                continue;
+            }
+            if (options) {
+                if (set.readableBytes() < 2)
+                    throw new CorruptDatagram("Template " + templateId + " truncated");
+                set.skipBytes(2); // scope field count; scope fields are just fields to us.
+            }
+
+            int[] types = new int[fieldCount];
+            int[] lengths = new int[fieldCount];
+            for (int f = 0; f < fieldCount; f++) {
+                if (set.readableBytes() < 4)
+                    throw new CorruptDatagram("Template " + templateId + " truncated");
+                int type = set.readUnsignedShort();
+                lengths[f] = set.readUnsignedShort();
+                if ((type & ENTERPRISE_BIT) != 0) {
+                    // enterprise-specific; the number that scopes it follows.
+                    if (set.readableBytes() < 4)
+                        throw new CorruptDatagram("Template " + templateId + " truncated");
+                    set.skipBytes(4);
+                    types[f] = Template.UNKNOWN_TYPE;
+                } else
+                    types[f] = type;
+            }
+            storeTemplate(new Template(templateId, types, lengths, options), exporter, observationDomain, templates);
+        }
+    }
+
+    /** export time, in milliseconds since the epoch. */
+    public long getExportMillis() {
+        return millisSinceEpoch;
+    }
+
+    /** sequence number: the number of data records sent before this message. */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getObservationDomain() {
+        return observationDomain;
+    }
+}
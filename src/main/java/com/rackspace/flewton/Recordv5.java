@@ -29,96 +29,264 @@
 
 package com.rackspace.flewton;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class Recordv5 extends AbstractRecord {
+import com.rackspace.flewton.util.HostResolver;
+
+/**
+ * Netflow v5 record.  Flow fields are read in place from the received buffer
+ * using the indexed accessors (e.g. {@link #getSourceIPv4(int)}), so decoding
+ * allocates nothing per flow.  The <code>flows</code> list is only built, with
+ * its <code>InetAddress</code>es, the first time a backend touches it.
+ *
+ * If the exporter samples, packet and octet counts are multiplied by the
+ * sampling interval, so that they estimate the traffic actually seen.
+ */
+public class Recordv5 extends LazyRecord {
     private static final Logger logger = LoggerFactory.getLogger(Recordv5.class);
     public static final int HEADER_SIZE = 24;
     public static final int FLOW_SIZE = 48;
+    // sampling_interval: two bits of sampling mode, 14 of interval.
+    private static final int SAMPLING_INTERVAL_MASK = 0x3fff;
+
+    // flow field offsets, relative to the start of each flow.
+    private static final int SRC_ADDR = 0;
+    private static final int DST_ADDR = 4;
+    private static final int NEXT_HOP = 8;
+    private static final int SNMP_IN = 12;
+    private static final int SNMP_OUT = 14;
+    private static final int PACKETS = 16;
+    private static final int OCTETS = 20;
+    private static final int FIRST = 24;
+    private static final int LAST = 28;
+    private static final int SRC_PORT = 32;
+    private static final int DST_PORT = 34;
+    private static final int TCP_FLAGS = 37;
+    private static final int PROTOCOL = 38;
+    private static final int TOS = 39;
+    private static final int SRC_AS = 40;
+    private static final int DST_AS = 42;
+
+    private final ChannelBuffer buffer;
+    private final int flowsOffset;
+    private final int count;
+    private final long sysUptime;
+    private final long millisSinceEpoch;
+    private final long flowSequence;
+    private final int engineType;
+    private final int engineId;
+    private final int samplingMode;
+    private final int samplingInterval;
+    // what packet and octet counts are multiplied by.
+    private final long scale;
 
     /**
      * Accepts a ChannelBuffer whose readerIndex has already been advanced past the
      * one byte version found at the front of all Netflow headers.
-     * 
+     *
      * @param buffer datagram message received from ChannelHandler
      * @throws CorruptDatagram if unable to parse a valie v5 header
      */
     public Recordv5(ChannelBuffer buffer) throws CorruptDatagram {
         super(buffer);
-        
-        ChannelBuffer header = getHeader(buffer);
-        int count = header.readUnsignedShort();
-        long sys_uptime = header.readUnsignedInt();
+
+        // Netflow v5 headers are 24 bytes (22 after the version).
+        if (buffer.readableBytes() < (HEADER_SIZE-2))
+            throw new CorruptDatagram("Insufficent data to parse Netflow header");
+
+        int header = buffer.readerIndex();
+        int announced = buffer.getUnsignedShort(header);
+        sysUptime = buffer.getUnsignedInt(header + 2);
         // unix_secs + unix_nsecs (converted to millis)
-        long millisSinceEpoch = (readLong(4, header) * 1000) + (readLong(4, header) / 1000000);
-  
-        for (int i = 1; i <= count; i++) {
-            ChannelBuffer flowData;
-            try {
-                flowData = getFlow(buffer);
-            } catch (CorruptDatagram err) {
-                logger.error("Datagram truncated at flow {} of {}.", i, count);
-                break;
-            }
-            
-            Flow flow = new Flow();
-            
-            try {
-                flow.sourceAddr = InetAddress.getByAddress(flowData.readBytes(4).array());
-                flow.destAddr = InetAddress.getByAddress(flowData.readBytes(4).array());
-                flow.nextHop = InetAddress.getByAddress(flowData.readBytes(4).array());
-            } catch (UnknownHostException e) {
-                // This should never happen; 4 bytes will always be legal IPv4.
-                throw new RuntimeException("Failed parsing IPv4 address!", e);
-            }
-            flow.snmpIn = flowData.readUnsignedShort();
-            flow.snmpOut = flowData.readUnsignedShort();
-            flow.numPackets = flowData.readUnsignedInt();
-            flow.numOctets = flowData.readUnsignedInt();
-            flow.timeFirst = flowData.readUnsignedInt();
-            flow.timeLast = flowData.readUnsignedInt();
-            flow.sourcePort = flowData.readUnsignedShort();;
-            flow.destPort = flowData.readUnsignedShort();
-            flow.tcpFlags = flowData.readByte();
-            flow.protocol = flowData.readByte();
-            flow.tos = flowData.readByte();
-            flow.sourceAS = flowData.readUnsignedShort();
-            flow.destAS = flowData.readUnsignedShort();
-            flow.timestampCalculated = millisSinceEpoch + (flow.timeLast - sys_uptime);
-            
-            flows.add(flow);
+        millisSinceEpoch = (buffer.getUnsignedInt(header + 6) * 1000) + (buffer.getUnsignedInt(header + 10) / 1000000);
+        flowSequence = buffer.getUnsignedInt(header + 14);
+        engineType = buffer.getUnsignedByte(header + 18);
+        engineId = buffer.getUnsignedByte(header + 19);
+        int sampling = buffer.getUnsignedShort(header + 20);
+        samplingMode = sampling >>> 14;
+        samplingInterval = sampling & SAMPLING_INTERVAL_MASK;
+        // some exporters leave the mode unset, so go by the interval alone.
+        scale = samplingInterval > 1 ? samplingInterval : 1;
+
+        // Netflow v5 flow records are 48 bytes each.
+        int available = (buffer.readableBytes() - (HEADER_SIZE-2)) / FLOW_SIZE;
+        if (available < announced) {
+            logger.error("Datagram truncated at flow {} of {}.", available + 1, announced);
+            announced = available;
         }
+
+        this.buffer = buffer;
+        this.flowsOffset = header + (HEADER_SIZE-2);
+        this.count = announced;
+        setLazyFlows(count);
+
+        buffer.skipBytes((HEADER_SIZE-2) + count * FLOW_SIZE);
     }
-    
-    // reads n bytes and treats it as a long. this basically gives us a wasteful unsigned integer (when reading 4 bytes).
-    private static long readLong(int n, ChannelBuffer buff) {
-        assert n < 8;
-        long l = 0;
-        for (int i = 0; i < n; i++)
-        {
-            l <<= 8;
-            l |= (0x00000000000000FF & buff.readByte());
-        }
-        return l;
+
+    /** number of (complete) flows in this record. */
+    public int getFlowCount() {
+        return count;
     }
-    
-    // Netflow v5 headers are 24 bytes (22 after the version).
-    private static ChannelBuffer getHeader(ChannelBuffer buff) throws CorruptDatagram {
-        if (buff.readableBytes() < (HEADER_SIZE-2))
-            throw new CorruptDatagram("Insufficent data to parse Netflow header");
-        return buff.readBytes((HEADER_SIZE-2));
+
+    public long getSysUptime() {
+        return sysUptime;
+    }
+
+    /** export time, in milliseconds since the epoch. */
+    public long getExportMillis() {
+        return millisSinceEpoch;
+    }
+
+    /** number of flows the exporter sent before this record; gaps mean lost datagrams. */
+    public long getFlowSequence() {
+        return flowSequence;
+    }
+
+    /** type of flow switching engine (e.g. route processor or line card). */
+    public int getEngineType() {
+        return engineType;
+    }
+
+    /** slot number of the flow switching engine that exported this record. */
+    public int getEngineId() {
+        return engineId;
+    }
+
+    /** 0 if not sampling, 1 for deterministic (one in N) and 2 for random sampling. */
+    public int getSamplingMode() {
+        return samplingMode;
+    }
+
+    /** one packet in this many is sampled; 0 or 1 if not sampling. */
+    public int getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    public int getSourceIPv4(int i) {
+        return buffer.getInt(offset(i) + SRC_ADDR);
+    }
+
+    public int getDestIPv4(int i) {
+        return buffer.getInt(offset(i) + DST_ADDR);
+    }
+
+    public int getNextHopIPv4(int i) {
+        return buffer.getInt(offset(i) + NEXT_HOP);
     }
-    
-    // Netflow v5 flow records are 48 bytes each.
-    private static ChannelBuffer getFlow(ChannelBuffer buff) throws CorruptDatagram {
-        if (buff.readableBytes() < FLOW_SIZE)
-            throw new CorruptDatagram();
-        return buff.readBytes(FLOW_SIZE);
+
+    public int getSnmpIn(int i) {
+        return buffer.getUnsignedShort(offset(i) + SNMP_IN);
+    }
+
+    public int getSnmpOut(int i) {
+        return buffer.getUnsignedShort(offset(i) + SNMP_OUT);
+    }
+
+    /** packets, scaled by the sampling interval. */
+    public long getNumPackets(int i) {
+        return buffer.getUnsignedInt(offset(i) + PACKETS) * scale;
+    }
+
+    /** octets, scaled by the sampling interval. */
+    public long getNumOctets(int i) {
+        return buffer.getUnsignedInt(offset(i) + OCTETS) * scale;
+    }
+
+    public long getTimeFirst(int i) {
+        return buffer.getUnsignedInt(offset(i) + FIRST);
+    }
+
+    public long getTimeLast(int i) {
+        return buffer.getUnsignedInt(offset(i) + LAST);
+    }
+
+    public int getSourcePort(int i) {
+        return buffer.getUnsignedShort(offset(i) + SRC_PORT);
+    }
+
+    public int getDestPort(int i) {
+        return buffer.getUnsignedShort(offset(i) + DST_PORT);
+    }
+
+    public byte getTcpFlags(int i) {
+        return buffer.getByte(offset(i) + TCP_FLAGS);
     }
 
+    public byte getProtocol(int i) {
+        return buffer.getByte(offset(i) + PROTOCOL);
+    }
+
+    public byte getTos(int i) {
+        return buffer.getByte(offset(i) + TOS);
+    }
+
+    public int getSourceAS(int i) {
+        return buffer.getUnsignedShort(offset(i) + SRC_AS);
+    }
+
+    public int getDestAS(int i) {
+        return buffer.getUnsignedShort(offset(i) + DST_AS);
+    }
+
+    /** flow end time, in milliseconds since the epoch. */
+    public long getTimestamp(int i) {
+        return millisSinceEpoch + (getTimeLast(i) - sysUptime);
+    }
+
+    /** copies every flow straight from the datagram into the batch's columns. */
+    @Override
+    protected void appendFlows(FlowBatch batch) {
+        batch.ensureCapacity(count);
+        for (int i = 0, offset = flowsOffset; i < count; i++, offset += FLOW_SIZE) {
+            int row = batch.add();
+            long timeLast = buffer.getUnsignedInt(offset + LAST);
+            batch.setIPv4(row, buffer.getInt(offset + SRC_ADDR), buffer.getInt(offset + DST_ADDR));
+            batch.nextHop[row] = buffer.getInt(offset + NEXT_HOP);
+            batch.snmpIn[row] = buffer.getUnsignedShort(offset + SNMP_IN);
+            batch.snmpOut[row] = buffer.getUnsignedShort(offset + SNMP_OUT);
+            batch.numPackets[row] = buffer.getUnsignedInt(offset + PACKETS) * scale;
+            batch.numOctets[row] = buffer.getUnsignedInt(offset + OCTETS) * scale;
+            batch.timeFirst[row] = buffer.getUnsignedInt(offset + FIRST);
+            batch.timeLast[row] = timeLast;
+            batch.sourcePort[row] = buffer.getUnsignedShort(offset + SRC_PORT);
+            batch.destPort[row] = buffer.getUnsignedShort(offset + DST_PORT);
+            batch.tcpFlags[row] = buffer.getByte(offset + TCP_FLAGS);
+            batch.protocol[row] = buffer.getByte(offset + PROTOCOL);
+            batch.tos[row] = buffer.getByte(offset + TOS);
+            batch.sourceAS[row] = buffer.getUnsignedShort(offset + SRC_AS);
+            batch.destAS[row] = buffer.getUnsignedShort(offset + DST_AS);
+            batch.timestampCalculated[row] = millisSinceEpoch + (timeLast - sysUptime);
+        }
+    }
+
+    private int offset(int i) {
+        if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException("flow " + i + " of " + count);
+        return flowsOffset + i * FLOW_SIZE;
+    }
+
+    @Override
+    protected Flow makeFlow(int i) {
+        Flow flow = new Flow();
+        flow.sourceAddr = HostResolver.int2InetAddress(getSourceIPv4(i));
+        flow.destAddr = HostResolver.int2InetAddress(getDestIPv4(i));
+        flow.nextHop = HostResolver.int2InetAddress(getNextHopIPv4(i));
+        flow.snmpIn = getSnmpIn(i);
+        flow.snmpOut = getSnmpOut(i);
+        flow.numPackets = getNumPackets(i);
+        flow.numOctets = getNumOctets(i);
+        flow.timeFirst = getTimeFirst(i);
+        flow.timeLast = getTimeLast(i);
+        flow.sourcePort = getSourcePort(i);
+        flow.destPort = getDestPort(i);
+        flow.tcpFlags = getTcpFlags(i);
+        flow.protocol = getProtocol(i);
+        flow.tos = getTos(i);
+        flow.sourceAS = getSourceAS(i);
+        flow.destAS = getDestAS(i);
+        flow.timestampCalculated = getTimestamp(i);
+        return flow;
+    }
 }
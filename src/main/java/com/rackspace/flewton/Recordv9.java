@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Netflow v9 record (RFC 3954).  Templates are compiled and cached per
+ * exporter and source id as they arrive; data flowsets are decoded in place
+ * using the cached plan, or held in the cache until their template arrives.
+ */
+public class Recordv9 extends AbstractTemplateRecord {
+    public static final int HEADER_SIZE = 20;
+    public static final int TEMPLATE_FLOWSET = 0;
+    public static final int OPTIONS_FLOWSET = 1;
+    public static final int MIN_DATA_FLOWSET = 256;
+
+    private final long sysUptime;
+    private final long millisSinceEpoch;
+    private final long sequence;
+    private final long sourceId;
+
+    /**
+     * Accepts a ChannelBuffer whose readerIndex has already been advanced past the
+     * version found at the front of all Netflow headers.
+     *
+     * @param buffer datagram message received from ChannelHandler
+     * @param exporter address the datagram came from
+     * @param templates template cache shared by all v9 records
+     * @throws CorruptDatagram if unable to parse a valid v9 header or flowset
+     */
+    public Recordv9(ChannelBuffer buffer, InetAddress exporter, TemplateCache templates) throws CorruptDatagram {
+        super(buffer);
+
+        if (buffer.readableBytes() < (HEADER_SIZE-2))
+            throw new CorruptDatagram("Insufficent data to parse Netflow header");
+
+        buffer.skipBytes(2); // count; covers templates as well as flows, so we go by flowset lengths.
+        sysUptime = buffer.readUnsignedInt();
+        millisSinceEpoch = buffer.readUnsignedInt() * 1000;
+        sequence = buffer.readUnsignedInt();
+        sourceId = buffer.readUnsignedInt();
+        long bootMillis = millisSinceEpoch - sysUptime;
+
+        while (buffer.readableBytes() >= 4) {
+            int start = buffer.readerIndex();
+            int id = buffer.getUnsignedShort(start);
+            int length = buffer.getUnsignedShort(start + 2);
+            if (length < 4 || length > buffer.readableBytes())
+                throw new CorruptDatagram("Bad flowset length: " + length);
+            ChannelBuffer flowSet = buffer.slice(start + 4, length - 4);
+            buffer.skipBytes(length);
+
+            if (id == TEMPLATE_FLOWSET)
+                readTemplates(flowSet, exporter, templates);
+            else if (id == OPTIONS_FLOWSET)
+                readOptionsTemplates(flowSet, exporter, templates);
+            else if (id >= MIN_DATA_FLOWSET) {
+                Template template = templates.get(exporter, sourceId, id);
+                if (template == null)
+                    templates.defer(exporter, sourceId, id, flowSet, bootMillis, millisSinceEpoch);
+                else
+                    addDataSet(template, flowSet, bootMillis, millisSinceEpoch);
+            }
+            // flowset ids 2-255 are reserved.
+        }
+
+        finish();
+    }
+
+    private void readTemplates(ChannelBuffer flowSet, InetAddress exporter, TemplateCache templates) throws CorruptDatagram {
+        while (flowSet.readableBytes() >= 4) {
+            int templateId = flowSet.readUnsignedShort();
+            int fieldCount = flowSet.readUnsignedShort();
+            if (flowSet.readableBytes() < fieldCount * 4)
+                throw new CorruptDatagram("Template " + templateId + " truncated");
+            int[] types = new int[fieldCount];
+            int[] lengths = new int[fieldCount];
+            for (int f = 0; f < fieldCount; f++) {
+                types[f] = flowSet.readUnsignedShort();
+                lengths[f] = flowSet.readUnsignedShort();
+            }
+            storeTemplate(new Template(templateId, types, lengths, false), exporter, sourceId, templates);
+        }
+    }
+
+    private void readOptionsTemplates(ChannelBuffer flowSet, InetAddress exporter, TemplateCache templates) throws CorruptDatagram {
+        // anything shorter than a header is padding.
+        while (flowSet.readableBytes() >= 6) {
+            int templateId = flowSet.readUnsignedShort();
+            int scopeLength = flowSet.readUnsignedShort();
+            int optionLength = flowSet.readUnsignedShort();
+            if (flowSet.readableBytes() < scopeLength + optionLength)
+                throw new CorruptDatagram("Options template " + templateId + " truncated");
+            int fieldCount = (scopeLength + optionLength) / 4;
+            int[] types = new int[fieldCount];
+            int[] lengths = new int[fieldCount];
+            for (int f = 0; f < fieldCount; f++) {
+                types[f] = flowSet.readUnsignedShort();
+                lengths[f] = flowSet.readUnsignedShort();
+            }
+            flowSet.skipBytes((scopeLength + optionLength) % 4);
+            storeTemplate(new Template(templateId, types, lengths, true), exporter, sourceId, templates);
+        }
+    }
+
+    public long getSysUptime() {
+        return sysUptime;
+    }
+
+    /** export time, in milliseconds since the epoch. */
+    public long getExportMillis() {
+        return millisSinceEpoch;
+    }
+
+    /** sequence number of this export packet. */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getSourceId() {
+        return sourceId;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The next flow sequence number expected from each exporter (address and
+ * engine), from which we count flows lost between the exporter and us.  A gap
+ * in the sequence means lost datagrams.  A record that arrives behind the
+ * expected number is taken back off the lost count only if it fills a gap
+ * we counted; otherwise it is a duplicate if it is only a little behind, or a
+ * sign the exporter restarted (and we start following it again) if further.
+ * Each exporter's state is only locked by updates for that exporter.
+ */
+public class SequenceTracker {
+    private static final Logger logger = LoggerFactory.getLogger(SequenceTracker.class);
+    // how often (in lost flows) we complain about loss.
+    private static final long LOSS_LOG_INTERVAL = 10000;
+    // a record at most this many flows behind, filling no gap, is a duplicate; further behind is a restart.
+    private static final long DUPLICATE_WINDOW = 1000;
+    // most unfilled gaps remembered per exporter; older ones can no longer be filled.
+    private static final int MAX_GAPS = 16;
+    private static final long SEQUENCE_MASK = 0xffffffffL;
+    private static final long UNKNOWN = -1;
+
+    private final ConcurrentMap<Key, Exporter> exporters = new ConcurrentHashMap<Key, Exporter>();
+    private final AtomicLong receivedFlows = new AtomicLong(0);
+    private final AtomicLong lostFlows = new AtomicLong(0);
+    private final AtomicLong lateRecords = new AtomicLong(0);
+    private final AtomicLong duplicateRecords = new AtomicLong(0);
+
+    /**
+     * accounts for a record.
+     *
+     * @param exporter address the record came from
+     * @param engine identifies one of several exporters (e.g. v5 engine type and id) behind an address
+     * @param sequence the record's (32 bit) sequence number: flows sent before it
+     * @param count the number of flows in the record
+     * @return the number of flows lost just before this record
+     */
+    public long update(InetAddress exporter, int engine, long sequence, int count) {
+        Exporter state = exporter(new Key(exporter, engine));
+        long next = (sequence + count) & SEQUENCE_MASK;
+        receivedFlows.addAndGet(count);
+
+        long gap;
+        synchronized (state) {
+            if (state.next == UNKNOWN) {
+                state.next = next;
+                return 0;
+            }
+            gap = (sequence - state.next) & SEQUENCE_MASK;
+            if (gap <= SEQUENCE_MASK / 2) {
+                if (gap > 0) {
+                    state.addGap(state.next, gap);
+                    state.lost += gap;
+                }
+                state.next = next;
+            } else if (state.fill(sequence, count)) {
+                // overtaken by a later record, which counted this one as lost.
+                state.lost -= count;
+                lostFlows.addAndGet(-count);
+                lateRecords.incrementAndGet();
+                return 0;
+            } else if (SEQUENCE_MASK + 1 - gap <= DUPLICATE_WINDOW) {
+                duplicateRecords.incrementAndGet();
+                return 0;
+            } else {
+                state.next = next;
+                state.gaps = 0;
+                logger.info("Sequence numbers from {} (engine {}) restarted", exporter, engine);
+                return 0;
+            }
+        }
+
+        if (gap > 0) {
+            long lost = lostFlows.addAndGet(gap);
+            if ((lost - gap) / LOSS_LOG_INTERVAL != lost / LOSS_LOG_INTERVAL || lost == gap)
+                logger.warn("{} flows lost in transit so far (latest from {})", lost, exporter);
+        }
+        return gap;
+    }
+
+    private Exporter exporter(Key key) {
+        Exporter state = exporters.get(key);
+        if (state == null) {
+            Exporter created = new Exporter();
+            state = exporters.putIfAbsent(key, created);
+            if (state == null)
+                state = created;
+        }
+        return state;
+    }
+
+    /** flows received from all exporters. */
+    public long getReceivedFlows() {
+        return receivedFlows.get();
+    }
+
+    /** flows lost from all exporters. */
+    public long getLostFlows() {
+        return lostFlows.get();
+    }
+
+    /** flows lost from one exporter, or -1 if we haven't heard from it. */
+    public long getLostFlows(InetAddress exporter, int engine) {
+        Exporter state = exporters.get(new Key(exporter, engine));
+        if (state == null)
+            return -1;
+        synchronized (state) {
+            return state.lost;
+        }
+    }
+
+    /** records that arrived after one sent later. */
+    public long getLateRecords() {
+        return lateRecords.get();
+    }
+
+    /** records received more than once. */
+    public long getDuplicateRecords() {
+        return duplicateRecords.get();
+    }
+
+    /** forgets all exporters and zeroes the counters. */
+    public void clear() {
+        exporters.clear();
+        receivedFlows.set(0);
+        lostFlows.set(0);
+        lateRecords.set(0);
+        duplicateRecords.set(0);
+    }
+
+    // guarded by its own monitor.
+    private static class Exporter {
+        private long next = UNKNOWN;
+        private long lost = 0;
+        // gaps counted as lost and not yet filled, oldest first: first missing sequence number, and length.
+        private final long[] gapStarts = new long[MAX_GAPS];
+        private final long[] gapLengths = new long[MAX_GAPS];
+        private int gaps = 0;
+
+        private void addGap(long start, long length) {
+            if (gaps == MAX_GAPS)
+                removeGap(0);
+            gapStarts[gaps] = start;
+            gapLengths[gaps] = length;
+            gaps++;
+        }
+
+        private void removeGap(int g) {
+            System.arraycopy(gapStarts, g + 1, gapStarts, g, gaps - g - 1);
+            System.arraycopy(gapLengths, g + 1, gapLengths, g, gaps - g - 1);
+            gaps--;
+        }
+
+        // takes the record out of the gap it falls within; false if there is none.
+        private boolean fill(long sequence, long count) {
+            for (int g = 0; g < gaps; g++) {
+                long offset = (sequence - gapStarts[g]) & SEQUENCE_MASK;
+                long length = gapLengths[g];
+                if (offset + count > length)
+                    continue;
+                if (offset == 0) {
+                    gapStarts[g] = (gapStarts[g] + count) & SEQUENCE_MASK;
+                    gapLengths[g] -= count;
+                } else if (offset + count == length) {
+                    gapLengths[g] -= count;
+                } else {
+                    // splits the gap in two.
+                    gapLengths[g] = offset;
+                    addGap((sequence + count) & SEQUENCE_MASK, length - offset - count);
+                }
+                if (gapLengths[g] == 0)
+                    removeGap(g);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Key {
+        private final InetAddress exporter;
+        private final int engine;
+
+        private Key(InetAddress exporter, int engine) {
+            this.exporter = exporter;
+            this.engine = engine;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key)obj;
+            return engine == other.engine && exporter.equals(other.exporter);
+        }
+
+        @Override
+        public int hashCode() {
+            return exporter.hashCode() * 31 + engine;
+        }
+    }
+}
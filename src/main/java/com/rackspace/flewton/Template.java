@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * A Netflow v9 or IPFIX template, compiled into a flat decoding plan.  Each field
+ * of the template is resolved once, when the template arrives, to the Flow column
+ * it fills, its length and its offset within a data record; decoding a data record
+ * is then a single pass over those arrays.
+ *
+ * Templates with variable-length (IPFIX) fields can't know offsets up front; for
+ * those, {@link #locate} walks a record once to find its decoded fields.
+ */
+public class Template {
+    // columns a field can be decoded into.
+    static final int SKIP = 0;
+    static final int SRC_ADDR = 1;
+    static final int DST_ADDR = 2;
+    static final int NEXT_HOP = 3;
+    static final int SNMP_IN = 4;
+    static final int SNMP_OUT = 5;
+    static final int PACKETS = 6;
+    static final int OCTETS = 7;
+    static final int FIRST = 8;
+    static final int LAST = 9;
+    static final int SRC_PORT = 10;
+    static final int DST_PORT = 11;
+    static final int TCP_FLAGS = 12;
+    static final int PROTOCOL = 13;
+    static final int TOS = 14;
+    static final int SRC_AS = 15;
+    static final int DST_AS = 16;
+    static final int SRC_ADDR6 = 17;
+    static final int DST_ADDR6 = 18;
+    static final int NEXT_HOP6 = 19;
+    static final int FIRST_SECS = 20;
+    static final int LAST_SECS = 21;
+    static final int FIRST_MILLIS = 22;
+    static final int LAST_MILLIS = 23;
+    static final int SYS_INIT = 24;
+
+    /** field length used by IPFIX for variable-length fields. */
+    public static final int VARIABLE_LENGTH = 65535;
+    /** field type to use for fields that should never be decoded (e.g. enterprise-specific ones). */
+    public static final int UNKNOWN_TYPE = -1;
+    /** boot time to pass when the exporter's uptime clock can't be placed. */
+    public static final long UNKNOWN_BOOT = Long.MIN_VALUE;
+
+    // how the flow's end time is expressed.
+    private static final int END_NONE = 0;
+    private static final int END_UPTIME = 1;
+    private static final int END_ABSOLUTE = 2;
+
+    // field type (Netflow v9 / IPFIX information element id) -> column.
+    private static final int[] COLUMNS = new int[256];
+
+    static {
+        COLUMNS[1] = OCTETS;      // IN_BYTES
+        COLUMNS[2] = PACKETS;     // IN_PKTS
+        COLUMNS[4] = PROTOCOL;
+        COLUMNS[5] = TOS;         // SRC_TOS
+        COLUMNS[6] = TCP_FLAGS;
+        COLUMNS[7] = SRC_PORT;    // L4_SRC_PORT
+        COLUMNS[8] = SRC_ADDR;    // IPV4_SRC_ADDR
+        COLUMNS[10] = SNMP_IN;    // INPUT_SNMP
+        COLUMNS[11] = DST_PORT;   // L4_DST_PORT
+        COLUMNS[12] = DST_ADDR;   // IPV4_DST_ADDR
+        COLUMNS[14] = SNMP_OUT;   // OUTPUT_SNMP
+        COLUMNS[15] = NEXT_HOP;   // IPV4_NEXT_HOP
+        COLUMNS[16] = SRC_AS;
+        COLUMNS[17] = DST_AS;
+        COLUMNS[21] = LAST;       // LAST_SWITCHED
+        COLUMNS[22] = FIRST;      // FIRST_SWITCHED
+        COLUMNS[27] = SRC_ADDR6;  // IPV6_SRC_ADDR
+        COLUMNS[28] = DST_ADDR6;  // IPV6_DST_ADDR
+        COLUMNS[62] = NEXT_HOP6;  // IPV6_NEXT_HOP
+        COLUMNS[150] = FIRST_SECS;   // flowStartSeconds
+        COLUMNS[151] = LAST_SECS;    // flowEndSeconds
+        COLUMNS[152] = FIRST_MILLIS; // flowStartMilliseconds
+        COLUMNS[153] = LAST_MILLIS;  // flowEndMilliseconds
+        COLUMNS[160] = SYS_INIT;     // systemInitTimeMilliseconds
+    }
+
+    private final int id;
+    private final boolean options;
+    private final boolean flows;
+    private final boolean ipv6;
+    private final int endClock;
+    // the plan: one entry per field that is decoded (skipped fields are dropped).
+    private final int[] columns;
+    private final int[] offsets;
+    private final int[] lengths;
+    // fixed templates have a known record length; variable ones a known minimum.
+    private final boolean fixed;
+    private final int recordLength;
+    // variable templates only: every field's length, and its plan entry (or -1).
+    private final int[] fieldLengths;
+    private final int[] fieldPlan;
+
+    /**
+     * @param id template id
+     * @param types field types, in the order they appear in data records
+     * @param lengths field lengths, in bytes, or VARIABLE_LENGTH
+     * @param options true for an options template, whose data records are not flows
+     */
+    public Template(int id, int[] types, int[] lengths, boolean options) {
+        this.id = id;
+        this.options = options;
+
+        int decoded = 0;
+        boolean variable = false;
+        int[] cols = new int[types.length];
+        for (int f = 0; f < types.length; f++) {
+            cols[f] = options ? SKIP : column(types[f], lengths[f]);
+            if (cols[f] != SKIP)
+                decoded++;
+            variable |= lengths[f] == VARIABLE_LENGTH;
+        }
+
+        this.columns = new int[decoded];
+        this.offsets = new int[decoded];
+        this.lengths = new int[decoded];
+        this.fieldPlan = variable ? new int[types.length] : null;
+        this.fieldLengths = variable ? lengths.clone() : null;
+        boolean hasIPv6 = false, hasSource = false, hasDest = false;
+        int end = END_NONE;
+        int offset = 0;
+        for (int f = 0, p = 0; f < types.length; f++) {
+            if (variable)
+                fieldPlan[f] = cols[f] == SKIP ? -1 : p;
+            if (cols[f] != SKIP) {
+                columns[p] = cols[f];
+                offsets[p] = offset;
+                this.lengths[p] = lengths[f];
+                hasIPv6 |= cols[f] == SRC_ADDR6 || cols[f] == DST_ADDR6;
+                hasSource |= cols[f] == SRC_ADDR || cols[f] == SRC_ADDR6;
+                hasDest |= cols[f] == DST_ADDR || cols[f] == DST_ADDR6;
+                if (cols[f] == LAST_SECS || cols[f] == LAST_MILLIS)
+                    end = END_ABSOLUTE;
+                else if (cols[f] == LAST && end == END_NONE)
+                    end = END_UPTIME;
+                p++;
+            }
+            // a variable-length field takes at least its one byte length prefix.
+            offset += lengths[f] == VARIABLE_LENGTH ? 1 : lengths[f];
+        }
+        this.fixed = !variable;
+        this.recordLength = offset;
+        this.ipv6 = hasIPv6;
+        this.flows = !options && hasSource && hasDest;
+        this.endClock = end;
+    }
+
+    // which column a field fills; SKIP for fields we don't understand, or whose length makes no sense.
+    private static int column(int type, int length) {
+        int column = type >= 0 && type < COLUMNS.length ? COLUMNS[type] : SKIP;
+        switch (column) {
+            case SRC_ADDR:
+            case DST_ADDR:
+            case NEXT_HOP:
+                return length == 4 ? column : SKIP;
+            case SRC_ADDR6:
+            case DST_ADDR6:
+            case NEXT_HOP6:
+                return length == 16 ? column : SKIP;
+            case SKIP:
+                return SKIP;
+            default:
+                return length >= 1 && length <= 8 ? column : SKIP;
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /** length of one data record in bytes; for variable-length templates, the shortest possible record. */
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    /** true if every record is {@link #getRecordLength()} bytes long. */
+    public boolean isFixedLength() {
+        return fixed;
+    }
+
+    /** number of fields decoded from each record. */
+    public int getDecodedFields() {
+        return columns.length;
+    }
+
+    /**
+     * finds the decoded fields of a variable-length record starting at <code>offset</code>, storing
+     * their offsets at <code>located[base...]</code>.
+     *
+     * @return the record's length, or -1 if it would extend past <code>limit</code>
+     */
+    public int locate(ChannelBuffer buf, int offset, int limit, int[] located, int base) {
+        int at = offset;
+        for (int f = 0; f < fieldLengths.length; f++) {
+            int length = fieldLengths[f];
+            if (length == VARIABLE_LENGTH) {
+                if (at + 1 > limit)
+                    return -1;
+                length = buf.getUnsignedByte(at++);
+                if (length == 255) {
+                    if (at + 2 > limit)
+                        return -1;
+                    length = buf.getUnsignedShort(at);
+                    at += 2;
+                }
+            }
+            if (fieldPlan[f] >= 0)
+                located[base + fieldPlan[f]] = at;
+            at += length;
+            if (at > limit)
+                return -1;
+        }
+        return at - offset;
+    }
+
+    /** true if data records carry options (exporter metadata) rather than flows. */
+    public boolean isOptions() {
+        return options;
+    }
+
+    /** true if data records describe flows (have at least a source and destination address). */
+    public boolean isFlow() {
+        return flows;
+    }
+
+    /** true if data records carry IPv6 addresses. */
+    public boolean isIPv6() {
+        return ipv6;
+    }
+
+    /**
+     * decodes a data record.
+     *
+     * @param offset where the record starts (fixed-length templates)
+     * @param located field offsets found by {@link #locate}, starting at <code>base</code> (variable-length
+     *        templates; null otherwise)
+     * @param bootMillis exporter boot time (ms since the epoch) for uptime-relative timestamps, or UNKNOWN_BOOT
+     * @param exportMillis export time, used when the record carries no end time we can place
+     */
+    public Flow toFlow(ChannelBuffer buf, int offset, int[] located, int base, long bootMillis, long exportMillis) {
+        Flow flow = new Flow();
+        long init = bootMillis;
+        for (int p = 0; p < columns.length; p++) {
+            int at = located == null ? offset + offsets[p] : located[base + p];
+            switch (columns[p]) {
+                case SRC_ADDR: flow.sourceAddr = readAddress(buf, at, 4); break;
+                case DST_ADDR: flow.destAddr = readAddress(buf, at, 4); break;
+                case NEXT_HOP: flow.nextHop = readAddress(buf, at, 4); break;
+                case SRC_ADDR6: flow.sourceAddr = readAddress(buf, at, 16); break;
+                case DST_ADDR6: flow.destAddr = readAddress(buf, at, 16); break;
+                case NEXT_HOP6: flow.nextHop = readAddress(buf, at, 16); break;
+                case SYS_INIT: init = readUnsigned(buf, at, lengths[p]); break;
+                default: setLong(flow, columns[p], readUnsigned(buf, at, lengths[p]));
+            }
+        }
+        if (flow.nextHop == null)
+            flow.nextHop = readAddress(buf, -1, ipv6 ? 16 : 4);
+        flow.timestampCalculated = timestamp(flow.timeLast, init, exportMillis);
+        return flow;
+    }
+
+    /**
+     * decodes the data record at <code>offset</code> into the next row of the batch.
+     */
+    public void toBatch(ChannelBuffer buf, int offset, int[] located, int base, long bootMillis, long exportMillis,
+            FlowBatch batch) {
+        int row = batch.add();
+        long init = bootMillis;
+        // templates needn't include every column, so start from a clean row.
+        if (ipv6)
+            batch.setIPv6(row, 0, 0, 0, 0);
+        else
+            batch.setIPv4(row, 0, 0);
+        batch.nextHop[row] = 0;
+        batch.snmpIn[row] = 0;
+        batch.snmpOut[row] = 0;
+        batch.numPackets[row] = 0;
+        batch.numOctets[row] = 0;
+        batch.timeFirst[row] = 0;
+        batch.timeLast[row] = 0;
+        batch.sourcePort[row] = 0;
+        batch.destPort[row] = 0;
+        batch.tcpFlags[row] = 0;
+        batch.protocol[row] = 0;
+        batch.tos[row] = 0;
+        batch.sourceAS[row] = 0;
+        batch.destAS[row] = 0;
+
+        for (int p = 0; p < columns.length; p++) {
+            int at = located == null ? offset + offsets[p] : located[base + p];
+            switch (columns[p]) {
+                case SRC_ADDR: batch.sourceAddr[row] = buf.getInt(at); break;
+                case DST_ADDR: batch.destAddr[row] = buf.getInt(at); break;
+                case SRC_ADDR6: batch.sourceHigh[row] = buf.getLong(at); batch.sourceLow[row] = buf.getLong(at + 8); break;
+                case DST_ADDR6: batch.destHigh[row] = buf.getLong(at); batch.destLow[row] = buf.getLong(at + 8); break;
+                case NEXT_HOP: batch.nextHop[row] = buf.getInt(at); break;
+                case SNMP_IN: batch.snmpIn[row] = (int)readUnsigned(buf, at, lengths[p]); break;
+                case SNMP_OUT: batch.snmpOut[row] = (int)readUnsigned(buf, at, lengths[p]); break;
+                case PACKETS: batch.numPackets[row] = readUnsigned(buf, at, lengths[p]); break;
+                case OCTETS: batch.numOctets[row] = readUnsigned(buf, at, lengths[p]); break;
+                case FIRST: batch.timeFirst[row] = readUnsigned(buf, at, lengths[p]); break;
+                case LAST: batch.timeLast[row] = readUnsigned(buf, at, lengths[p]); break;
+                case SRC_PORT: batch.sourcePort[row] = (int)readUnsigned(buf, at, lengths[p]); break;
+                case DST_PORT: batch.destPort[row] = (int)readUnsigned(buf, at, lengths[p]); break;
+                case TCP_FLAGS: batch.tcpFlags[row] = (byte)readUnsigned(buf, at, lengths[p]); break;
+                case PROTOCOL: batch.protocol[row] = (byte)readUnsigned(buf, at, lengths[p]); break;
+                case TOS: batch.tos[row] = (byte)readUnsigned(buf, at, lengths[p]); break;
+                case SRC_AS: batch.sourceAS[row] = (int)readUnsigned(buf, at, lengths[p]); break;
+                case DST_AS: batch.destAS[row] = (int)readUnsigned(buf, at, lengths[p]); break;
+                case FIRST_SECS: batch.timeFirst[row] = readUnsigned(buf, at, lengths[p]) * 1000; break;
+                case LAST_SECS: batch.timeLast[row] = readUnsigned(buf, at, lengths[p]) * 1000; break;
+                case FIRST_MILLIS: batch.timeFirst[row] = readUnsigned(buf, at, lengths[p]); break;
+                case LAST_MILLIS: batch.timeLast[row] = readUnsigned(buf, at, lengths[p]); break;
+                case SYS_INIT: init = readUnsigned(buf, at, lengths[p]); break;
+            }
+        }
+        if (!ipv6)
+            batch.setIPv4(row, batch.sourceAddr[row], batch.destAddr[row]);
+        batch.timestampCalculated[row] = timestamp(batch.timeLast[row], init, exportMillis);
+    }
+
+    // flow end time in ms since the epoch, given the decoded timeLast.
+    private long timestamp(long timeLast, long bootMillis, long exportMillis) {
+        switch (endClock) {
+            case END_ABSOLUTE:
+                return timeLast;
+            case END_UPTIME:
+                return bootMillis == UNKNOWN_BOOT ? exportMillis : bootMillis + timeLast;
+            default:
+                return exportMillis;
+        }
+    }
+
+    private static void setLong(Flow flow, int column, long value) {
+        switch (column) {
+            case SNMP_IN: flow.snmpIn = (int)value; break;
+            case SNMP_OUT: flow.snmpOut = (int)value; break;
+            case PACKETS: flow.numPackets = value; break;
+            case OCTETS: flow.numOctets = value; break;
+            case FIRST: flow.timeFirst = value; break;
+            case LAST: flow.timeLast = value; break;
+            case SRC_PORT: flow.sourcePort = (int)value; break;
+            case DST_PORT: flow.destPort = (int)value; break;
+            case TCP_FLAGS: flow.tcpFlags = (byte)value; break;
+            case PROTOCOL: flow.protocol = (byte)value; break;
+            case TOS: flow.tos = (byte)value; break;
+            case SRC_AS: flow.sourceAS = (int)value; break;
+            case DST_AS: flow.destAS = (int)value; break;
+            // absolute times replace the uptime-relative ones.
+            case FIRST_SECS: flow.timeFirst = value * 1000; break;
+            case LAST_SECS: flow.timeLast = value * 1000; break;
+            case FIRST_MILLIS: flow.timeFirst = value; break;
+            case LAST_MILLIS: flow.timeLast = value; break;
+        }
+    }
+
+    // reads a big-endian unsigned integer of 1 to 8 bytes.
+    static long readUnsigned(ChannelBuffer buf, int at, int length) {
+        switch (length) {
+            case 1: return buf.getUnsignedByte(at);
+            case 2: return buf.getUnsignedShort(at);
+            case 4: return buf.getUnsignedInt(at);
+            case 8: return buf.getLong(at);
+            default:
+                long value = 0;
+                for (int i = 0; i < length; i++)
+                    value = (value << 8) | buf.getUnsignedByte(at + i);
+                return value;
+        }
+    }
+
+    // reads an address; a negative offset gives the unspecified (all zeros) address.
+    private static InetAddress readAddress(ChannelBuffer buf, int at, int length) {
+        byte[] addr = new byte[length];
+        if (at >= 0)
+            buf.getBytes(at, addr);
+        try {
+            return InetAddress.getByAddress(addr);
+        } catch (UnknownHostException e) {
+            // This should never happen; 4 or 16 bytes is always a legal address.
+            throw new RuntimeException("Failed parsing IP address!", e);
+        }
+    }
+}
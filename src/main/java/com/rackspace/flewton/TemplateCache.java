@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Templates announced by template-based exporters (Netflow v9, IPFIX), keyed by
+ * exporter address, source id (observation domain) and template id.  Data sets
+ * that arrive before their template are held for a bounded time, and handed
+ * back when the template shows up.
+ */
+public class TemplateCache {
+    private static final Logger logger = LoggerFactory.getLogger(TemplateCache.class);
+    public static final int DEFAULT_PENDING_MILLIS = 60 * 1000;
+    public static final int DEFAULT_MAX_PENDING = 1000;
+
+    private final ConcurrentMap<Key, Template> templates = new ConcurrentHashMap<Key, Template>();
+    // oldest first; guarded by itself.
+    private final LinkedList<Pending> pending = new LinkedList<Pending>();
+    private volatile int pendingCount = 0;
+    private final long pendingMillis;
+    private final int maxPending;
+    private long expired = 0;
+
+    public TemplateCache() {
+        this(DEFAULT_PENDING_MILLIS, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param pendingMillis how long to hold data sets that arrive ahead of their template
+     * @param maxPending most data sets held at once; the oldest are dropped first
+     */
+    public TemplateCache(long pendingMillis, int maxPending) {
+        this.pendingMillis = pendingMillis;
+        this.maxPending = maxPending;
+    }
+
+    public Template get(InetAddress exporter, long domain, int templateId) {
+        return templates.get(new Key(exporter, domain, templateId));
+    }
+
+    /**
+     * stores (or replaces) a template, and returns any data sets that were waiting on it.
+     */
+    public List<Pending> put(InetAddress exporter, long domain, Template template) {
+        Key key = new Key(exporter, domain, template.getId());
+        templates.put(key, template);
+
+        if (pendingCount == 0)
+            return null;
+
+        List<Pending> ready = null;
+        synchronized (pending) {
+            expire(System.currentTimeMillis());
+            for (Iterator<Pending> iter = pending.iterator(); iter.hasNext(); ) {
+                Pending waiting = iter.next();
+                if (waiting.key.equals(key)) {
+                    if (ready == null)
+                        ready = new ArrayList<Pending>();
+                    ready.add(waiting);
+                    iter.remove();
+                }
+            }
+            pendingCount = pending.size();
+        }
+        return ready;
+    }
+
+    /** forgets a template (IPFIX template withdrawal). */
+    public void remove(InetAddress exporter, long domain, int templateId) {
+        templates.remove(new Key(exporter, domain, templateId));
+    }
+
+    /**
+     * forgets every template, or every options template, of an observation
+     * domain (IPFIX withdrawal of all templates).
+     */
+    public void removeAll(InetAddress exporter, long domain, boolean options) {
+        for (Iterator<Map.Entry<Key, Template>> iter = templates.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<Key, Template> entry = iter.next();
+            Key key = entry.getKey();
+            if (key.domain == domain && key.exporter.equals(exporter) && entry.getValue().isOptions() == options)
+                iter.remove();
+        }
+    }
+
+    /**
+     * holds on to a data set whose template is not (yet) known.
+     *
+     * @param data the data set's records; must not be modified afterward
+     * @param bootMillis exporter boot time according to the datagram the set arrived in
+     * @param exportMillis export time of the datagram the set arrived in
+     */
+    public void defer(InetAddress exporter, long domain, int templateId, ChannelBuffer data, long bootMillis,
+            long exportMillis) {
+        if (maxPending <= 0)
+            return;
+        Pending waiting = new Pending(new Key(exporter, domain, templateId), data, bootMillis, exportMillis);
+        synchronized (pending) {
+            expire(waiting.arrived);
+            while (pending.size() >= maxPending) {
+                pending.removeFirst();
+                expired++;
+            }
+            pending.addLast(waiting);
+            pendingCount = pending.size();
+        }
+    }
+
+    /** number of data sets waiting on a template. */
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    /** number of data sets dropped because their template never came. */
+    public long getExpiredCount() {
+        synchronized (pending) {
+            return expired;
+        }
+    }
+
+    // drops data sets that have waited too long. called with the pending lock held.
+    private void expire(long now) {
+        while (!pending.isEmpty() && now - pending.getFirst().arrived > pendingMillis) {
+            Pending gone = pending.removeFirst();
+            expired++;
+            logger.debug("No template {} from {} within {}ms; dropping data", new Object[] {
+                    gone.key.templateId, gone.key.exporter, pendingMillis });
+        }
+    }
+
+    /** a data set that arrived before its template. */
+    public static class Pending {
+        private final Key key;
+        public final ChannelBuffer data;
+        public final long bootMillis;
+        public final long exportMillis;
+        private final long arrived = System.currentTimeMillis();
+
+        private Pending(Key key, ChannelBuffer data, long bootMillis, long exportMillis) {
+            this.key = key;
+            this.data = data;
+            this.bootMillis = bootMillis;
+            this.exportMillis = exportMillis;
+        }
+    }
+
+    private static class Key {
+        private final InetAddress exporter;
+        private final long domain;
+        private final int templateId;
+
+        private Key(InetAddress exporter, long domain, int templateId) {
+            this.exporter = exporter;
+            this.domain = domain;
+            this.templateId = templateId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key)obj;
+            return templateId == other.templateId && domain == other.domain && exporter.equals(other.exporter);
+        }
+
+        @Override
+        public int hashCode() {
+            return (exporter.hashCode() * 31 + (int)(domain ^ (domain >>> 32))) * 31 + templateId;
+        }
+    }
+}
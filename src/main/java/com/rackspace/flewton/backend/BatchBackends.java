@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.FlowBatch;
+
+/**
+ * Helpers for {@link IBatchBackend}s.
+ */
+public final class BatchBackends {
+    // each thread's batch, taken out while in use so that a nested write gets its own.
+    private static final ThreadLocal<FlowBatch> spare = new ThreadLocal<FlowBatch>();
+
+    private BatchBackends() {
+    }
+
+    /**
+     * Writes a record to a batch backend as a batch of its own.  Batch backends
+     * implement {@link IBackend#write(AbstractRecord)} with this, for when they
+     * are written to a record at a time; the batch is reused by the calling
+     * thread, so this doesn't allocate once the batch has grown.
+     */
+    public static void write(IBatchBackend backend, AbstractRecord record) {
+        FlowBatch batch = spare.get();
+        if (batch == null)
+            batch = new FlowBatch(record.flows.size());
+        else
+            spare.set(null);
+        try {
+            batch.clear();
+            record.appendTo(batch);
+            backend.write(batch);
+        } finally {
+            spare.set(batch);
+        }
+    }
+}
@@ -35,14 +35,18 @@ import org.python.util.PythonInterpreter;
 
 import javax.script.Invocable;
 import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.List;
 
 public class ExtBackendFactory {
     private static PythonInterpreter pyInterpreter = null;
@@ -74,6 +78,22 @@ public class ExtBackendFactory {
         return (AbstractBackend)impl;
     }
 
+    /**
+     * creates a Python backend run in a pool of interpreters that is handed flows in batches; see
+     * {@link PooledPythonBackend}.  The class is the one named after the module.
+     * @param modulePath location of the python module. Starts with "py/"
+     * @param config the backend's configuration section; <code>interpreters</code> sets the pool size.
+     * @throws ConfigError if the module can't be found or loaded.
+     */
+    public static IBackend createPooledPythonBackend(String modulePath, HierarchicalConfiguration config) throws ConfigError {
+        InputStream module = getExternalResource(modulePath);
+        if (module == null)
+            throw new ConfigError("Python backend not found: " + modulePath);
+        String pyClassName = modulePath.substring(modulePath.lastIndexOf("/") + 1);
+        pyClassName = pyClassName.substring(0, pyClassName.indexOf("."));
+        return new PooledPythonBackend(readFully(module), pyClassName, config, config.getInt("interpreters", 1));
+    }
+
     /**
      * creates a backend implemented in Javascript.
      * @param jsPath location of javascript file. Starts with "js/"
@@ -82,8 +102,7 @@ public class ExtBackendFactory {
      */
     public static IBackend createJavascriptBackend(String jsPath, HierarchicalConfiguration config) throws ConfigError
     {
-        ScriptEngineManager manager = new ScriptEngineManager();
-        ScriptEngine engine = manager.getEngineByName("JavaScript");
+        ScriptEngine engine = getScriptEngine("JavaScript");
         try {
             Object result = engine.eval(new InputStreamReader(getExternalResource(jsPath)));
             Invocable inv = (Invocable)engine;
@@ -98,6 +117,52 @@ public class ExtBackendFactory {
         }
     }
     
+    /**
+     * creates a scripted backend run in a pool of engines that is handed flows in batches; see
+     * {@link PooledScriptBackend}.
+     * @param scriptPath location of the script. Starts with "js/"
+     * @param config the backend's configuration section; <code>engines</code> sets the pool size, and
+     * <code>scriptEngine</code> the name of the JSR-223 engine to run it with (JavaScript by default).
+     * @throws ConfigError if the script or engine can't be found, or the script fails to load.
+     */
+    public static IBackend createPooledScriptBackend(String scriptPath, HierarchicalConfiguration config) throws ConfigError {
+        InputStream script = getExternalResource(scriptPath);
+        if (script == null)
+            throw new ConfigError("Script backend not found: " + scriptPath);
+        ScriptEngine engine = getScriptEngine(config.getString("scriptEngine", "JavaScript"));
+        return new PooledScriptBackend(engine.getFactory(), readFully(script), config, config.getInt("engines", 1));
+    }
+    
+    private static ScriptEngine getScriptEngine(String name) throws ConfigError {
+        ScriptEngineManager manager = new ScriptEngineManager();
+        ScriptEngine engine = manager.getEngineByName(name);
+        if (engine == null) {
+            List<String> available = new ArrayList<String>();
+            for (ScriptEngineFactory factory : manager.getEngineFactories())
+                available.addAll(factory.getNames());
+            throw new ConfigError("No script engine named " + name + " (available: " + available + ")");
+        }
+        return engine;
+    }
+    
+    private static String readFully(InputStream in) throws ConfigError {
+        StringBuilder text = new StringBuilder();
+        char[] buf = new char[4096];
+        try {
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            try {
+                int read;
+                while ((read = reader.read(buf)) > 0)
+                    text.append(buf, 0, read);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            throw new ConfigError(ex.getMessage(), ex);
+        }
+        return text.toString();
+    }
+    
     private static InputStream getExternalResource(String name) {
         // check all the search paths first.
         for (String path : backendSearchPaths) {
@@ -28,26 +28,36 @@
  */
 package com.rackspace.flewton.backend;
 
+import java.util.List;
+
 import com.rackspace.flewton.AbstractRecord;
 import com.rackspace.flewton.Flow;
+import com.rackspace.flewton.InterfaceCounters;
+import com.rackspace.flewton.util.ReverseDns;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class LoggingBackend extends AbstractBackend {
+/**
+ * Logs every flow.  Addresses are logged by name once a (background) reverse
+ * lookup has found one; see {@link ReverseDns}.
+ */
+public class LoggingBackend extends AbstractBackend implements ICounterBackend {
     final Logger logger = LoggerFactory.getLogger(LoggingBackend.class);
+    private final ReverseDns names;
     
     public LoggingBackend(HierarchicalConfiguration config) {
         super(config);
+        names = ReverseDns.fromConfig(config);
     }
 
     public void write(AbstractRecord record) {
         for (Flow flow : record.flows) {
             Object[] objs = new Object[]{
-                    flow.sourceAddr.getCanonicalHostName(),
+                    names.lookup(flow.sourceAddr),
                     flow.sourcePort,
-                    flow.destAddr.getCanonicalHostName(),
+                    names.lookup(flow.destAddr),
                     flow.destPort,
                     flow.numOctets
             };
@@ -55,4 +65,16 @@ public class LoggingBackend extends AbstractBackend {
         }
     }
 
+    public void writeCounters(List<InterfaceCounters> counters) {
+        for (InterfaceCounters counter : counters) {
+            Object[] objs = new Object[]{
+                    counter.agent.getHostAddress(),
+                    counter.ifIndex,
+                    counter.inOctets,
+                    counter.outOctets
+            };
+            logger.info("agent={}, ifIndex={}, inBytes={}, outBytes={}", objs);
+        }
+    }
+
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.python.core.Py;
+import org.python.core.PyException;
+import org.python.core.PyObject;
+import org.python.core.PySystemState;
+import org.python.util.PythonInterpreter;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.ConfigError;
+import com.rackspace.flewton.FlowBatch;
+
+/**
+ * A Python backend run in a pool of interpreters, each with its own system
+ * state, module namespace and instance of the backend class, so that several
+ * threads can write at once without the scripts having to be thread-safe.
+ * Each write borrows an idle interpreter, waiting for one if all are busy.
+ *
+ * Flows cross into Python a batch at a time: the class is handed the
+ * {@link FlowBatch} itself, whose columns are primitive arrays, and the
+ * number of rows in it, so the cost of the call is spread across every flow
+ * in the batch rather than paid per flow, and no Flow objects are made:
+ *
+ * <pre>
+ * class Backend(object):
+ *     def __init__(self, config): ...
+ *     def write_batch(self, batch, size):
+ *         octets = batch.numOctets
+ *         for i in xrange(size): ...
+ * </pre>
+ *
+ * As with any {@link IBatchBackend}, the batch is reused once the call
+ * returns.  Giving the backend a queue (see {@link QueuedBackend}) gets it
+ * larger batches.
+ */
+public class PooledPythonBackend implements IBatchBackend {
+    private final BlockingQueue<Interpreter> idle;
+
+    // one interpreter and the backend instance living in it.
+    private static class Interpreter {
+        private final PySystemState state = new PySystemState();
+        private final PyObject writeBatch;
+
+        private Interpreter(String source, String className, HierarchicalConfiguration config) throws ConfigError {
+            PythonInterpreter interpreter = new PythonInterpreter(null, state);
+            try {
+                interpreter.exec(source);
+                PyObject backendClass = interpreter.get(className);
+                if (backendClass == null)
+                    throw new ConfigError("no class " + className + " in Python backend");
+                PyObject instance = backendClass.__call__(Py.java2py(config));
+                writeBatch = instance.__findattr__("write_batch");
+                if (writeBatch == null)
+                    throw new ConfigError(className + " has no write_batch(batch, size) method");
+            } catch (PyException ex) {
+                throw new ConfigError("unable to create Python backend " + className + ": " + ex, ex);
+            }
+        }
+
+        private void write(FlowBatch batch) {
+            PySystemState previous = Py.setSystemState(state);
+            try {
+                writeBatch.__call__(Py.java2py(batch), Py.newInteger(batch.size()));
+            } finally {
+                Py.setSystemState(previous);
+            }
+        }
+    }
+
+    /**
+     * @param source Python source defining the backend class
+     * @param className name of the backend class
+     * @param config passed to each instance's constructor
+     * @param interpreters size of the pool
+     * @throws ConfigError if the source doesn't run or doesn't define a usable class
+     */
+    public PooledPythonBackend(String source, String className, HierarchicalConfiguration config, int interpreters)
+    throws ConfigError {
+        idle = new ArrayBlockingQueue<Interpreter>(Math.max(interpreters, 1));
+        for (int i = 0; i < Math.max(interpreters, 1); i++)
+            idle.add(new Interpreter(source, className, config));
+    }
+
+    public void write(AbstractRecord record) {
+        BatchBackends.write(this, record);
+    }
+
+    public void write(FlowBatch batch) {
+        if (batch.size() == 0)
+            return;
+        Interpreter interpreter;
+        try {
+            interpreter = idle.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            interpreter.write(batch);
+        } finally {
+            idle.add(interpreter);
+        }
+    }
+}
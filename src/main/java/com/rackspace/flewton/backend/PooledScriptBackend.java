@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.ConfigError;
+import com.rackspace.flewton.FlowBatch;
+
+/**
+ * A backend written in any JSR-223 scripting language (JavaScript by
+ * default), run in a pool of engines so that several threads can write at
+ * once.  The script defines two global functions:
+ *
+ * <pre>
+ * init(config)             called once per engine
+ * writeBatch(batch, size)  called with a FlowBatch and the number of rows in it
+ * </pre>
+ *
+ * The batch's columns are primitive arrays, which scripts index directly
+ * (e.g. <code>batch.numOctets[i]</code>), so flows cross into the script a
+ * batch per call rather than an object (and several reflective calls) per
+ * flow.  Where the engine is {@link Compilable}, each engine compiles the
+ * script and the call into it once, up front; otherwise they are evaluated
+ * from source.
+ *
+ * As with any {@link IBatchBackend}, the batch is reused once the call
+ * returns.  Giving the backend a queue (see {@link QueuedBackend}) gets it
+ * larger batches.
+ */
+public class PooledScriptBackend implements IBatchBackend {
+    private static final String INIT = "init(config)";
+    private static final String WRITE_BATCH = "writeBatch(batch, size)";
+
+    private final BlockingQueue<Instance> idle;
+
+    // one engine, with the script loaded in its own context.
+    private static class Instance {
+        private final ScriptEngine engine;
+        private final ScriptContext context = new SimpleScriptContext();
+        private final Bindings bindings;
+        private final CompiledScript writeBatch;
+
+        private Instance(ScriptEngineFactory factory, String source, HierarchicalConfiguration config) throws ConfigError {
+            engine = factory.getScriptEngine();
+            bindings = engine.createBindings();
+            context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+            try {
+                if (engine instanceof Compilable) {
+                    ((Compilable)engine).compile(source).eval(context);
+                    writeBatch = ((Compilable)engine).compile(WRITE_BATCH);
+                } else {
+                    engine.eval(source, context);
+                    writeBatch = null;
+                }
+                bindings.put("config", config);
+                engine.eval(INIT, context);
+                bindings.remove("config");
+            } catch (ScriptException ex) {
+                throw new ConfigError(ex.getMessage(), ex);
+            }
+        }
+
+        private void write(FlowBatch batch) throws ScriptException {
+            bindings.put("batch", batch);
+            bindings.put("size", batch.size());
+            try {
+                if (writeBatch != null)
+                    writeBatch.eval(context);
+                else
+                    engine.eval(WRITE_BATCH, context);
+            } finally {
+                bindings.remove("batch");
+            }
+        }
+    }
+
+    /**
+     * @param factory the scripting language's engine factory
+     * @param source the script
+     * @param config passed to each engine's init()
+     * @param engines size of the pool
+     * @throws ConfigError if the script doesn't run or its init() fails
+     */
+    public PooledScriptBackend(ScriptEngineFactory factory, String source, HierarchicalConfiguration config, int engines)
+    throws ConfigError {
+        idle = new ArrayBlockingQueue<Instance>(Math.max(engines, 1));
+        for (int i = 0; i < Math.max(engines, 1); i++)
+            idle.add(new Instance(factory, source, config));
+    }
+
+    public void write(AbstractRecord record) {
+        BatchBackends.write(this, record);
+    }
+
+    public void write(FlowBatch batch) {
+        if (batch.size() == 0)
+            return;
+        Instance instance;
+        try {
+            instance = idle.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            instance.write(batch);
+        } catch (ScriptException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            idle.add(instance);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.ConfigError;
+import com.rackspace.flewton.FlowBatch;
+
+/**
+ * Streams flows to a child process, which may be written in anything (e.g.
+ * CPython) and runs outside our heap, over its standard input.  Everything is
+ * big-endian.  The stream opens with a header:
+ *
+ * <pre>
+ * int magic ("FLWT"), int version, int record size
+ * </pre>
+ *
+ * followed by frames of fixed-layout flow records, at most maxFrameFlows per
+ * frame:
+ *
+ * <pre>
+ * int length (of what follows), int flow count, records...
+ *
+ * record (RECORD_SIZE bytes):
+ *   long sourceHigh, sourceLow, destHigh, destLow   addresses, IPv4 IPv4-mapped
+ *   int nextHop, snmpIn, snmpOut
+ *   long numPackets, numOctets, timeFirst, timeLast, timestampCalculated
+ *   short sourcePort, destPort
+ *   int sourceAS, destAS, exporter, sourceLabel, destLabel
+ *   byte tcpFlags, protocol, tos, (padding)
+ * </pre>
+ *
+ * Flow control is by credit: the child writes ints to its standard output,
+ * each granting permission to send that many more frames, and we never send
+ * a frame without one.  A slow child therefore stalls whoever writes to this
+ * backend, which should be its own queue (see {@link QueuedBackend}), and
+ * nothing else.  What the child writes to standard error is logged.  If the
+ * child exits, flows are dropped from then on.
+ *
+ * Java 6 has no Unix domain sockets, so the child's pipes carry the protocol.
+ */
+public class ProcessBackend implements IBatchBackend {
+    private static final Logger logger = LoggerFactory.getLogger(ProcessBackend.class);
+    public static final int MAGIC = 0x464c5754;
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 112;
+    public static final int DEFAULT_MAX_FRAME_FLOWS = 1024;
+    // how often (in dropped flows) we complain about a dead child.
+    private static final long DROP_LOG_INTERVAL = 100000;
+
+    private final String name;
+    private final Process process;
+    private final DataOutputStream out;
+    private final Semaphore credits = new Semaphore(0);
+    private final int maxFrameFlows;
+    private final ByteBuffer frame;
+    private final AtomicLong dropped = new AtomicLong(0);
+    private volatile boolean dead = false;
+    private volatile boolean closed = false;
+
+    public ProcessBackend(HierarchicalConfiguration config) throws ConfigError {
+        this(Arrays.asList(config.getStringArray("command")), config.getInt("maxFrameFlows", DEFAULT_MAX_FRAME_FLOWS));
+    }
+
+    /**
+     * @param command the child's command line
+     * @param maxFrameFlows most flows in one frame
+     * @throws ConfigError if the child can't be started
+     */
+    public ProcessBackend(List<String> command, int maxFrameFlows) throws ConfigError {
+        if (command.isEmpty())
+            throw new ConfigError("missing required config property: command");
+        this.name = command.get(command.size() - 1);
+        this.maxFrameFlows = Math.max(maxFrameFlows, 1);
+        this.frame = ByteBuffer.allocate(8 + this.maxFrameFlows * RECORD_SIZE);
+
+        try {
+            process = new ProcessBuilder(command).start();
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), frame.capacity()));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(RECORD_SIZE);
+            out.flush();
+        } catch (IOException ex) {
+            throw new ConfigError("Unable to start " + command + ": " + ex.getMessage(), ex);
+        }
+
+        Thread reader = new Thread(new CreditReader(), "process-credits-" + name);
+        reader.setDaemon(true);
+        reader.start();
+        Thread errors = new Thread(new ErrorLogger(), "process-stderr-" + name);
+        errors.setDaemon(true);
+        errors.start();
+    }
+
+    public void write(AbstractRecord record) {
+        BatchBackends.write(this, record);
+    }
+
+    /** sends the batch as one or more frames, waiting for credit for each. */
+    public synchronized void write(FlowBatch batch) {
+        for (int from = 0; from < batch.size(); from += maxFrameFlows) {
+            int count = Math.min(maxFrameFlows, batch.size() - from);
+            if (!acquireCredit()) {
+                drop(batch.size() - from);
+                return;
+            }
+            encode(batch, from, count, frame);
+            try {
+                out.write(frame.array(), 0, frame.position());
+                out.flush();
+            } catch (IOException ex) {
+                died("write failed: " + ex.getMessage());
+                drop(batch.size() - from);
+                return;
+            }
+        }
+    }
+
+    // false if the child is gone.
+    private boolean acquireCredit() {
+        if (dead)
+            return false;
+        try {
+            credits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !dead;
+    }
+
+    /** encodes count rows of the batch, starting at from, as a frame. */
+    static void encode(FlowBatch batch, int from, int count, ByteBuffer frame) {
+        frame.clear();
+        frame.putInt(4 + count * RECORD_SIZE);
+        frame.putInt(count);
+        for (int i = from; i < from + count; i++) {
+            frame.putLong(batch.sourceHigh[i]);
+            frame.putLong(batch.sourceLow[i]);
+            frame.putLong(batch.destHigh[i]);
+            frame.putLong(batch.destLow[i]);
+            frame.putInt(batch.nextHop[i]);
+            frame.putInt(batch.snmpIn[i]);
+            frame.putInt(batch.snmpOut[i]);
+            frame.putLong(batch.numPackets[i]);
+            frame.putLong(batch.numOctets[i]);
+            frame.putLong(batch.timeFirst[i]);
+            frame.putLong(batch.timeLast[i]);
+            frame.putLong(batch.timestampCalculated[i]);
+            frame.putShort((short)batch.sourcePort[i]);
+            frame.putShort((short)batch.destPort[i]);
+            frame.putInt(batch.sourceAS[i]);
+            frame.putInt(batch.destAS[i]);
+            frame.putInt(batch.exporter[i]);
+            frame.putInt(batch.sourceLabel[i]);
+            frame.putInt(batch.destLabel[i]);
+            frame.put(batch.tcpFlags[i]);
+            frame.put(batch.protocol[i]);
+            frame.put(batch.tos[i]);
+            frame.put((byte)0);
+        }
+        assert frame.position() == 8 + count * RECORD_SIZE;
+    }
+
+    /**
+     * closes the child's standard input, and waits for it to exit.  Flows
+     * written from now on, or waiting for credit, are dropped.
+     */
+    public int close() throws InterruptedException {
+        closed = true;
+        // a writer waiting for credit holds the lock; it has to give up first.
+        died("closed");
+        synchronized (this) {
+            try {
+                out.close();
+            } catch (IOException ignore) { }
+        }
+        return process.waitFor();
+    }
+
+    /** number of flows discarded because the child was gone. */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void drop(int flows) {
+        long before = dropped.getAndAdd(flows);
+        if (before / DROP_LOG_INTERVAL != (before + flows) / DROP_LOG_INTERVAL || before == 0)
+            logger.warn("{} is gone; {} flows dropped so far", name, before + flows);
+    }
+
+    private void died(String why) {
+        // only the first caller (exit, failed write or close) wakes the writers.
+        synchronized (credits) {
+            if (dead)
+                return;
+            dead = true;
+        }
+        if (!closed)
+            logger.error("Backend process {} {}", name, why);
+        // wake any writer waiting for credit.
+        credits.release(Integer.MAX_VALUE / 2);
+    }
+
+    private class CreditReader implements Runnable {
+        public void run() {
+            DataInputStream in = new DataInputStream(process.getInputStream());
+            try {
+                while (true) {
+                    int granted = in.readInt();
+                    if (granted > 0)
+                        credits.release(granted);
+                }
+            } catch (EOFException ex) {
+                died("exited");
+            } catch (IOException ex) {
+                died("stopped granting credit: " + ex.getMessage());
+            }
+        }
+    }
+
+    private class ErrorLogger implements Runnable {
+        public void run() {
+            BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+            try {
+                String line;
+                while ((line = err.readLine()) != null)
+                    logger.info("{}: {}", name, line);
+            } catch (IOException ignore) { }
+        }
+    }
+}
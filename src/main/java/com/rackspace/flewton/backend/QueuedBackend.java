@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.ConfigError;
+import com.rackspace.flewton.FlowBatch;
+import com.rackspace.flewton.InterfaceCounters;
+
+/**
+ * Hands records to another backend through a bounded queue drained by a
+ * dedicated thread, so that a slow backend only stalls itself and not the
+ * receive thread (or the other backends).  Batch backends are handed
+ * everything queued since their last write as a single {@link FlowBatch}.
+ * Interface counters share the queue, and are only queued at all if the
+ * wrapped backend is an {@link ICounterBackend}.
+ */
+public class QueuedBackend implements ICounterBackend {
+    private static final Logger logger = LoggerFactory.getLogger(QueuedBackend.class);
+    // how often (in dropped records) we complain about a full queue.
+    private static final long DROP_LOG_INTERVAL = 10000;
+    // most records coalesced into one batch for an IBatchBackend.
+    private static final int MAX_BATCH_RECORDS = 256;
+
+    /** what to do with a record when the queue is full. */
+    public enum FullPolicy {
+        /** wait for room; applies backpressure to the receive thread. */
+        BLOCK,
+        /** discard the record being written. */
+        DROP_NEWEST,
+        /** discard the oldest queued record to make room. */
+        DROP_OLDEST;
+
+        /** accepts "block", "dropNewest", "drop_newest", etc. */
+        public static FullPolicy parse(String name) throws ConfigError {
+            String normalized = name.replace("_", "").replace("-", "").toLowerCase();
+            for (FullPolicy policy : values())
+                if (policy.name().replace("_", "").toLowerCase().equals(normalized))
+                    return policy;
+            throw new ConfigError("unknown queueFullPolicy: " + name);
+        }
+    }
+
+    private final IBackend delegate;
+    private final String name;
+    private final FullPolicy policy;
+    private final BlockingQueue<AbstractRecord> queue;
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    public QueuedBackend(IBackend delegate, String name, int capacity, FullPolicy policy) {
+        this.delegate = delegate;
+        this.name = name;
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<AbstractRecord>(capacity);
+
+        Thread consumer = new Thread(new Consumer(), "backend-" + name);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * wraps a backend according to the <code>queueSize</code> and <code>queueFullPolicy</code>
+     * directives in its configuration section. Returns the backend as-is if no queue is configured.
+     */
+    public static IBackend wrap(IBackend backend, String name, HierarchicalConfiguration config) throws ConfigError {
+        int capacity = config.getInt("queueSize", 0);
+        if (capacity <= 0)
+            return backend;
+        FullPolicy policy = FullPolicy.parse(config.getString("queueFullPolicy", "block"));
+        logger.info("Queueing up to {} records for {} ({})", new Object[]{capacity, name, policy});
+        return new QueuedBackend(backend, name, capacity, policy);
+    }
+
+    public void write(AbstractRecord record) {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.put(record);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    drop();
+                }
+                break;
+            case DROP_NEWEST:
+                if (!queue.offer(record))
+                    drop();
+                break;
+            case DROP_OLDEST:
+                // another writer may refill the slot we just freed, so keep trying.
+                while (!queue.offer(record)) {
+                    if (queue.poll() != null)
+                        drop();
+                }
+                break;
+        }
+    }
+
+    public void writeCounters(List<InterfaceCounters> counters) {
+        if (delegate instanceof ICounterBackend)
+            write(new CounterRecord(counters));
+    }
+
+    /** number of records discarded because the queue was full. */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** number of records waiting to be written. */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    private void drop() {
+        long count = dropped.incrementAndGet();
+        if (count % DROP_LOG_INTERVAL == 1)
+            logger.warn("Queue for {} is full; {} records dropped so far", name, count);
+    }
+
+    private class Consumer implements Runnable {
+        private final List<AbstractRecord> drained = new ArrayList<AbstractRecord>(MAX_BATCH_RECORDS);
+        private final FlowBatch batch = new FlowBatch();
+
+        public void run() {
+            while (true) {
+                AbstractRecord record;
+                try {
+                    record = queue.take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                try {
+                    if (record instanceof CounterRecord)
+                        ((ICounterBackend)delegate).writeCounters(((CounterRecord)record).counters);
+                    else if (delegate instanceof IBatchBackend)
+                        writeBatch(record);
+                    else
+                        delegate.write(record);
+                } catch (RuntimeException ex) {
+                    // keep draining; one bad record shouldn't take the backend down.
+                    logger.error("Backend " + name + " failed to write record", ex);
+                }
+            }
+        }
+
+        // combines this record with whatever else is waiting into as few batches as
+        // possible; counters in among them split the batch, so everything stays in order.
+        private void writeBatch(AbstractRecord first) {
+            batch.clear();
+            first.appendTo(batch);
+            queue.drainTo(drained, MAX_BATCH_RECORDS - 1);
+            try {
+                for (AbstractRecord record : drained) {
+                    if (record instanceof CounterRecord) {
+                        flush();
+                        writeCounters((CounterRecord)record);
+                    } else
+                        record.appendTo(batch);
+                }
+            } finally {
+                // whatever happens, these records are gone; never write them twice.
+                drained.clear();
+            }
+            flush();
+        }
+
+        // writes the batch built so far, if any.
+        private void flush() {
+            if (batch.size() == 0)
+                return;
+            try {
+                ((IBatchBackend)delegate).write(batch);
+            } catch (RuntimeException ex) {
+                logger.error("Backend " + name + " failed to write batch", ex);
+            } finally {
+                batch.clear();
+            }
+        }
+
+        private void writeCounters(CounterRecord record) {
+            try {
+                ((ICounterBackend)delegate).writeCounters(record.counters);
+            } catch (RuntimeException ex) {
+                logger.error("Backend " + name + " failed to write counters", ex);
+            }
+        }
+    }
+
+    // carries counters through the record queue; it has no flows.
+    private static class CounterRecord extends AbstractRecord {
+        private final List<InterfaceCounters> counters;
+
+        private CounterRecord(List<InterfaceCounters> counters) {
+            super(null);
+            this.counters = counters;
+        }
+    }
+}
@@ -29,107 +29,199 @@
 
 package com.rackspace.flewton.backend;
 
-import java.net.InetAddress;
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rackspace.flewton.AbstractRecord;
-import com.rackspace.flewton.Flow;
+import com.rackspace.flewton.ConfigError;
+import com.rackspace.flewton.FlowBatch;
+import com.rackspace.flewton.util.EpochSwap;
+import com.rackspace.flewton.util.HeavyHitters;
 import com.rackspace.flewton.util.HostResolver;
+import com.rackspace.flewton.util.SpaceSaving;
 
-public class TopTalkersBackend extends AbstractBackend {
-    // LRU Map; expires old entries when new ones are added.
-    private class CacheMap<K, V> extends LinkedHashMap<K, V> {
-        private static final long serialVersionUID = 1L;
-        private final int maxEntries;
+/**
+ * Logs the heaviest hosts, ports, protocols, AS pairs and/or conversations,
+ * by bytes, for each interval.  Every configured dimension is counted in one
+ * pass over each batch, by a {@link HeavyHitters} sketch of
+ * <code>maxEntries</code> counters, so memory is fixed however many keys there
+ * are, and any key with more than about 1/maxEntries of the traffic is
+ * certain to be counted.  At the end of an interval the top <code>topN</code>
+ * of each dimension are logged, heaviest first, with the amount each count may
+ * be overestimated by.
+ *
+ * Writers never wait for a report: the reporting thread swaps in a fresh set
+ * of sketches (see {@link EpochSwap}), waits for writers still using the old
+ * set to leave it, and only then reads it.
+ */
+public class TopTalkersBackend extends AbstractBackend implements IBatchBackend {
+    public static final int DEFAULT_INTERVAL_SECS = 60 * 60;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final int DEFAULT_TOP_N = 100;
+    private static final Logger logger = LoggerFactory.getLogger(TopTalkersBackend.class);
+    
+    /** what the backend counts bytes by. */
+    public enum Dimension {
+        /** our hosts (or, for incoming traffic, the remote ones) */
+        HOSTS,
+        /** protocol and destination port */
+        PORTS,
+        PROTOCOLS,
+        /** source and destination AS */
+        AS_PAIRS,
+        /** source and destination address */
+        CONVERSATIONS;
         
-        private CacheMap(int maxEntries) {
-            super((int)(maxEntries*0.75f), 0.75f, true);
-            this.maxEntries = maxEntries;
+        /** accepts "hosts", "asPairs", "as_pairs", etc. */
+        public static Dimension parse(String name) throws ConfigError {
+            String normalized = name.trim().replace("_", "").replace("-", "").toLowerCase();
+            for (Dimension dimension : values())
+                if (dimension.name().replace("_", "").toLowerCase().equals(normalized))
+                    return dimension;
+            throw new ConfigError("unknown top talkers dimension: " + name);
         }
         
-        @SuppressWarnings("unchecked")
-        protected boolean removeEldestEntry(Map.Entry eldest) {
-            return size() > maxEntries;
+        // renders a key of this dimension.
+        private String format(SpaceSaving.Entry entry) {
+            long[] key = entry.key;
+            switch (this) {
+                case HOSTS: return "host=" + entry.getAddress();
+                case PORTS: return "protocol=" + (key[0] >>> 16) + ", port=" + (key[0] & 0xffff);
+                case PROTOCOLS: return "protocol=" + key[0];
+                case AS_PAIRS: return "sourceAS=" + (key[0] >>> 32) + ", destAS=" + (key[0] & 0xffffffffL);
+                default: return "source=" + entry.getAddress() + ", dest=" + entry.getPeer();
+            }
         }
     }
-
-    public static final int DEFAULT_INTERVAL_SECS = 60 * 60;
-    public static final int DEFAULT_MAX_ENTRIES = 1000;
-    private static final Logger logger = LoggerFactory.getLogger(TopTalkersBackend.class);
     
-    private final Map<InetAddress, Long> cache;
+    // one interval's sketches.
+    private class Interval {
+        private final HeavyHitters[] sketches = new HeavyHitters[Dimension.values().length];
+        
+        private Interval() {
+            for (Dimension dimension : dimensions)
+                sketches[dimension.ordinal()] = new HeavyHitters(maxEntries, stripes);
+        }
+    }
+    
+    private final Dimension[] dimensions;
+    private final int maxEntries;
+    private final int stripes;
     private final HostResolver resolver;
     private final int intervalSecs;
-    private volatile Long lastStatsDump = System.currentTimeMillis();
+    private final int topN;
+    private final EpochSwap<Interval> current;
     
-    public TopTalkersBackend(HierarchicalConfiguration config) {
+    public TopTalkersBackend(HierarchicalConfiguration config) throws ConfigError {
         super(config);
         
-        int maxEntries = config.getInt("maxEntries", DEFAULT_MAX_ENTRIES);
+        maxEntries = config.getInt("maxEntries", DEFAULT_MAX_ENTRIES);
         intervalSecs = config.getInt("intervalSecs", DEFAULT_INTERVAL_SECS);
+        topN = config.getInt("topN", DEFAULT_TOP_N);
+        stripes = config.getInt("stripes", Runtime.getRuntime().availableProcessors());
+        String[] names = config.getStringArray("dimensions");
+        dimensions = new Dimension[names.length == 0 ? 1 : names.length];
+        dimensions[0] = Dimension.HOSTS;
+        for (int d = 0; d < names.length; d++)
+            dimensions[d] = Dimension.parse(names[d]);
         
-        cache = Collections.synchronizedMap(new TopTalkersBackend.CacheMap<InetAddress, Long>(maxEntries));
         resolver = new HostResolver(config);
+        current = new EpochSwap<Interval>(new Interval());
+        
+        Thread reporter = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalSecs * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    dumpStatistics();
+                }
+            }
+        }, "top-talkers");
+        reporter.setDaemon(true);
+        reporter.start();
     }
-
-    // Stores a new value, or updates to the sum of this and the previous.
-    private void storeCache(InetAddress key, Long value) {
-        if (!(cache.containsKey(key))) {
-            cache.put(key, value);
-        } else {
-            // Don't add if it would result in an overflow
-            if (!(cache.get(key) > (Long.MAX_VALUE - value)))
-                cache.put(key, (cache.get(key) + value));
-        }
+    
+    /**
+     * ends the interval: swaps in fresh sketches, then returns the top topN of
+     * each configured dimension (in configuration order) from the old ones.
+     */
+    public List<List<SpaceSaving.Entry>> swap() {
+        Interval old = current.swap(new Interval());
+        List<List<SpaceSaving.Entry>> tops = new ArrayList<List<SpaceSaving.Entry>>(dimensions.length);
+        for (Dimension dimension : dimensions)
+            tops.add(old.sketches[dimension.ordinal()].top(topN));
+        return tops;
     }
     
-    // Drop the statistics map to the logger, and purge.
+    // Drop the statistics to the logger, and start over.
     private void dumpStatistics() {
-        for (Map.Entry<InetAddress, Long> stat : cache.entrySet())
-            logger.info("host={}, bytes={}", stat.getKey().getHostAddress(), stat.getValue());
-        
-        cache.clear();
+        List<List<SpaceSaving.Entry>> tops = swap();
+        for (int d = 0; d < dimensions.length; d++) {
+            StringBuilder report = new StringBuilder("top ").append(dimensions[d].name().toLowerCase());
+            int rank = 0;
+            for (SpaceSaving.Entry entry : tops.get(d))
+                report.append(String.format("%n%4d. %s, bytes=%d, error=%d",
+                        ++rank, dimensions[d].format(entry), entry.count, entry.error));
+            logger.info(report.toString());
+        }
     }
     
     public void write(AbstractRecord record) {
-        boolean srcInternal, dstInternal;
-        
-        for (Flow flow : record.flows) {
-            srcInternal = resolver.isInternal(flow.sourceAddr);
-            dstInternal = resolver.isInternal(flow.destAddr);
-            
-            // Traffic was internal to our network
-            if (srcInternal && dstInternal) {
-                storeCache(flow.sourceAddr, (long)flow.numOctets);
-                storeCache(flow.destAddr, (long)flow.numOctets);
-            // Traffic was outgoing
-            } else if (srcInternal) {
-                storeCache(flow.sourceAddr, (long)flow.numOctets);
-            // Traffic was incoming
-            } else {
-                storeCache(flow.destAddr, (long)flow.numOctets);
-            }
+        BatchBackends.write(this, record);
+    }
+    
+    public void write(FlowBatch batch) {
+        EpochSwap.Epoch<Interval> interval = current.enter();
+        try {
+            count(interval.get(), batch);
+        } finally {
+            interval.exit();
         }
+    }
+    
+    // counts every configured dimension in a single pass over the batch; unconfigured ones are null.
+    private void count(Interval interval, FlowBatch batch) {
+        final HeavyHitters hosts = interval.sketches[Dimension.HOSTS.ordinal()];
+        final HeavyHitters ports = interval.sketches[Dimension.PORTS.ordinal()];
+        final HeavyHitters protocols = interval.sketches[Dimension.PROTOCOLS.ordinal()];
+        final HeavyHitters asPairs = interval.sketches[Dimension.AS_PAIRS.ordinal()];
+        final HeavyHitters conversations = interval.sketches[Dimension.CONVERSATIONS.ordinal()];
+        final long[] sourceHigh = batch.sourceHigh, sourceLow = batch.sourceLow;
+        final long[] destHigh = batch.destHigh, destLow = batch.destLow;
+        final long[] numOctets = batch.numOctets;
         
-        long currTime = System.currentTimeMillis();
-        boolean dumpStats = false;
-        
-        if (((currTime - lastStatsDump) / 1000) > intervalSecs) {
-            synchronized (this) {
-                if (((currTime - lastStatsDump) / 1000) > intervalSecs) {
-                    lastStatsDump = currTime;
-                    dumpStats = true;
-                }   
+        for (int i = 0; i < batch.size(); i++) {
+            if (hosts != null) {
+                boolean srcInternal = resolver.isInternal(sourceHigh[i], sourceLow[i]);
+                boolean dstInternal = resolver.isInternal(destHigh[i], destLow[i]);
+                
+                // Traffic was internal to our network
+                if (srcInternal && dstInternal) {
+                    hosts.add(sourceHigh[i], sourceLow[i], numOctets[i]);
+                    hosts.add(destHigh[i], destLow[i], numOctets[i]);
+                // Traffic was outgoing
+                } else if (srcInternal) {
+                    hosts.add(sourceHigh[i], sourceLow[i], numOctets[i]);
+                // Traffic was incoming
+                } else {
+                    hosts.add(destHigh[i], destLow[i], numOctets[i]);
+                }
             }
+            if (ports != null)
+                ports.add(((batch.protocol[i] & 0xff) << 16) | batch.destPort[i], 0, numOctets[i]);
+            if (protocols != null)
+                protocols.add(batch.protocol[i] & 0xff, 0, numOctets[i]);
+            if (asPairs != null)
+                asPairs.add(((long)batch.sourceAS[i] << 32) | (batch.destAS[i] & 0xffffffffL), 0, numOctets[i]);
+            if (conversations != null)
+                conversations.add(sourceHigh[i], sourceLow[i], destHigh[i], destLow[i], numOctets[i]);
         }
-        
-        if (dumpStats)
-            dumpStatistics();
     }
 }
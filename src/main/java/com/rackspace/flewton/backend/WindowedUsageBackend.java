@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.rackspace.flewton.backend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.ConfigError;
+import com.rackspace.flewton.FlowBatch;
+import com.rackspace.flewton.util.Address;
+import com.rackspace.flewton.util.AddressLongMap;
+import com.rackspace.flewton.util.EventTimeWindows;
+import com.rackspace.flewton.util.HostResolver;
+
+/**
+ * Logs the bytes of each of our hosts (or, for incoming traffic, the remote
+ * ones) for every window of flow time, rather than of arrival time, using
+ * {@link EventTimeWindows}: a window is logged once every active exporter's
+ * flows have passed its end, and logged again, marked as an update, if late
+ * flows change it.  Totals are exact; the heaviest <code>topN</code> hosts
+ * of each window are logged.
+ *
+ * Writers and the thread that advances the watermark share one lock, so
+ * this is best run behind a queue (see {@link QueuedBackend}).
+ */
+public class WindowedUsageBackend extends AbstractBackend implements IBatchBackend {
+    public static final int DEFAULT_TOP_N = 100;
+    public static final int DEFAULT_ADVANCE_SECS = 5;
+    private static final Logger logger = LoggerFactory.getLogger(WindowedUsageBackend.class);
+
+    // heaviest first.
+    private static final Comparator<long[]> BY_BYTES = new Comparator<long[]>() {
+        public int compare(long[] a, long[] b) {
+            return a[2] < b[2] ? 1 : a[2] > b[2] ? -1 : 0;
+        }
+    };
+
+    private final HostResolver resolver;
+    private final int topN;
+    private final EventTimeWindows windows;
+
+    public WindowedUsageBackend(HierarchicalConfiguration config) throws ConfigError {
+        super(config);
+
+        topN = config.getInt("topN", DEFAULT_TOP_N);
+        final int advanceSecs = config.getInt("advanceSecs", DEFAULT_ADVANCE_SECS);
+        resolver = new HostResolver(config);
+        try {
+            windows = EventTimeWindows.fromConfig(config, new EventTimeWindows.Listener() {
+                public void windowClosed(EventTimeWindows.Window window, boolean update) {
+                    report(window, update);
+                }
+            });
+        } catch (IllegalArgumentException ex) {
+            throw new ConfigError(ex.getMessage());
+        }
+
+        Thread advancer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(advanceSecs * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    advance(System.currentTimeMillis());
+                }
+            }
+        }, "windowed-usage");
+        advancer.setDaemon(true);
+        advancer.start();
+    }
+
+    public void write(AbstractRecord record) {
+        BatchBackends.write(this, record);
+    }
+
+    public synchronized void write(FlowBatch batch) {
+        final long[] sourceHigh = batch.sourceHigh, sourceLow = batch.sourceLow;
+        final long[] destHigh = batch.destHigh, destLow = batch.destLow;
+        final long[] numOctets = batch.numOctets;
+        final long[] timestamps = batch.timestampCalculated;
+        final int[] exporter = batch.exporter;
+
+        for (int i = 0; i < batch.size(); i++) {
+            boolean srcInternal = resolver.isInternal(sourceHigh[i], sourceLow[i]);
+            boolean dstInternal = resolver.isInternal(destHigh[i], destLow[i]);
+
+            // Traffic was internal to our network
+            if (srcInternal && dstInternal) {
+                windows.add(exporter[i], timestamps[i], sourceHigh[i], sourceLow[i], numOctets[i]);
+                windows.add(exporter[i], timestamps[i], destHigh[i], destLow[i], numOctets[i]);
+            // Traffic was outgoing
+            } else if (srcInternal) {
+                windows.add(exporter[i], timestamps[i], sourceHigh[i], sourceLow[i], numOctets[i]);
+            // Traffic was incoming
+            } else {
+                windows.add(exporter[i], timestamps[i], destHigh[i], destLow[i], numOctets[i]);
+            }
+        }
+    }
+
+    /**
+     * moves the watermark forward, logging the windows it passes.
+     *
+     * @param now wall clock time, in ms since the epoch
+     * @return the watermark
+     */
+    public synchronized long advance(long now) {
+        return windows.advance(now);
+    }
+
+    /** number of flows dropped for arriving too late, or too far ahead. */
+    public synchronized long getDropped() {
+        return windows.getDroppedLate() + windows.getDroppedAhead();
+    }
+
+    /**
+     * the heaviest topN hosts of a window, heaviest first, as { high, low, bytes }.
+     */
+    protected List<long[]> top(EventTimeWindows.Window window) {
+        final List<long[]> hosts = new ArrayList<long[]>(window.getSums().size());
+        window.getSums().forEach(new AddressLongMap.Visitor() {
+            public void visit(long high, long low, long value) {
+                hosts.add(new long[] { high, low, value });
+            }
+        });
+        Collections.sort(hosts, BY_BYTES);
+        return hosts.size() > topN ? hosts.subList(0, topN) : hosts;
+    }
+
+    /** logs a window; called with the lock held. */
+    protected void report(EventTimeWindows.Window window, boolean update) {
+        StringBuilder report = new StringBuilder(update ? "updated usage " : "usage ")
+                .append(new Date(window.getStart()))
+                .append(" for ").append((window.getEnd() - window.getStart()) / 1000).append("s")
+                .append(": bytes=").append(window.getTotal());
+        int rank = 0;
+        for (long[] host : top(window))
+            report.append(String.format("%n%4d. host=%s, bytes=%d", ++rank, new Address(host[0], host[1]), host[2]));
+        logger.info(report.toString());
+    }
+}
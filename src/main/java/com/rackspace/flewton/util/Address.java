@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A dual-stack IP address packed into two longs: the high and low 64 bits of
+ * an IPv6 address, with IPv4 addresses held IPv4-mapped (::ffff:a.b.c.d), so
+ * that one encoding covers both families and compares, hashes and sorts
+ * without touching the heap.  {@link com.rackspace.flewton.FlowBatch} stores
+ * addresses as pairs of long columns in this form; the static methods work on
+ * them directly, and instances are small immutable keys for maps.
+ */
+public final class Address implements Comparable<Address> {
+    /** the low 64 bits of an IPv4-mapped address, less the IPv4 address itself. */
+    public static final long IPV4_MAPPED = 0x0000ffff00000000L;
+
+    private final long high;
+    private final long low;
+
+    public Address(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /** an IPv4 address, packed big-endian into an int (10.0.0.1 is 0x0a000001). */
+    public static Address fromIPv4(int addr) {
+        return new Address(0, mapIPv4(addr));
+    }
+
+    public static Address fromInetAddress(InetAddress addr) {
+        return new Address(high(addr), low(addr));
+    }
+
+    /**
+     * parses an IPv4 or IPv6 literal; never does a DNS lookup.
+     *
+     * @throws IllegalArgumentException if it isn't an address
+     */
+    public static Address parse(String literal) {
+        literal = literal.trim();
+        // getByName() only skips DNS for things that look like literals.
+        boolean literalChars = literal.length() > 0;
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            literalChars &= c == ':' || c == '.' || Character.digit(c, 16) >= 0;
+        }
+        if (!literalChars || (literal.indexOf(':') < 0 && !literal.matches("[0-9]+(\\.[0-9]+){3}")))
+            throw new IllegalArgumentException("not an IP address: " + literal);
+        try {
+            return fromInetAddress(InetAddress.getByName(literal));
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("not an IP address: " + literal);
+        }
+    }
+
+    /** the low half of an IPv4-mapped address. */
+    public static long mapIPv4(int addr) {
+        return IPV4_MAPPED | (addr & 0xffffffffL);
+    }
+
+    /** the high 64 bits of addr. */
+    public static long high(InetAddress addr) {
+        if (addr instanceof Inet4Address)
+            return 0;
+        byte[] bytes = addr.getAddress();
+        return bytesToLong(bytes, 0);
+    }
+
+    /** the low 64 bits of addr. */
+    public static long low(InetAddress addr) {
+        // Inet4Address's hash code is the address itself, which saves getAddress() copying it.
+        if (addr instanceof Inet4Address)
+            return mapIPv4(addr.hashCode());
+        byte[] bytes = addr.getAddress();
+        return bytesToLong(bytes, 8);
+    }
+
+    /** true if (high, low) is an IPv4(-mapped) address. */
+    public static boolean isIPv4(long high, long low) {
+        return high == 0 && (low & 0xffffffff00000000L) == IPV4_MAPPED;
+    }
+
+    public static InetAddress toInetAddress(long high, long low) {
+        if (isIPv4(high, low))
+            return HostResolver.int2InetAddress((int)low);
+        byte[] bytes = new byte[16];
+        longToBytes(high, bytes, 0);
+        longToBytes(low, bytes, 8);
+        try {
+            return Inet6Address.getByAddress(null, bytes, -1);
+        } catch (UnknownHostException e) {
+            // only thrown for a bad length.
+            throw new AssertionError(e);
+        }
+    }
+
+    /** dotted quad for IPv4, otherwise RFC 5952 text (lower case, longest run of zeros as ::). */
+    public static String toString(long high, long low) {
+        if (isIPv4(high, low))
+            return HostResolver.int2dotted((int)low);
+        int[] groups = new int[8];
+        for (int g = 0; g < 4; g++) {
+            groups[g] = (int)(high >>> (48 - 16 * g)) & 0xffff;
+            groups[g + 4] = (int)(low >>> (48 - 16 * g)) & 0xffff;
+        }
+        // the longest run of two or more zero groups, the first if tied.
+        int runStart = -1, runLength = 1;
+        for (int g = 0; g < 8; ) {
+            if (groups[g] != 0) {
+                g++;
+                continue;
+            }
+            int end = g;
+            while (end < 8 && groups[end] == 0)
+                end++;
+            if (end - g > runLength) {
+                runStart = g;
+                runLength = end - g;
+            }
+            g = end;
+        }
+        StringBuilder out = new StringBuilder(39);
+        for (int g = 0; g < 8; g++) {
+            if (g == runStart) {
+                out.append("::");
+                g += runLength - 1;
+                continue;
+            }
+            if (out.length() > 0 && out.charAt(out.length() - 1) != ':')
+                out.append(':');
+            out.append(Integer.toHexString(groups[g]));
+        }
+        return out.toString();
+    }
+
+    private static long bytesToLong(byte[] bytes, int from) {
+        long value = 0;
+        for (int i = from; i < from + 8; i++)
+            value = (value << 8) | (bytes[i] & 0xff);
+        return value;
+    }
+
+    private static void longToBytes(long value, byte[] bytes, int from) {
+        for (int i = from + 7; i >= from; i--) {
+            bytes[i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public boolean isIPv4() {
+        return isIPv4(high, low);
+    }
+
+    /** the IPv4 address, packed into an int; only meaningful if {@link #isIPv4()}. */
+    public int getIPv4() {
+        return (int)low;
+    }
+
+    public InetAddress toInetAddress() {
+        return toInetAddress(high, low);
+    }
+
+    /** mixes both halves; usable as is for hashing addresses into open-addressed tables. */
+    public static int hashCode(long high, long low) {
+        long h = high * 0x9e3779b97f4a7c15L + low;
+        h *= 0xc2b2ae3d27d4eb4fL;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode(high, low);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Address))
+            return false;
+        Address other = (Address)obj;
+        return high == other.high && low == other.low;
+    }
+
+    /** unsigned, so IPv4-mapped addresses sort together and in order. */
+    public int compareTo(Address other) {
+        if (high != other.high)
+            return high + Long.MIN_VALUE < other.high + Long.MIN_VALUE ? -1 : 1;
+        if (low != other.low)
+            return low + Long.MIN_VALUE < other.low + Long.MIN_VALUE ? -1 : 1;
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return toString(high, low);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current epoch's state (e.g. counters) for writers on many
+ * threads, and lets a reader swap in fresh state and then read the old state
+ * once every writer that was using it has finished.  Writers never lock or
+ * wait: entering an epoch is a couple of atomic operations, retried only if
+ * a swap happens at that moment.  The reader waits for the stragglers.
+ *
+ * <pre>
+ * EpochSwap.Epoch&lt;Counters&gt; epoch = counters.enter();
+ * try {
+ *     epoch.get().add(...);
+ * } finally {
+ *     epoch.exit();
+ * }
+ * </pre>
+ */
+public class EpochSwap<T> {
+    /** one epoch's state, and the number of writers using it. */
+    public static class Epoch<T> {
+        private final T value;
+        private final AtomicInteger writers = new AtomicInteger();
+
+        private Epoch(T value) {
+            this.value = value;
+        }
+
+        public T get() {
+            return value;
+        }
+
+        /** finishes writing to this epoch. */
+        public void exit() {
+            writers.decrementAndGet();
+        }
+    }
+
+    private final AtomicReference<Epoch<T>> current;
+
+    public EpochSwap(T initial) {
+        current = new AtomicReference<Epoch<T>>(new Epoch<T>(initial));
+    }
+
+    /** the current epoch, which the caller must {@link Epoch#exit()} when done with it. */
+    public Epoch<T> enter() {
+        while (true) {
+            Epoch<T> epoch = current.get();
+            epoch.writers.incrementAndGet();
+            // if it was swapped out in between, the reader may already be reading it.
+            if (current.get() == epoch)
+                return epoch;
+            epoch.writers.decrementAndGet();
+        }
+    }
+
+    /** the current epoch's state, for peeking at; it may be changing. */
+    public T peek() {
+        return current.get().value;
+    }
+
+    /**
+     * makes fresh the current state, and returns the old state once no writer
+     * is using it.  Only one thread should swap.
+     */
+    public T swap(T fresh) {
+        Epoch<T> old = current.getAndSet(new Epoch<T>(fresh));
+        // writers that entered before the swap finish with it shortly.
+        while (old.writers.get() > 0)
+            Thread.yield();
+        return old.value;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+
+/**
+ * Per-key sums over tumbling or sliding windows of flow (event) time, rather
+ * than of when flows happen to arrive: routers hold flows for up to their
+ * active timeout, so a flow's timestamp can trail its arrival by many minutes.
+ *
+ * Each exporter's watermark is the latest flow time it has sent, less
+ * <code>outOfOrder</code>, the most its flows are expected to trail one
+ * another.  The engine's watermark is the least of the watermarks of the
+ * exporters heard from within <code>idle</code> (so an exporter that goes
+ * quiet doesn't hold every window open); it never goes backwards.  A window is
+ * reported once the watermark passes its end, and kept for
+ * <code>allowedLateness</code> more: flows that arrive in that time update it,
+ * and it is reported again.  Flows for windows older than that are counted and
+ * dropped, as are flows more than <code>maxAhead</code> beyond the watermark
+ * (a router with a broken clock), so the number of open windows is bounded.
+ *
+ * Open windows are found by slot (start / slide) in a {@link LongLongMap} and
+ * hold their sums in {@link AddressLongMap}s, and exporters' state is in
+ * primitive arrays, so adding to a window that is already open doesn't
+ * allocate.  Not thread-safe: use from one thread, as backends behind a
+ * {@link com.rackspace.flewton.backend.QueuedBackend} are.
+ */
+public class EventTimeWindows {
+    /** receives windows as the watermark passes them. */
+    public interface Listener {
+        /**
+         * @param window the window, with its sums so far; don't keep it
+         * @param update true if the window was reported before, and late flows have changed it
+         */
+        void windowClosed(Window window, boolean update);
+    }
+
+    /** one window's sums. */
+    public static class Window {
+        private final long start;
+        private final long end;
+        private final AddressLongMap sums = new AddressLongMap();
+        private long total = 0;
+        private boolean reported = false;
+        private boolean changed = false;
+
+        private Window(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /** first millisecond of the window. */
+        public long getStart() {
+            return start;
+        }
+
+        /** the millisecond after the window. */
+        public long getEnd() {
+            return end;
+        }
+
+        /** sums by key. */
+        public AddressLongMap getSums() {
+            return sums;
+        }
+
+        /** the sum over all keys. */
+        public long getTotal() {
+            return total;
+        }
+    }
+
+    public static final long NO_WATERMARK = Long.MIN_VALUE;
+
+    private final long size;
+    private final long slide;
+    private final long outOfOrder;
+    private final long allowedLateness;
+    private final long idle;
+    private final long maxAhead;
+    private final Listener listener;
+
+    // open windows, oldest first.
+    private final List<Window> windows = new ArrayList<Window>();
+    // slot (start / slide) -> 1 + the window's index in windows.
+    private final LongLongMap windowIndex = new LongLongMap();
+    // exporter id -> 1 + its index in the arrays below.
+    private final IntLongMap exporterSlots = new IntLongMap();
+    // by exporter: latest flow time, wall clock time last heard from, flows since the last advance.
+    private long[] latestTime = new long[4];
+    private long[] lastHeard = new long[4];
+    private long[] sinceAdvance = new long[4];
+    private int exporterCount = 0;
+    private int lastExporter = -1;
+    private int lastExporterId;
+    private Window lastWindow;
+    private long watermark = NO_WATERMARK;
+    private long droppedLate = 0;
+    private long droppedAhead = 0;
+
+    /**
+     * @param size window length in ms
+     * @param slide ms between window starts; equal to size for tumbling windows
+     * @param outOfOrder how far an exporter's flows may trail its latest, in ms
+     * @param allowedLateness how long to keep windows, and accept flows for them, after reporting them, in ms
+     * @param idle how long an exporter may go unheard before the watermark stops waiting for it, in ms
+     * @param maxAhead how far beyond the watermark flows may be, in ms
+     */
+    public EventTimeWindows(long size, long slide, long outOfOrder, long allowedLateness, long idle, long maxAhead,
+            Listener listener) {
+        if (size <= 0 || slide <= 0 || slide > size || size % slide != 0)
+            throw new IllegalArgumentException("window size must be a positive multiple of the slide");
+        this.size = size;
+        this.slide = slide;
+        this.outOfOrder = outOfOrder;
+        this.allowedLateness = allowedLateness;
+        this.idle = idle;
+        this.maxAhead = maxAhead;
+        this.listener = listener;
+    }
+
+    /**
+     * reads windowSecs (60), slideSecs (windowSecs), outOfOrderSecs (60),
+     * allowedLatenessSecs (1800, a common active timeout), idleExporterSecs
+     * (300) and maxAheadSecs (3600).
+     */
+    public static EventTimeWindows fromConfig(HierarchicalConfiguration config, Listener listener) {
+        long windowSecs = config.getLong("windowSecs", 60);
+        return new EventTimeWindows(windowSecs * 1000,
+                config.getLong("slideSecs", windowSecs) * 1000,
+                config.getLong("outOfOrderSecs", 60) * 1000,
+                config.getLong("allowedLatenessSecs", 30 * 60) * 1000,
+                config.getLong("idleExporterSecs", 5 * 60) * 1000,
+                config.getLong("maxAheadSecs", 60 * 60) * 1000,
+                listener);
+    }
+
+    /**
+     * adds value to a key in every window containing the flow time.
+     *
+     * @param exporter identifies the exporter (see {@link com.rackspace.flewton.FlowBatch#exporter})
+     * @param time flow time, in ms since the epoch
+     * @return false if the flow was too late, or too far ahead, and was dropped
+     */
+    public boolean add(int exporter, long time, long high, long low, long value) {
+        int e = exporter(exporter);
+        if (watermark != NO_WATERMARK) {
+            if (time >= watermark + maxAhead) {
+                droppedAhead++;
+                return false;
+            }
+            // too late for even the last window containing it.
+            if (windowStart(time) + size + allowedLateness <= watermark) {
+                droppedLate++;
+                return false;
+            }
+        }
+        if (time > latestTime[e])
+            latestTime[e] = time;
+        sinceAdvance[e]++;
+
+        for (long start = windowStart(time); start > time - size; start -= slide) {
+            if (watermark != NO_WATERMARK && start + size + allowedLateness <= watermark)
+                break;
+            Window window = window(start);
+            window.sums.addAndGet(high, low, value);
+            window.total += value;
+            window.changed = true;
+        }
+        return true;
+    }
+
+    /**
+     * moves the watermark forward from what the exporters have sent, reports
+     * the windows it passes (and those changed by late flows), and discards
+     * windows past their allowed lateness.
+     *
+     * @param now wall clock time, in ms since the epoch, for telling when exporters went idle
+     * @return the watermark
+     */
+    public long advance(long now) {
+        long active = Long.MAX_VALUE, latest = NO_WATERMARK;
+        for (int e = 0; e < exporterCount; e++) {
+            // nothing but dropped flows from it yet.
+            if (latestTime[e] == NO_WATERMARK)
+                continue;
+            if (sinceAdvance[e] > 0) {
+                lastHeard[e] = now;
+                sinceAdvance[e] = 0;
+            }
+            long mark = latestTime[e] - outOfOrder;
+            latest = Math.max(latest, mark);
+            if (now - lastHeard[e] < idle)
+                active = Math.min(active, mark);
+        }
+        // with every exporter idle, go as far as any has told us.
+        long next = active != Long.MAX_VALUE ? active : latest;
+        if (next > watermark)
+            watermark = next;
+
+        report(watermark);
+        return watermark;
+    }
+
+    /** reports every open window, whether or not the watermark has passed it, and discards them all. */
+    public void flush() {
+        report(Long.MAX_VALUE);
+    }
+
+    private void report(long mark) {
+        // windows end in start order, so those to discard come first.
+        int closed = 0;
+        for (Window window : windows) {
+            if (window.end > mark)
+                break;
+            if (!window.reported || window.changed)
+                listener.windowClosed(window, window.reported);
+            window.reported = true;
+            window.changed = false;
+            if (mark == Long.MAX_VALUE || window.end + allowedLateness <= mark)
+                closed++;
+        }
+        if (closed > 0) {
+            windows.subList(0, closed).clear();
+            reindex();
+            lastWindow = null;
+        }
+    }
+
+    /** the watermark: every window ending at or before it has been reported. */
+    public long getWatermark() {
+        return watermark;
+    }
+
+    /** number of windows being held. */
+    public int getOpenWindows() {
+        return windows.size();
+    }
+
+    /** number of flows dropped for arriving after their windows' allowed lateness. */
+    public long getDroppedLate() {
+        return droppedLate;
+    }
+
+    /** number of flows dropped for being too far beyond the watermark. */
+    public long getDroppedAhead() {
+        return droppedAhead;
+    }
+
+    /** the starts of the open windows, oldest first. */
+    public List<Long> getWindowStarts() {
+        List<Long> starts = new ArrayList<Long>(windows.size());
+        for (Window window : windows)
+            starts.add(window.start);
+        return starts;
+    }
+
+    // start of the latest window containing time.
+    private long windowStart(long time) {
+        long offset = time % slide;
+        return time - (offset < 0 ? offset + slide : offset);
+    }
+
+    private Window window(long start) {
+        // flows mostly land in the window the last one did.
+        if (lastWindow != null && lastWindow.start == start)
+            return lastWindow;
+        int i = (int)windowIndex.get(start / slide) - 1;
+        Window window;
+        if (i >= 0) {
+            window = windows.get(i);
+        } else {
+            window = new Window(start, start + size);
+            // late flows may open a window behind newer ones.
+            int at = windows.size();
+            while (at > 0 && windows.get(at - 1).start > start)
+                at--;
+            windows.add(at, window);
+            if (at == windows.size() - 1)
+                windowIndex.addAndGet(start / slide, at + 1);
+            else
+                reindex();
+        }
+        lastWindow = window;
+        return window;
+    }
+
+    // rebuilds windowIndex after windows has shifted.
+    private void reindex() {
+        windowIndex.clear();
+        for (int i = 0; i < windows.size(); i++)
+            windowIndex.addAndGet(windows.get(i).start / slide, i + 1);
+    }
+
+    // the exporter's index in the state arrays, adding it the first time it is seen.
+    private int exporter(int id) {
+        if (lastExporter >= 0 && lastExporterId == id)
+            return lastExporter;
+        int e = (int)exporterSlots.get(id) - 1;
+        if (e < 0) {
+            e = exporterCount++;
+            if (e == latestTime.length) {
+                latestTime = Arrays.copyOf(latestTime, e * 2);
+                lastHeard = Arrays.copyOf(lastHeard, e * 2);
+                sinceAdvance = Arrays.copyOf(sinceAdvance, e * 2);
+            }
+            latestTime[e] = NO_WATERMARK;
+            lastHeard[e] = Long.MIN_VALUE;
+            sinceAdvance[e] = 0;
+            exporterSlots.addAndGet(id, e + 1);
+        }
+        lastExporterId = id;
+        lastExporter = e;
+        return e;
+    }
+}
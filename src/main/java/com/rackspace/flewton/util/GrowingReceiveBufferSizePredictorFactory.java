@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import org.jboss.netty.channel.ReceiveBufferSizePredictor;
+import org.jboss.netty.channel.ReceiveBufferSizePredictorFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receive buffers that start small (Netflow v5 never needs more than ~1.5k) and
+ * double, up to a maximum, whenever a datagram fills one completely, which is
+ * the only sign we get that it was truncated.  Unlike Netty's adaptive
+ * predictor they never shrink back: an exporter that sent one large datagram
+ * (IPFIX, v9 templates) will send more.
+ */
+public class GrowingReceiveBufferSizePredictorFactory implements ReceiveBufferSizePredictorFactory {
+    private static final Logger logger = LoggerFactory.getLogger(GrowingReceiveBufferSizePredictorFactory.class);
+    // largest possible UDP payload.
+    public static final int MAX_DATAGRAM_SIZE = 65535;
+
+    private final int initial;
+    private final int maximum;
+
+    public GrowingReceiveBufferSizePredictorFactory(int initial, int maximum) {
+        this.maximum = Math.min(maximum, MAX_DATAGRAM_SIZE);
+        this.initial = Math.min(initial, this.maximum);
+    }
+
+    public ReceiveBufferSizePredictor getPredictor() throws Exception {
+        return new Predictor();
+    }
+
+    // one per channel, only used from that channel's worker thread.
+    private class Predictor implements ReceiveBufferSizePredictor {
+        private int size = initial;
+
+        public int nextReceiveBufferSize() {
+            return size;
+        }
+
+        public void previousReceiveBufferSize(int previousReceiveBufferSize) {
+            if (previousReceiveBufferSize >= size && size < maximum) {
+                size = Math.min(size * 2, maximum);
+                logger.info("Datagram filled the receive buffer; growing it to {} bytes", size);
+            }
+        }
+    }
+}
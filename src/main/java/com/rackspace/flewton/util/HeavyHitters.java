@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link SpaceSaving} that many threads can add to at once.  Keys are split by
+ * hash across independent stripes, each with its own lock, so threads rarely
+ * contend, and since a key always goes to the same stripe
+ * each keeps Space-Saving's guarantee for its share of the stream: no count is
+ * overestimated by more than its stripe's total / (capacity / stripes).
+ */
+public class HeavyHitters {
+    private final SpaceSaving[] stripes;
+    private final int mask;
+
+    /**
+     * @param capacity counters in all, shared among the stripes
+     * @param stripes number of stripes, rounded up to a power of two
+     */
+    public HeavyHitters(int capacity, int stripes) {
+        int count = Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1);
+        this.stripes = new SpaceSaving[count];
+        for (int s = 0; s < count; s++)
+            this.stripes[s] = new SpaceSaving(Math.max(capacity / count, 1));
+        mask = count - 1;
+    }
+
+    /** adds weight to an address, or any key of up to two longs. */
+    public void add(long high, long low, long weight) {
+        add(high, low, 0, 0, weight);
+    }
+
+    /** adds weight to a key of up to four longs. */
+    public void add(long k0, long k1, long k2, long k3, long weight) {
+        SpaceSaving stripe = stripes[SpaceSaving.hashCode(k0, k1, k2, k3) & mask];
+        synchronized (stripe) {
+            stripe.add(k0, k1, k2, k3, weight);
+        }
+    }
+
+    /** the heaviest n keys, heaviest first. */
+    public List<SpaceSaving.Entry> top(int n) {
+        return top(n, false);
+    }
+
+    /**
+     * the heaviest n keys, heaviest first, optionally starting afresh;
+     * each stripe is read and cleared in one step, so no weight is lost.
+     */
+    public List<SpaceSaving.Entry> top(int n, boolean clear) {
+        List<SpaceSaving.Entry> entries = new ArrayList<SpaceSaving.Entry>();
+        for (SpaceSaving stripe : stripes) {
+            synchronized (stripe) {
+                entries.addAll(stripe.top(n));
+                if (clear)
+                    stripe.clear();
+            }
+        }
+        Collections.sort(entries, SpaceSaving.Entry.HEAVIEST_FIRST);
+        return n < entries.size() ? new ArrayList<SpaceSaving.Entry>(entries.subList(0, n)) : entries;
+    }
+
+    /** total weight added. */
+    public long getTotal() {
+        long total = 0;
+        for (SpaceSaving stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.getTotal();
+            }
+        }
+        return total;
+    }
+
+    /** the largest amount any count can currently be overestimated by. */
+    public long getMaxError() {
+        long error = 0;
+        for (SpaceSaving stripe : stripes) {
+            synchronized (stripe) {
+                error = Math.max(error, stripe.getMaxError());
+            }
+        }
+        return error;
+    }
+
+    public void clear() {
+        for (SpaceSaving stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+}
@@ -30,60 +30,72 @@ package com.rackspace.flewton.util;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
-/** determines if a host is in a list of netblocks. */
+/** determines if a host is in a list of (IPv4 or IPv6) netblocks. */
 public class HostResolver {
-    private final List<Block> internalBlocks = new ArrayList<Block>(); 
+    private final PrefixTrie internalBlocks = new PrefixTrie();
     
     public HostResolver(HierarchicalConfiguration config) {
         for (String desc : config.getStringArray("network"))
-            internalBlocks.add(new Block(desc));
+            addBlock(internalBlocks, desc, 1);
     }
     
     /** return true if addr is internal to one of my networks. */
     public boolean isInternal(InetAddress addr) {
-        // check all configured netblocks.
-        for (Block block : internalBlocks)
-            if (block.includes(addr))
-                return true;
-        return false;
+        // Inet4Address's hash code is the address itself, which saves getAddress() copying it.
+        if (addr instanceof Inet4Address)
+            return isInternal(addr.hashCode());
+        return isInternal(Address.high(addr), Address.low(addr));
     }
     
-    /** netblock abstraction. */
-    private static class Block {
-        private final int network;
-        private final int mask;
-        
-        /** specify your netblock like "xx.xx.xx.xx/x" */
-        private Block(String desc) {
+    /** return true if addr (an IPv4 address packed big-endian, e.g. 10.0.0.1 is 0x0a000001) is internal. */
+    public boolean isInternal(int addr) {
+        return internalBlocks.contains(addr);
+    }
+    
+    /** return true if the address (high, low), as packed by {@link Address}, is internal. */
+    public boolean isInternal(long high, long low) {
+        return internalBlocks.contains(high, low);
+    }
+    
+    /**
+     * adds a netblock, specified like "xx.xx.xx.xx/x" or "xxxx:xxxx::/x", to a trie.
+     */
+    public static void addBlock(PrefixTrie trie, String desc, int value) {
+        if (desc.indexOf(':') >= 0) {
             int slash = desc.indexOf('/');
-            assert slash > -1;
-            int prefix = Integer.parseInt(desc.substring(slash + 1));
-            String[] soctets = desc.substring(0, slash).split("\\.");
-            // turn the addr part into an addr.
-            int addr = (((byte)Integer.parseInt(soctets[3]) & 0xff) << 0) +
-                      (((byte)Integer.parseInt(soctets[2]) & 0xff) << 8) +
-                      (((byte)Integer.parseInt(soctets[1]) & 0xff) << 16) +
-                      (((byte)Integer.parseInt(soctets[0]) & 0xff) << 24);
-            
-            // now slam off the bits we don't need.
-            mask = 0xffffffff << (32 - prefix);
-            network = addr & mask;
-        }
-        
-        /** return true if this block includes an addr. */
-        private boolean includes(InetAddress addr) {
-            byte[] b = addr.getAddress();
-            int address = ((b[3] & 0xFF) << 0) +
-                       ((b[2] & 0xFF) << 8) +
-                       ((b[1] & 0xFF) << 16) +
-                       ((b[0]) << 24);
-            return (address & mask) == network;
+            if (slash < 0)
+                throw new IllegalArgumentException("netblock is not in CIDR form: " + desc);
+            Address network = Address.parse(desc.substring(0, slash));
+            int length = Integer.parseInt(desc.substring(slash + 1).trim());
+            trie.put(network.getHigh(), network.getLow(), length, value);
+            return;
         }
+        int[] block = parseBlock(desc);
+        trie.put(block[0], block[1], value);
+    }
+    
+    /**
+     * parses a netblock, specified like "xx.xx.xx.xx/x", into its address and prefix length.
+     */
+    public static int[] parseBlock(String desc) {
+        int slash = desc.indexOf('/');
+        if (slash < 0)
+            throw new IllegalArgumentException("netblock is not in CIDR form: " + desc);
+        int prefix = Integer.parseInt(desc.substring(slash + 1).trim());
+        String[] soctets = desc.substring(0, slash).trim().split("\\.");
+        if (soctets.length != 4)
+            throw new IllegalArgumentException("netblock is not in CIDR form: " + desc);
+        // turn the addr part into an addr.
+        int addr = ((Integer.parseInt(soctets[3]) & 0xff) << 0) +
+                   ((Integer.parseInt(soctets[2]) & 0xff) << 8) +
+                   ((Integer.parseInt(soctets[1]) & 0xff) << 16) +
+                   ((Integer.parseInt(soctets[0]) & 0xff) << 24);
+        return new int[]{ addr, prefix };
     }
     
     // serialize an integer. 
@@ -100,6 +112,33 @@ public class HostResolver {
         return ByteBuffer.wrap(int2byte(i));
     }
     
+    // deserialize an integer (e.g. an IPv4 address).
+    public static int byte2int(byte[] b) {
+        return ((b[0] & 0xff) << 24) |
+               ((b[1] & 0xff) << 16) |
+               ((b[2] & 0xff) << 8) |
+               ((b[3] & 0xff) << 0);
+    }
+    
+    public static InetAddress int2InetAddress(int addr) {
+        try {
+            return InetAddress.getByAddress(int2byte(addr));
+        } catch (UnknownHostException e) {
+            // This should never happen; 4 bytes will always be legal IPv4.
+            throw new RuntimeException("Failed parsing IPv4 address!", e);
+        }
+    }
+    
+    // dotted-quad form of an IPv4 address, without going through InetAddress.
+    public static String int2dotted(int addr) {
+        return new StringBuilder(15)
+                .append((addr >>> 24) & 0xff).append('.')
+                .append((addr >>> 16) & 0xff).append('.')
+                .append((addr >>> 8) & 0xff).append('.')
+                .append(addr & 0xff)
+                .toString();
+    }
+    
     // serialize a long.
     public static byte[] long2byte(long l) {
         byte[] b = new byte[8];
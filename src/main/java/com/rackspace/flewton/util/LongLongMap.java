@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from longs to long sums, open-addressed with linear probing over
+ * primitive arrays: adding to a key neither boxes nor allocates (short of
+ * growing the table), and a slot costs 17 bytes, with the
+ * table kept at most half full, rather than a HashMap entry, key and value
+ * objects.  Entries can't be removed, only cleared all at once.  Not
+ * thread-safe.
+ */
+public class LongLongMap {
+    /** callback for {@link LongLongMap#forEach(Visitor)}. */
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size = 0;
+
+    public LongLongMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /** @param expected number of keys to size the table for */
+    public LongLongMap(int expected) {
+        allocate(tableSize(expected));
+    }
+
+    /** adds delta to the key's value (0 if absent) and returns the sum. */
+    public long addAndGet(long key, long delta) {
+        int slot = find(key);
+        if (!used[slot]) {
+            if (size + 1 > keys.length / 2) {
+                grow();
+                slot = find(key);
+            }
+            used[slot] = true;
+            keys[slot] = key;
+            values[slot] = 0;
+            size++;
+        }
+        return values[slot] += delta;
+    }
+
+    /** adds every entry of other into this map, e.g. to merge per-thread counts. */
+    public void addAll(LongLongMap other) {
+        for (int slot = 0; slot < other.used.length; slot++)
+            if (other.used[slot])
+                addAndGet(other.keys[slot], other.values[slot]);
+    }
+
+    /** the key's value, or 0 if absent. */
+    public long get(long key) {
+        int slot = find(key);
+        return used[slot] ? values[slot] : 0;
+    }
+
+    public boolean containsKey(long key) {
+        return used[find(key)];
+    }
+
+    /** number of keys. */
+    public int size() {
+        return size;
+    }
+
+    /** empties the map, keeping its table. */
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /** visits every entry, in no particular order. */
+    public void forEach(Visitor visitor) {
+        for (int slot = 0; slot < used.length; slot++)
+            if (used[slot])
+                visitor.visit(keys[slot], values[slot]);
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        long h = key * 0x9e3779b97f4a7c15L;
+        int slot = (int)(h >>> 32) >>> Integer.numberOfLeadingZeros(mask);
+        while (used[slot] && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys, oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(keys.length * 2);
+        for (int slot = 0; slot < oldUsed.length; slot++) {
+            if (!oldUsed[slot])
+                continue;
+            int to = find(oldKeys[slot]);
+            used[to] = true;
+            keys[to] = oldKeys[slot];
+            values[to] = oldValues[slot];
+        }
+    }
+
+    // a power of two at least twice expected.
+    private static int tableSize(int expected) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(expected, 1) * 4 - 1));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Labels (e.g. tenant ids) for IPv4 prefixes, looked up in a table file that
+ * is memory-mapped rather than read onto the heap.  The table is compiled
+ * from a CSV of <code>prefix,label</code> lines (see {@link #main(String[])})
+ * into sorted, disjoint address ranges, each with the label of the longest
+ * prefix covering it, so a lookup is a binary search over the mapped file:
+ * no locks and no allocation.
+ *
+ * To change the table, compile a new one and rename it over the old file;
+ * {@link #reload()} (or the thread started by {@link #startReloading(long)})
+ * maps the new file and swaps it in atomically, while lookups already under
+ * way finish against the old one.  Never rewrite the file in place.
+ *
+ * File layout (big-endian): magic, version, range count, then the ranges'
+ * first addresses, last addresses and labels as three int arrays.
+ */
+public class PrefixLabels {
+    private static final Logger logger = LoggerFactory.getLogger(PrefixLabels.class);
+    /** returned for addresses no prefix covers. */
+    public static final int NO_LABEL = -1;
+    private static final int MAGIC = 0x464c424c; // "FLBL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final File file;
+    private volatile Table table;
+
+    /**
+     * maps a compiled table.
+     *
+     * @throws IOException if the file can't be read or isn't a label table
+     */
+    public PrefixLabels(File file) throws IOException {
+        this.file = file;
+        reload();
+    }
+
+    /** the label of the longest prefix containing addr (an IPv4 address packed into an int), or NO_LABEL. */
+    public int lookup(int addr) {
+        return table.lookup(addr);
+    }
+
+    /** number of address ranges in the current table. */
+    public int size() {
+        return table.count;
+    }
+
+    /** maps the table file again, if it was replaced since it was last mapped. */
+    public synchronized boolean reloadIfChanged() throws IOException {
+        if (file.lastModified() == table.modified && file.length() == table.length)
+            return false;
+        reload();
+        return true;
+    }
+
+    /** maps the table file and makes it the one lookups use. */
+    public synchronized void reload() throws IOException {
+        long modified = file.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping outlives the channel.
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            table = new Table(mapped, modified, channel.size());
+        } finally {
+            raf.close();
+        }
+        logger.info("Loaded {} labelled address ranges from {}", table.count, file);
+    }
+
+    /** checks for a new table file every intervalMillis, on a daemon thread. */
+    public void startReloading(final long intervalMillis) {
+        Thread reloader = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                        reloadIfChanged();
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (IOException ex) {
+                        // keep the table we have.
+                        logger.error("Unable to reload " + file, ex);
+                    }
+                }
+            }
+        }, "label-reloader");
+        reloader.setDaemon(true);
+        reloader.start();
+    }
+
+    // one mapped table file; immutable.
+    private static class Table {
+        private final ByteBuffer buffer;
+        private final int count;
+        private final int ends;
+        private final int labels;
+        private final long modified;
+        private final long length;
+
+        private Table(ByteBuffer buffer, long modified, long length) throws IOException {
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+                throw new IOException("not a prefix label table");
+            if (buffer.getInt(4) != VERSION)
+                throw new IOException("unsupported prefix label table version " + buffer.getInt(4));
+            count = buffer.getInt(8);
+            if (count < 0 || buffer.capacity() != HEADER_SIZE + count * 12L)
+                throw new IOException("prefix label table is truncated");
+            this.buffer = buffer;
+            this.ends = HEADER_SIZE + count * 4;
+            this.labels = HEADER_SIZE + count * 8;
+            this.modified = modified;
+            this.length = length;
+        }
+
+        private int lookup(int addr) {
+            long key = addr & 0xffffffffL;
+            // the last range starting at or before addr.
+            int low = 0, high = count - 1, found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if ((buffer.getInt(HEADER_SIZE + mid * 4) & 0xffffffffL) <= key) {
+                    found = mid;
+                    low = mid + 1;
+                } else
+                    high = mid - 1;
+            }
+            if (found < 0 || (buffer.getInt(ends + found * 4) & 0xffffffffL) < key)
+                return NO_LABEL;
+            return buffer.getInt(labels + found * 4);
+        }
+    }
+
+    /**
+     * Compiles a CSV of <code>a.b.c.d/n,label</code> lines (labels are
+     * non-negative ints; blank lines and lines starting with # are skipped)
+     * into a table file.  The table is written next to its destination and
+     * renamed into place, so a running collector never sees half of it.
+     *
+     * <pre>PrefixLabels labels.csv labels.tbl</pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: PrefixLabels <prefixes.csv> <table>");
+            System.exit(1);
+        }
+        int ranges = compile(new File(args[0]), new File(args[1]));
+        System.out.println("Wrote " + ranges + " address ranges to " + args[1]);
+    }
+
+    /** compiles a CSV of prefixes and labels into a table file; returns the number of ranges. */
+    public static int compile(File csv, File table) throws IOException {
+        // later lines replace earlier ones for the same prefix.
+        PrefixTrie prefixes = new PrefixTrie();
+        List<Long> bounds = new ArrayList<Long>();
+        BufferedReader reader = new BufferedReader(new FileReader(csv));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+                int comma = line.indexOf(',');
+                if (comma < 0)
+                    throw new IOException(csv + ":" + lineNumber + ": expected prefix,label");
+                try {
+                    int[] block = HostResolver.parseBlock(line.substring(0, comma));
+                    int label = Integer.parseInt(line.substring(comma + 1).trim());
+                    if (label < 0)
+                        throw new IllegalArgumentException("labels may not be negative: " + label);
+                    prefixes.put(block[0], block[1], label);
+                    long first = (block[0] & 0xffffffffL) & ~(0xffffffffL >>> block[1]);
+                    bounds.add(first);
+                    bounds.add(first + (1L << (32 - block[1])));
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException(csv + ":" + lineNumber + ": " + ex.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // the longest match can only change where a prefix starts or ends, so each range
+        // between two bounds takes the label of its first address.
+        long[] points = new long[bounds.size()];
+        for (int i = 0; i < points.length; i++)
+            points[i] = bounds.get(i);
+        Arrays.sort(points);
+        int[] starts = new int[points.length];
+        int[] ends = new int[points.length];
+        int[] labels = new int[points.length];
+        int count = 0;
+        for (int i = 0; i < points.length - 1; i++) {
+            if (points[i] == points[i + 1])
+                continue;
+            int label = prefixes.lookup((int)points[i]);
+            if (label == PrefixTrie.NO_MATCH)
+                continue;
+            if (count > 0 && labels[count - 1] == label && (ends[count - 1] & 0xffffffffL) + 1 == points[i]) {
+                ends[count - 1] = (int)(points[i + 1] - 1);
+                continue;
+            }
+            starts[count] = (int)points[i];
+            ends[count] = (int)(points[i + 1] - 1);
+            labels[count] = label;
+            count++;
+        }
+
+        File temp = new File(table.getAbsoluteFile().getParentFile(), "." + table.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++)
+                out.writeInt(starts[i]);
+            for (int i = 0; i < count; i++)
+                out.writeInt(ends[i]);
+            for (int i = 0; i < count; i++)
+                out.writeInt(labels[i]);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(table)) {
+            temp.delete();
+            throw new IOException("unable to rename " + temp + " to " + table);
+        }
+        return count;
+    }
+}
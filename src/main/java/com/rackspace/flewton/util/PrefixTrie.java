@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.util.Arrays;
+
+/**
+ * Longest-prefix match of IP addresses against a set of CIDR prefixes, each
+ * carrying an int value.  Keys are 128 bits, in the two-long form of
+ * {@link Address}; IPv4 prefixes and addresses (packed into ints) are stored
+ * and looked up IPv4-mapped, so one trie holds both families.  A
+ * path-compressed binary trie: nodes only exist where a prefix ends or two
+ * prefixes diverge, so a lookup visits at most one node per distinct prefix
+ * length on the path, and typically a handful.  Nodes live in parallel
+ * primitive arrays, so lookups allocate nothing.
+ *
+ * Build the trie from one thread, then look up from as many as you like; it
+ * must not be modified once shared.
+ */
+public class PrefixTrie {
+    /** returned by {@link #lookup(int)} when no prefix matches. */
+    public static final int NO_MATCH = -1;
+    private static final int NIL = -1;
+    private static final int ROOT = 0;
+    // IPv4 prefixes sit under ::ffff:0:0/96.
+    private static final int IPV4_OFFSET = 96;
+
+    // node i is the prefix (highs[i], lows[i], lengths[i] & 0xff), with value values[i] (NO_MATCH
+    // if the node is only a branch point) and children zero[i] and one[i], by the next bit.
+    private long[] highs;
+    private long[] lows;
+    private byte[] lengths;
+    private int[] values;
+    private int[] zero;
+    private int[] one;
+    private int nodes = 0;
+    private int size = 0;
+
+    public PrefixTrie() {
+        allocate(16);
+        newNode(0, 0, 0, NO_MATCH);
+    }
+
+    /**
+     * adds (or replaces) an IPv4 prefix.
+     *
+     * @param network prefix address; bits beyond the prefix length are ignored
+     * @param length prefix length, 0 to 32
+     * @param value returned by lookups that this prefix is the longest match for; not NO_MATCH
+     */
+    public void put(int network, int length, int value) {
+        if (length < 0 || length > 32)
+            throw new IllegalArgumentException("bad prefix length: " + length);
+        put(0, Address.mapIPv4(network), IPV4_OFFSET + length, value);
+    }
+
+    /**
+     * adds (or replaces) a prefix.
+     *
+     * @param high high 64 bits of the prefix address
+     * @param low low 64 bits of the prefix address; bits beyond the prefix length are ignored
+     * @param length prefix length, 0 to 128
+     * @param value returned by lookups that this prefix is the longest match for; not NO_MATCH
+     */
+    public void put(long high, long low, int length, int value) {
+        if (length < 0 || length > 128)
+            throw new IllegalArgumentException("bad prefix length: " + length);
+        if (value == NO_MATCH)
+            throw new IllegalArgumentException("value may not be NO_MATCH");
+        high &= highMask(length);
+        low &= lowMask(length);
+
+        int node = ROOT;
+        while (true) {
+            // invariant: node's prefix is a prefix of the one being added.
+            int nodeLength = length(node);
+            if (nodeLength == length) {
+                if (values[node] == NO_MATCH)
+                    size++;
+                values[node] = value;
+                return;
+            }
+
+            boolean bit = bit(high, low, nodeLength);
+            int child = bit ? one[node] : zero[node];
+            if (child == NIL) {
+                setChild(node, bit, newNode(high, low, length, value));
+                size++;
+                return;
+            }
+
+            // how much of the child's prefix do we share?
+            int common = Math.min(Math.min(length(child), length), commonLength(highs[child], lows[child], high, low));
+            if (common == length(child)) {
+                node = child;
+                continue;
+            }
+
+            // diverge (or end) part way along the edge to child: split it.
+            int branch = newNode(high & highMask(common), low & lowMask(common), common, NO_MATCH);
+            setChild(node, bit, branch);
+            setChild(branch, bit(highs[child], lows[child], common), child);
+            if (common == length)
+                values[branch] = value;
+            else
+                setChild(branch, bit(high, low, common), newNode(high, low, length, value));
+            size++;
+            return;
+        }
+    }
+
+    /** the value of the longest prefix containing addr (an IPv4 address), or NO_MATCH. */
+    public int lookup(int addr) {
+        return lookup(0, Address.mapIPv4(addr));
+    }
+
+    /** the value of the longest prefix containing the address (high, low), or NO_MATCH. */
+    public int lookup(long high, long low) {
+        int best = NO_MATCH;
+        int node = ROOT;
+        while (node != NIL) {
+            int length = length(node);
+            if (((high ^ highs[node]) & highMask(length)) != 0 || ((low ^ lows[node]) & lowMask(length)) != 0)
+                break;
+            if (values[node] != NO_MATCH)
+                best = values[node];
+            if (length == 128)
+                break;
+            node = bit(high, low, length) ? one[node] : zero[node];
+        }
+        return best;
+    }
+
+    /** true if any prefix contains addr. */
+    public boolean contains(int addr) {
+        return lookup(addr) != NO_MATCH;
+    }
+
+    /** true if any prefix contains the address (high, low). */
+    public boolean contains(long high, long low) {
+        return lookup(high, low) != NO_MATCH;
+    }
+
+    /** number of prefixes. */
+    public int size() {
+        return size;
+    }
+
+    private int length(int node) {
+        return lengths[node] & 0xff;
+    }
+
+    // bit i of the address, counting from the most significant.
+    private static boolean bit(long high, long low, int i) {
+        return i < 64 ? (high << i) < 0 : (low << (i - 64)) < 0;
+    }
+
+    // number of leading bits two addresses share.
+    private static int commonLength(long high1, long low1, long high2, long low2) {
+        if (high1 != high2)
+            return Long.numberOfLeadingZeros(high1 ^ high2);
+        return 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+    }
+
+    private static long highMask(int length) {
+        return length == 0 ? 0 : length >= 64 ? -1L : -1L << (64 - length);
+    }
+
+    private static long lowMask(int length) {
+        return length <= 64 ? 0 : -1L << (128 - length);
+    }
+
+    private void setChild(int node, boolean bit, int child) {
+        if (bit)
+            one[node] = child;
+        else
+            zero[node] = child;
+    }
+
+    private int newNode(long high, long low, int length, int value) {
+        if (nodes == highs.length)
+            allocate(nodes * 2);
+        highs[nodes] = high;
+        lows[nodes] = low;
+        lengths[nodes] = (byte)length;
+        values[nodes] = value;
+        zero[nodes] = NIL;
+        one[nodes] = NIL;
+        return nodes++;
+    }
+
+    private void allocate(int capacity) {
+        if (highs == null) {
+            highs = new long[capacity];
+            lows = new long[capacity];
+            lengths = new byte[capacity];
+            values = new int[capacity];
+            zero = new int[capacity];
+            one = new int[capacity];
+            return;
+        }
+        highs = Arrays.copyOf(highs, capacity);
+        lows = Arrays.copyOf(lows, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        values = Arrays.copyOf(values, capacity);
+        zero = Arrays.copyOf(zero, capacity);
+        one = Arrays.copyOf(one, capacity);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reverse (PTR) lookups for enriching flows, without ever waiting on DNS.
+ * {@link #lookup(InetAddress)} only reads a cache: if the name isn't there
+ * yet, it returns the address as a string and queues a lookup on a small,
+ * bounded pool of worker threads, so later flows get the name.  Names are
+ * cached for positiveTtl, and addresses with no name (or whose lookup
+ * failed) for negativeTtl.  An expired name is still returned while it is
+ * looked up again.  The cache holds at most maxEntries addresses, expired
+ * ones being evicted first; lookups that find the queue full are dropped,
+ * and tried again on a later miss.
+ */
+public class ReverseDns {
+    private static final Logger logger = LoggerFactory.getLogger(ReverseDns.class);
+
+    /** does the actual (blocking) lookup. */
+    public interface Resolver {
+        /** the address's name, or null if it has none. */
+        String resolve(InetAddress address) throws Exception;
+    }
+
+    /** the system resolver, through InetAddress. */
+    public static final Resolver SYSTEM = new Resolver() {
+        public String resolve(InetAddress address) {
+            String name = address.getCanonicalHostName();
+            // it gives back the address when there's no name.
+            return name.equals(address.getHostAddress()) ? null : name;
+        }
+    };
+
+    private static class Entry {
+        private final String name; // null: no name.
+        private final long expires;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        private Entry(String name, long expires) {
+            this.name = name;
+            this.expires = expires;
+        }
+    }
+
+    // stands in for an address being looked up for the first time.
+    private static final Entry PENDING = new Entry(null, Long.MAX_VALUE);
+
+    private final Resolver resolver;
+    private final long positiveTtl;
+    private final long negativeTtl;
+    private final int maxEntries;
+    private final ConcurrentHashMap<Address, Entry> cache = new ConcurrentHashMap<Address, Entry>();
+    private final ThreadPoolExecutor workers;
+    private final Object evicting = new Object();
+
+    /**
+     * @param resolver does the lookups
+     * @param threads number of lookups at once
+     * @param queueSize most lookups waiting for a thread
+     * @param maxEntries most addresses cached
+     * @param positiveTtl how long to keep names, in ms
+     * @param negativeTtl how long to remember that an address has no name, in ms
+     */
+    public ReverseDns(Resolver resolver, int threads, int queueSize, int maxEntries, long positiveTtl, long negativeTtl) {
+        this.resolver = resolver;
+        this.maxEntries = Math.max(maxEntries, 1);
+        this.positiveTtl = positiveTtl;
+        this.negativeTtl = negativeTtl;
+        workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)), new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "reverse-dns-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** reads dnsThreads, dnsQueueSize, dnsCacheSize, dnsTtlSecs and dnsNegativeTtlSecs; uses the system resolver. */
+    public static ReverseDns fromConfig(HierarchicalConfiguration config) {
+        return new ReverseDns(SYSTEM,
+                config.getInt("dnsThreads", 4),
+                config.getInt("dnsQueueSize", 1000),
+                config.getInt("dnsCacheSize", 100000),
+                config.getLong("dnsTtlSecs", 60 * 60) * 1000,
+                config.getLong("dnsNegativeTtlSecs", 5 * 60) * 1000);
+    }
+
+    /** the address's name if known, otherwise the address; never blocks. */
+    public String lookup(InetAddress address) {
+        String name = cached(Address.fromInetAddress(address));
+        return name != null ? name : address.getHostAddress();
+    }
+
+    /** as {@link #lookup(InetAddress)}, for an address in {@link Address}'s form (e.g. from a FlowBatch). */
+    public String lookup(long high, long low) {
+        String name = cached(new Address(high, low));
+        return name != null ? name : Address.toString(high, low);
+    }
+
+    /** number of addresses cached, including those being looked up. */
+    public int size() {
+        return cache.size();
+    }
+
+    // the cached name, if any, queueing a lookup if there's none or it's expired.
+    private String cached(Address key) {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            if (cache.putIfAbsent(key, PENDING) == null)
+                queue(key, null);
+            return null;
+        }
+        if (entry != PENDING && entry.expires - System.currentTimeMillis() <= 0 && entry.refreshing.compareAndSet(false, true))
+            queue(key, entry);
+        return entry.name;
+    }
+
+    private void queue(Address key, Entry stale) {
+        try {
+            workers.execute(new Lookup(key));
+        } catch (RejectedExecutionException full) {
+            // try again next time it's looked up.
+            if (stale == null)
+                cache.remove(key, PENDING);
+            else
+                stale.refreshing.set(false);
+        }
+    }
+
+    private class Lookup implements Runnable {
+        private final Address key;
+
+        private Lookup(Address key) {
+            this.key = key;
+        }
+
+        public void run() {
+            String name = null;
+            try {
+                name = resolver.resolve(Address.toInetAddress(key.getHigh(), key.getLow()));
+            } catch (Exception ex) {
+                logger.debug("Reverse lookup of {} failed: {}", key, ex.getMessage());
+            }
+            long ttl = name == null ? negativeTtl : positiveTtl;
+            cache.put(key, new Entry(name, System.currentTimeMillis() + ttl));
+            if (cache.size() > maxEntries)
+                evict();
+        }
+    }
+
+    // makes some room: expired entries go first, then arbitrary ones, down to 90% full.
+    private void evict() {
+        synchronized (evicting) {
+            int target = maxEntries - maxEntries / 10;
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<Address, Entry>> it = cache.entrySet().iterator();
+            while (it.hasNext() && cache.size() > target) {
+                Entry entry = it.next().getValue();
+                if (entry != PENDING && entry.expires - now <= 0)
+                    it.remove();
+            }
+            it = cache.entrySet().iterator();
+            while (it.hasNext() && cache.size() > target) {
+                if (it.next().getValue() != PENDING)
+                    it.remove();
+            }
+        }
+    }
+}
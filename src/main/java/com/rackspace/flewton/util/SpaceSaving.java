@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The heaviest keys of a weighted stream, in fixed memory: the Space-Saving
+ * algorithm (Metwally, Agrawal and El Abbadi).  It keeps <code>capacity</code>
+ * counters; a new key takes over the smallest one, inheriting its count as
+ * the new key's maximum overestimate (its error).  So with a total weight of
+ * N, no count is overestimated by more than N / capacity, and every key whose
+ * true weight exceeds that is guaranteed to be held.
+ *
+ * Keys are up to four longs: an {@link Address} is two, a pair of addresses
+ * four, and a port or AS number fits in one.
+ *
+ * Counters live in primitive arrays, found through an open-addressed index
+ * and ordered by an indexed min-heap, so adding never allocates.  Not
+ * thread-safe; see {@link HeavyHitters}.
+ */
+public class SpaceSaving {
+    private static final int EMPTY = -1;
+
+    private final int capacity;
+    // counter c: key keys[4c..4c+3], weight counts[c], of which up to errors[c] may be overestimated.
+    private final long[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    // min-heap of counters by count, and each counter's place in it.
+    private final int[] heap;
+    private final int[] heapIndex;
+    // linear-probed index of counters by key.
+    private final int[] index;
+    private final int indexShift;
+    private int size = 0;
+    private long total = 0;
+
+    public SpaceSaving(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        keys = new long[capacity * 4];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        heap = new int[capacity];
+        heapIndex = new int[capacity];
+        // at most half full.
+        int bits = 32 - Integer.numberOfLeadingZeros(capacity * 2 - 1);
+        index = new int[1 << bits];
+        indexShift = 32 - bits;
+        Arrays.fill(index, EMPTY);
+    }
+
+    /** adds weight to an address, or any key of up to two longs. */
+    public void add(long high, long low, long weight) {
+        add(high, low, 0, 0, weight);
+    }
+
+    /** adds weight to a key of up to four longs. */
+    public void add(long k0, long k1, long k2, long k3, long weight) {
+        total += weight;
+        int slot = find(k0, k1, k2, k3);
+        int counter = index[slot];
+        if (counter != EMPTY) {
+            counts[counter] += weight;
+            siftDown(heapIndex[counter]);
+            return;
+        }
+        if (size < capacity) {
+            counter = size++;
+            setKey(counter, k0, k1, k2, k3);
+            counts[counter] = weight;
+            errors[counter] = 0;
+            index[slot] = counter;
+            place(counter, counter);
+            siftUp(counter);
+            return;
+        }
+        // take over the smallest counter.
+        counter = heap[0];
+        remove(find(keys[4 * counter], keys[4 * counter + 1], keys[4 * counter + 2], keys[4 * counter + 3]));
+        setKey(counter, k0, k1, k2, k3);
+        errors[counter] = counts[counter];
+        counts[counter] += weight;
+        index[find(k0, k1, k2, k3)] = counter;
+        siftDown(0);
+    }
+
+    /** the heaviest n keys, heaviest first. */
+    public List<Entry> top(int n) {
+        List<Entry> entries = new ArrayList<Entry>(size);
+        for (int c = 0; c < size; c++)
+            entries.add(new Entry(Arrays.copyOfRange(keys, 4 * c, 4 * c + 4), counts[c], errors[c]));
+        Collections.sort(entries, Entry.HEAVIEST_FIRST);
+        return n < entries.size() ? entries.subList(0, n) : entries;
+    }
+
+    /** the largest amount any count can be overestimated by. */
+    public long getMaxError() {
+        return size < capacity ? 0 : counts[heap[0]];
+    }
+
+    /** total weight added. */
+    public long getTotal() {
+        return total;
+    }
+
+    /** number of keys held. */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public void clear() {
+        Arrays.fill(index, EMPTY);
+        size = 0;
+        total = 0;
+    }
+
+    private void setKey(int counter, long k0, long k1, long k2, long k3) {
+        keys[4 * counter] = k0;
+        keys[4 * counter + 1] = k1;
+        keys[4 * counter + 2] = k2;
+        keys[4 * counter + 3] = k3;
+    }
+
+    /** a well-mixed hash of a key. */
+    public static int hashCode(long k0, long k1, long k2, long k3) {
+        return Address.hashCode(k0, k1) * 31 + Address.hashCode(k2, k3);
+    }
+
+    private int home(long k0, long k1, long k2, long k3) {
+        return (hashCode(k0, k1, k2, k3) * 0x9e3779b9) >>> indexShift;
+    }
+
+    // the index slot holding the key, or the empty slot it would go in.
+    private int find(long k0, long k1, long k2, long k3) {
+        int slot = home(k0, k1, k2, k3);
+        while (true) {
+            int counter = index[slot];
+            if (counter == EMPTY)
+                return slot;
+            int k = 4 * counter;
+            if (keys[k] == k0 && keys[k + 1] == k1 && keys[k + 2] == k2 && keys[k + 3] == k3)
+                return slot;
+            slot = (slot + 1) & (index.length - 1);
+        }
+    }
+
+    // empties an index slot, shifting back the entries that probed past it.
+    private void remove(int slot) {
+        int mask = index.length - 1;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            int counter = index[next];
+            if (counter == EMPTY)
+                break;
+            int k = 4 * counter;
+            int home = home(keys[k], keys[k + 1], keys[k + 2], keys[k + 3]);
+            // move it back unless its home lies cyclically in (slot, next].
+            if (slot <= next ? (home <= slot || home > next) : (home <= slot && home > next)) {
+                index[slot] = counter;
+                slot = next;
+            }
+        }
+        index[slot] = EMPTY;
+    }
+
+    private void siftUp(int i) {
+        int counter = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[counter])
+                break;
+            place(heap[parent], i);
+            i = parent;
+        }
+        place(counter, i);
+    }
+
+    private void siftDown(int i) {
+        int counter = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]])
+                child++;
+            if (counts[counter] <= counts[heap[child]])
+                break;
+            place(heap[child], i);
+            i = child;
+        }
+        place(counter, i);
+    }
+
+    private void place(int counter, int i) {
+        heap[i] = counter;
+        heapIndex[counter] = i;
+    }
+
+    /** a key's estimated weight. */
+    public static class Entry {
+        static final Comparator<Entry> HEAVIEST_FIRST = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.count > b.count ? -1 : a.count < b.count ? 1 : 0;
+            }
+        };
+
+        /** four longs, the unused ones zero. */
+        public final long[] key;
+        /** estimated weight; never less than the true weight. */
+        public final long count;
+        /** how much count may be overestimated by. */
+        public final long error;
+
+        public Entry(long[] key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        /** the key's first two longs, as an address. */
+        public Address getAddress() {
+            return new Address(key[0], key[1]);
+        }
+
+        /** the key's last two longs, as an address. */
+        public Address getPeer() {
+            return new Address(key[2], key[3]);
+        }
+
+        /** the weight the key is certain to have had. */
+        public long getGuaranteed() {
+            return count - error;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(key) + "=" + count + "(+-" + error + ")";
+        }
+    }
+}
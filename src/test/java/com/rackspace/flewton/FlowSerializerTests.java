@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import com.rackspace.flewton.test.SendFauxFlowsv5;
+
+public class FlowSerializerTests {
+    private static Recordv5 makeRecord() throws Exception {
+        ChannelBuffer buff = ChannelBuffers.wrappedBuffer(SendFauxFlowsv5.makeRecord());
+        buff.readShort();
+        return new Recordv5(buff);
+    }
+
+    @Test
+    public void testXmlMatchesToXmlString() throws Exception {
+        Recordv5 record = makeRecord();
+        FlowSerializer serializer = new FlowSerializer(FlowSerializer.Format.XML);
+        serializer.append(record);
+        assert serializer.toString().equals(record.toXmlString());
+
+        // and it streams, reusing its buffer.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.writeTo(out);
+        assert serializer.size() == 0;
+        serializer.append(record);
+        serializer.writeTo(out);
+        assert out.toString("US-ASCII").equals(record.toXmlString() + record.toXmlString());
+    }
+
+    @Test
+    public void testIPv6AndExtremes() throws Exception {
+        Flow flow = new Flow();
+        flow.sourceAddr = InetAddress.getByName("2001:db8::1");
+        flow.destAddr = InetAddress.getByName("fe80::a:bcd:0:ffff");
+        flow.nextHop = InetAddress.getByName("0.0.0.0");
+        flow.numOctets = Long.MAX_VALUE;
+        flow.timeFirst = Long.MIN_VALUE;
+        flow.snmpIn = -1;
+        flow.protocol = (byte)200;
+        flow.destLabel = 0;
+        FlowBatch batch = new FlowBatch();
+        assert batch.add(flow);
+
+        FlowSerializer serializer = new FlowSerializer(FlowSerializer.Format.XML);
+        serializer.appendFlow(batch, 0);
+        assert serializer.toString().equals(flow.toXmlString());
+    }
+
+    @Test
+    public void testJsonLines() throws Exception {
+        FlowBatch batch = new FlowBatch();
+        int i = batch.add();
+        batch.setIPv4(i, 0x0a000001, 0xc0a80001);
+        batch.numOctets[i] = 1500;
+        batch.protocol[i] = (byte)200;
+        batch.sourceLabel[i] = 7;
+        batch.destLabel[i] = -1;
+
+        FlowSerializer serializer = new FlowSerializer(FlowSerializer.Format.JSON_LINES);
+        serializer.append(batch, 0, 1);
+        serializer.append(batch, 0, 1);
+        ByteBuffer out = ByteBuffer.allocate(serializer.size());
+        serializer.writeTo(out);
+        String[] lines = new String(out.array(), "US-ASCII").split("\n");
+        assert lines.length == 2;
+        assert lines[0].equals(lines[1]);
+        assert lines[0].equals("{\"sourceAddr\":\"10.0.0.1\",\"destAddr\":\"192.168.0.1\",\"nextHop\":\"0.0.0.0\"," +
+                "\"snmpIn\":0,\"snmpOut\":0,\"numPackets\":0,\"numOctets\":1500,\"timeFirst\":0,\"timeLast\":0," +
+                "\"sourcePort\":0,\"destPort\":0,\"tcpFlags\":0,\"protocol\":200,\"tos\":0,\"sourceAS\":0," +
+                "\"destAS\":0,\"timestampCalculated\":0,\"sourceLabel\":7}");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public class RecordSflowv5Tests {
+    private static final int RATE = 512;
+
+    private static ByteBuffer header(ByteBuffer datagram, int samples) {
+        datagram.putInt(5);
+        datagram.putInt(1).put(new byte[]{ 10, 1, 1, 1 });   // agent
+        datagram.putInt(0);                                 // sub agent
+        datagram.putInt(42);                                // sequence
+        datagram.putInt(100000);                            // uptime
+        datagram.putInt(samples);
+        return datagram;
+    }
+
+    // a flow sample holding the first bytes of an ethernet frame: vlan tag, IPv4, TCP.
+    private static void putFlowSample(ByteBuffer datagram) {
+        ByteBuffer frame = ByteBuffer.allocate(60);
+        frame.put(new byte[12]);                            // MACs
+        frame.putShort((short)0x8100).putShort((short)7);   // 802.1Q
+        frame.putShort((short)0x0800);
+        frame.put((byte)0x45).put((byte)0x10).putShort((short)1500).putInt(0);
+        frame.put((byte)64).put((byte)6).putShort((short)0);
+        frame.put(new byte[]{ 10, 0, 0, 1 }).put(new byte[]{ (byte)192, (byte)168, 0, 1 });
+        frame.putShort((short)1234).putShort((short)80).putInt(0).putInt(0);
+        frame.put((byte)0x50).put((byte)0x18);              // offset, PSH|ACK
+
+        int sampleStart = datagram.position();
+        datagram.putInt(RecordSflowv5.FLOW_SAMPLE).putInt(0);
+        datagram.putInt(1).putInt(3).putInt(RATE).putInt(0).putInt(0);
+        datagram.putInt(3).putInt(4);                       // input, output
+        datagram.putInt(1);                                 // records
+        datagram.putInt(RecordSflowv5.RAW_PACKET_HEADER).putInt(16 + 60);
+        datagram.putInt(RecordSflowv5.HEADER_ETHERNET).putInt(1518).putInt(4).putInt(60);
+        datagram.put(frame.array());
+        datagram.putInt(sampleStart + 4, datagram.position() - sampleStart - 8);
+    }
+
+    private static void putCounterSample(ByteBuffer datagram) {
+        datagram.putInt(RecordSflowv5.COUNTER_SAMPLE).putInt(4 + 4 + 4 + 8 + InterfaceCounters.SIZE);
+        datagram.putInt(1).putInt(3).putInt(1);
+        datagram.putInt(RecordSflowv5.GENERIC_INTERFACE_COUNTERS).putInt(InterfaceCounters.SIZE);
+        datagram.putInt(3).putInt(6).putLong(10000000000L).putInt(1).putInt(3);
+        datagram.putLong(123456789L).putInt(-1).putInt(0).putInt(0).putInt(0).putInt(0).putInt(0);
+        datagram.putLong(987654321L).putInt(0).putInt(0).putInt(0).putInt(0).putInt(0).putInt(0);
+    }
+
+    private static ChannelBuffer makeBuffer(ByteBuffer datagram) {
+        datagram.flip();
+        ChannelBuffer buff = ChannelBuffers.wrappedBuffer(datagram);
+        int version = buff.readShort();
+        assert version == 0;
+        return buff;
+    }
+
+    @Test
+    public void testFlowSampleIsScaled() throws Exception {
+        ByteBuffer datagram = header(ByteBuffer.allocate(1500), 2);
+        putFlowSample(datagram);
+        putCounterSample(datagram);
+        RecordSflowv5 record = new RecordSflowv5(makeBuffer(datagram));
+
+        assert record.getAgent().equals(InetAddress.getByName("10.1.1.1"));
+        assert record.getSequence() == 42;
+        assert record.flows.size() == 1;
+        Flow flow = record.flows.get(0);
+        assert flow.sourceAddr.equals(InetAddress.getByName("10.0.0.1"));
+        assert flow.destAddr.equals(InetAddress.getByName("192.168.0.1"));
+        assert flow.nextHop.equals(InetAddress.getByName("0.0.0.0"));
+        assert flow.protocol == 6;
+        assert flow.tos == 0x10;
+        assert flow.sourcePort == 1234;
+        assert flow.destPort == 80;
+        assert flow.tcpFlags == 0x18;
+        assert flow.snmpIn == 3;
+        assert flow.snmpOut == 4;
+        assert flow.numPackets == RATE;
+        assert flow.numOctets == 1518L * RATE;
+
+        assert record.counters.size() == 1;
+        InterfaceCounters counters = record.counters.get(0);
+        assert counters.ifIndex == 3;
+        assert counters.ifSpeed == 10000000000L;
+        assert counters.isUp();
+        assert counters.inOctets == 123456789L;
+        assert counters.inUcastPkts == 0xffffffffL;
+        assert counters.outOctets == 987654321L;
+    }
+
+    @Test
+    public void testIPv6Header() throws Exception {
+        ByteBuffer packet = ByteBuffer.allocate(40 + 8 + 8);
+        packet.putInt(0x60a00000);                          // traffic class 0x0a
+        packet.putShort((short)16).put((byte)44).put((byte)64);
+        packet.put(InetAddress.getByName("2001:db8::1").getAddress());
+        packet.put(InetAddress.getByName("2001:db8::2").getAddress());
+        packet.put((byte)17).put((byte)0).putShort((short)0).putInt(1); // first fragment
+        packet.putShort((short)53).putShort((short)5353).putInt(0);
+
+        Flow flow = new Flow();
+        RecordSflowv5.readHeader(ChannelBuffers.wrappedBuffer(packet.array()), RecordSflowv5.HEADER_IPV6, flow);
+        assert flow.sourceAddr.equals(InetAddress.getByName("2001:db8::1"));
+        assert flow.destAddr.equals(InetAddress.getByName("2001:db8::2"));
+        assert flow.tos == 0x0a;
+        assert flow.protocol == 17;
+        assert flow.sourcePort == 53;
+        assert flow.destPort == 5353;
+    }
+
+    @Test(expected = CorruptDatagram.class)
+    public void testTruncatedSample() throws Exception {
+        ByteBuffer datagram = header(ByteBuffer.allocate(1500), 1);
+        putFlowSample(datagram);
+        datagram.position(datagram.position() - 20);
+        new RecordSflowv5(makeBuffer(datagram));
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public class Recordv10Tests {
+    private static final int TEMPLATE_ID = 300;
+    private static final int EXPORT_SECS = 1300000000;
+
+    // starts a message; finish() fills in the length.
+    private static ByteBuffer header(long domain) {
+        ByteBuffer message = ByteBuffer.allocate(1500);
+        message.putShort((short)10);
+        message.putShort((short)0);
+        message.putInt(EXPORT_SECS);
+        message.putInt(0);
+        message.putInt((int)domain);
+        return message;
+    }
+
+    // src addr, dst addr, an enterprise element, a variable-length element, bytes, flowEndMilliseconds.
+    private static void putTemplate(ByteBuffer message) {
+        message.putShort((short)Recordv10.TEMPLATE_SET);
+        message.putShort((short)(4 + 4 + 6 * 4 + 4));
+        message.putShort((short)TEMPLATE_ID);
+        message.putShort((short)6);
+        message.putShort((short)8).putShort((short)4);
+        message.putShort((short)12).putShort((short)4);
+        message.putShort((short)(0x8000 | 1)).putShort((short)2).putInt(9);   // enterprise 9, element 1
+        message.putShort((short)82).putShort((short)Template.VARIABLE_LENGTH); // interfaceName
+        message.putShort((short)1).putShort((short)8);
+        message.putShort((short)153).putShort((short)8);
+    }
+
+    private static void putData(ByteBuffer message, String... names) {
+        int start = message.position();
+        message.putShort((short)TEMPLATE_ID);
+        message.putShort((short)0);
+        for (int i = 0; i < names.length; i++) {
+            message.putInt(0x0a000001 + i);
+            message.putInt(0xc0a80001);
+            message.putShort((short)0x7777);
+            byte[] name = names[i].getBytes();
+            if (name.length < 255)
+                message.put((byte)name.length);
+            else
+                message.put((byte)255).putShort((short)name.length);
+            message.put(name);
+            message.putLong(1000L * (i + 1));
+            message.putLong(EXPORT_SECS * 1000L - i);
+        }
+        message.putShort(start + 2, (short)(message.position() - start));
+    }
+
+    // an options template with one scope field and one other.
+    private static void putOptionsTemplate(ByteBuffer message, int templateId) {
+        message.putShort((short)Recordv10.OPTIONS_TEMPLATE_SET).putShort((short)(4 + 6 + 8));
+        message.putShort((short)templateId).putShort((short)2).putShort((short)1);
+        message.putShort((short)8).putShort((short)4);
+        message.putShort((short)12).putShort((short)4);
+    }
+
+    // a set holding one withdrawal.
+    private static void putWithdrawal(ByteBuffer message, int setId, int templateId) {
+        message.putShort((short)setId).putShort((short)8);
+        message.putShort((short)templateId).putShort((short)0);
+    }
+
+    private static ChannelBuffer finish(ByteBuffer message) {
+        message.putShort(2, (short)message.position());
+        message.flip();
+        ChannelBuffer buff = ChannelBuffers.wrappedBuffer(message);
+        int version = buff.readShort();
+        assert version == 10;
+        return buff;
+    }
+
+    @Test
+    public void testVariableLengthAndEnterpriseElements() throws Exception {
+        TemplateCache templates = new TemplateCache();
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 300; i++)
+            longName.append('x');
+
+        ByteBuffer message = header(3);
+        putTemplate(message);
+        putData(message, "eth0", longName.toString(), "");
+        Recordv10 record = new Recordv10(finish(message), exporter, templates);
+
+        assert record.getObservationDomain() == 3;
+        assert record.getExportMillis() == EXPORT_SECS * 1000L;
+        assert record.getFlowCount() == 3;
+        for (int i = 0; i < 3; i++) {
+            Flow flow = record.flows.get(i);
+            assert flow.sourceAddr.equals(InetAddress.getByName("10.0.0." + (i + 1)));
+            assert flow.destAddr.equals(InetAddress.getByName("192.168.0.1"));
+            assert flow.numOctets == 1000L * (i + 1);
+            assert flow.timestampCalculated == EXPORT_SECS * 1000L - i;
+        }
+
+        FlowBatch batch = new FlowBatch();
+        record.appendTo(batch);
+        assert batch.size() == 3;
+        assert batch.numOctets[2] == 3000;
+        assert batch.timestampCalculated[1] == EXPORT_SECS * 1000L - 1;
+    }
+
+    @Test
+    public void testDataBeforeTemplateAndWithdrawal() throws Exception {
+        TemplateCache templates = new TemplateCache();
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+
+        ByteBuffer message = header(1);
+        putData(message, "eth0");
+        assert new Recordv10(finish(message), exporter, templates).getFlowCount() == 0;
+
+        message = header(1);
+        putTemplate(message);
+        assert new Recordv10(finish(message), exporter, templates).getFlowCount() == 1;
+
+        // withdraw the template; its data is held again.
+        message = header(1);
+        message.putShort((short)Recordv10.TEMPLATE_SET).putShort((short)8);
+        message.putShort((short)TEMPLATE_ID).putShort((short)0);
+        putData(message, "eth0");
+        assert new Recordv10(finish(message), exporter, templates).getFlowCount() == 0;
+        assert templates.getPendingCount() == 1;
+    }
+
+    @Test
+    public void testOptionsDataIsNotFlows() throws Exception {
+        TemplateCache templates = new TemplateCache();
+        ByteBuffer message = header(1);
+        putOptionsTemplate(message, TEMPLATE_ID);
+        message.putShort((short)TEMPLATE_ID).putShort((short)12);
+        message.putInt(1).putInt(2);
+
+        Recordv10 record = new Recordv10(finish(message), InetAddress.getByName("127.0.0.1"), templates);
+        assert record.getFlowCount() == 0;
+        assert templates.getPendingCount() == 0;
+    }
+
+    @Test
+    public void testOptionsWithdrawal() throws Exception {
+        TemplateCache templates = new TemplateCache();
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+        ByteBuffer message = header(1);
+        putOptionsTemplate(message, TEMPLATE_ID);
+        new Recordv10(finish(message), exporter, templates);
+        assert templates.get(exporter, 1, TEMPLATE_ID) != null;
+
+        // only 4 bytes, without the scope field count.
+        message = header(1);
+        putWithdrawal(message, Recordv10.OPTIONS_TEMPLATE_SET, TEMPLATE_ID);
+        new Recordv10(finish(message), exporter, templates);
+        assert templates.get(exporter, 1, TEMPLATE_ID) == null;
+    }
+
+    @Test
+    public void testWithdrawAll() throws Exception {
+        TemplateCache templates = new TemplateCache();
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+        ByteBuffer message = header(1);
+        putTemplate(message);
+        putOptionsTemplate(message, TEMPLATE_ID + 1);
+        new Recordv10(finish(message), exporter, templates);
+        message = header(2);
+        putTemplate(message);
+        new Recordv10(finish(message), exporter, templates);
+
+        // all data templates of domain 1 go; its options templates, and other domains, stay.
+        message = header(1);
+        putWithdrawal(message, Recordv10.TEMPLATE_SET, Recordv10.TEMPLATE_SET);
+        new Recordv10(finish(message), exporter, templates);
+        assert templates.get(exporter, 1, TEMPLATE_ID) == null;
+        assert templates.get(exporter, 1, TEMPLATE_ID + 1) != null;
+        assert templates.get(exporter, 2, TEMPLATE_ID) != null;
+
+        message = header(1);
+        putWithdrawal(message, Recordv10.OPTIONS_TEMPLATE_SET, Recordv10.OPTIONS_TEMPLATE_SET);
+        new Recordv10(finish(message), exporter, templates);
+        assert templates.get(exporter, 1, TEMPLATE_ID + 1) == null;
+        assert templates.get(exporter, 2, TEMPLATE_ID) != null;
+    }
+
+    @Test(expected = CorruptDatagram.class)
+    public void testTruncatedMessage() throws Exception {
+        ByteBuffer message = header(1);
+        putTemplate(message);
+        ChannelBuffer buff = finish(message);
+        // the header promises more than we received.
+        buff.writerIndex(buff.writerIndex() - 10);
+        new Recordv10(buff, InetAddress.getByName("127.0.0.1"), new TemplateCache());
+    }
+}
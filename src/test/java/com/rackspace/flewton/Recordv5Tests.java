@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import com.rackspace.flewton.test.SendFauxFlowsv5;
+
+public class Recordv5Tests {
+
+    private static ChannelBuffer makeBuffer(ByteBuffer datagram) {
+        ChannelBuffer buff = ChannelBuffers.wrappedBuffer(datagram);
+        int version = buff.readShort();
+        assert version == 5;
+        return buff;
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        Recordv5 record = new Recordv5(makeBuffer(SendFauxFlowsv5.makeRecord()));
+
+        assert record.getFlowCount() == 2;
+        for (int i = 0; i < record.getFlowCount(); i++) {
+            assert record.getSourceIPv4(i) == 0x0a010001;
+            assert record.getDestIPv4(i) == 0x0a010002;
+            assert record.getNextHopIPv4(i) == 0x0a010003;
+            assert record.getSnmpIn(i) == 5;
+            assert record.getSnmpOut(i) == 10;
+            assert record.getNumPackets(i) == 10;
+            assert record.getNumOctets(i) == 100;
+            assert record.getSourcePort(i) == 8888;
+            assert record.getDestPort(i) == 80;
+            assert record.getProtocol(i) == 1;
+            assert record.getSourceAS(i) == 500;
+            assert record.getDestAS(i) == 505;
+        }
+
+        // the flow objects agree with the accessors.
+        assert record.flows.size() == 2;
+        Flow flow = record.flows.get(1);
+        assert flow.sourceAddr.equals(InetAddress.getByName("10.1.0.1"));
+        assert flow.destAddr.equals(InetAddress.getByName("10.1.0.2"));
+        assert flow.nextHop.equals(InetAddress.getByName("10.1.0.3"));
+        assert flow.numOctets == record.getNumOctets(1);
+        assert flow.timestampCalculated == record.getTimestamp(1);
+        assert record.flows.get(1) == flow;
+    }
+
+    @Test
+    public void testAppendToBatch() throws Exception {
+        FlowBatch batch = new FlowBatch(1);
+        Recordv5 record = new Recordv5(makeBuffer(SendFauxFlowsv5.makeRecord()));
+        record.appendTo(batch);
+        record.appendTo(batch);
+
+        assert batch.size() == 4;
+        assert batch.capacity() >= 4;
+        for (int i = 0; i < batch.size(); i++) {
+            assert batch.sourceAddr[i] == record.getSourceIPv4(i % 2);
+            assert batch.destAddr[i] == record.getDestIPv4(i % 2);
+            assert batch.numOctets[i] == record.getNumOctets(i % 2);
+            assert batch.destPort[i] == record.getDestPort(i % 2);
+            assert batch.timestampCalculated[i] == record.getTimestamp(i % 2);
+        }
+
+        // the generic (Flow based) path produces the same columns.
+        FlowBatch generic = new FlowBatch();
+        for (Flow flow : record.flows)
+            generic.add(flow);
+        assert generic.size() == 2;
+        assert generic.sourceAddr[1] == batch.sourceAddr[1];
+        assert generic.getFlow(1).destAddr.equals(record.flows.get(1).destAddr);
+
+        batch.clear();
+        assert batch.size() == 0;
+    }
+
+    @Test
+    public void testHeaderAndSampling() throws Exception {
+        ByteBuffer datagram = SendFauxFlowsv5.makeRecord();
+        datagram.putInt(16, 1234);                      // flow_sequence
+        datagram.put(20, (byte)1);                      // engine_type
+        datagram.put(21, (byte)7);                      // engine_id
+        datagram.putShort(22, (short)(0x4000 | 100));   // deterministic, 1 in 100
+        Recordv5 record = new Recordv5(makeBuffer(datagram));
+
+        assert record.getFlowSequence() == 1234;
+        assert record.getEngineType() == 1;
+        assert record.getEngineId() == 7;
+        assert record.getSamplingMode() == 1;
+        assert record.getSamplingInterval() == 100;
+        assert record.getNumPackets(0) == 10 * 100;
+        assert record.getNumOctets(0) == 100 * 100;
+        assert record.flows.get(0).numOctets == 100 * 100;
+
+        FlowBatch batch = new FlowBatch();
+        record.appendTo(batch);
+        assert batch.numPackets[1] == 10 * 100;
+        assert batch.numOctets[1] == 100 * 100;
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        ByteBuffer datagram = SendFauxFlowsv5.makeRecord();
+        // chop off the second half of the second flow.
+        datagram.limit(Recordv5.HEADER_SIZE + Recordv5.FLOW_SIZE + Recordv5.FLOW_SIZE / 2);
+        Recordv5 record = new Recordv5(makeBuffer(datagram));
+
+        assert record.getFlowCount() == 1;
+        assert record.flows.size() == 1;
+    }
+
+    @Test(expected = CorruptDatagram.class)
+    public void testShortHeader() throws Exception {
+        ByteBuffer datagram = SendFauxFlowsv5.makeRecord();
+        datagram.limit(Recordv5.HEADER_SIZE - 4);
+        new Recordv5(makeBuffer(datagram));
+    }
+}
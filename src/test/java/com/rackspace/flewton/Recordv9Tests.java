@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public class Recordv9Tests {
+    private static final int TEMPLATE_ID = 260;
+    // type, length pairs: src addr, dst addr, src port, dst port, protocol, bytes, packets, first, last, and an unknown field.
+    private static final int[] FIELDS = { 8, 4, 12, 4, 7, 2, 11, 2, 4, 1, 1, 4, 2, 8, 22, 4, 21, 4, 999, 3 };
+    private static final int RECORD_SIZE = 4 + 4 + 2 + 2 + 1 + 4 + 8 + 4 + 4 + 3;
+
+    private static ByteBuffer header(ByteBuffer datagram, long sourceId) {
+        datagram.putShort((short)9);
+        datagram.putShort((short)0);
+        datagram.putInt(10000);                // sys_uptime
+        datagram.putInt(1300000000);           // unix_secs
+        datagram.putInt(1);                    // sequence
+        datagram.putInt((int)sourceId);
+        return datagram;
+    }
+
+    private static void putTemplate(ByteBuffer datagram) {
+        datagram.putShort((short)Recordv9.TEMPLATE_FLOWSET);
+        datagram.putShort((short)(4 + 4 + FIELDS.length * 2));
+        datagram.putShort((short)TEMPLATE_ID);
+        datagram.putShort((short)(FIELDS.length / 2));
+        for (int field : FIELDS)
+            datagram.putShort((short)field);
+    }
+
+    private static void putData(ByteBuffer datagram, int flows) {
+        datagram.putShort((short)TEMPLATE_ID);
+        datagram.putShort((short)(4 + flows * RECORD_SIZE + 2));
+        for (int i = 0; i < flows; i++) {
+            datagram.putInt(0x0a000001 + i);  // 10.0.0.1 + i
+            datagram.putInt(0xc0a80001);      // 192.168.0.1
+            datagram.putShort((short)1234);
+            datagram.putShort((short)80);
+            datagram.put((byte)6);
+            datagram.putInt(1500 * (i + 1));
+            datagram.putLong(3);
+            datagram.putInt(9000);
+            datagram.putInt(9500);
+            datagram.put(new byte[3]);
+        }
+        datagram.putShort((short)0);          // padding
+    }
+
+    private static ChannelBuffer makeBuffer(ByteBuffer datagram) {
+        datagram.flip();
+        ChannelBuffer buff = ChannelBuffers.wrappedBuffer(datagram);
+        int version = buff.readShort();
+        assert version == 9;
+        return buff;
+    }
+
+    @Test
+    public void testTemplateThenData() throws Exception {
+        TemplateCache templates = new TemplateCache();
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+
+        ByteBuffer datagram = header(ByteBuffer.allocate(1500), 7);
+        putTemplate(datagram);
+        putData(datagram, 3);
+        Recordv9 record = new Recordv9(makeBuffer(datagram), exporter, templates);
+
+        assert record.getSourceId() == 7;
+        assert record.getFlowCount() == 3;
+        Flow flow = record.flows.get(2);
+        assert flow.sourceAddr.equals(InetAddress.getByName("10.0.0.3"));
+        assert flow.destAddr.equals(InetAddress.getByName("192.168.0.1"));
+        assert flow.sourcePort == 1234;
+        assert flow.destPort == 80;
+        assert flow.protocol == 6;
+        assert flow.numOctets == 4500;
+        assert flow.numPackets == 3;
+        assert flow.timeFirst == 9000;
+        assert flow.timeLast == 9500;
+        assert flow.timestampCalculated == 1300000000L * 1000 - 10000 + 9500;
+
+        FlowBatch batch = new FlowBatch();
+        record.appendTo(batch);
+        assert batch.size() == 3;
+        assert batch.sourceAddr[1] == 0x0a000002;
+        assert batch.numOctets[1] == 3000;
+        assert batch.timestampCalculated[2] == flow.timestampCalculated;
+
+        // the template is remembered for the next datagram, but only for that exporter and source id.
+        datagram = header(ByteBuffer.allocate(1500), 7);
+        putData(datagram, 1);
+        assert new Recordv9(makeBuffer(datagram), exporter, templates).getFlowCount() == 1;
+
+        datagram = header(ByteBuffer.allocate(1500), 8);
+        putData(datagram, 1);
+        assert new Recordv9(makeBuffer(datagram), exporter, templates).getFlowCount() == 0;
+    }
+
+    @Test
+    public void testDataBeforeTemplate() throws Exception {
+        TemplateCache templates = new TemplateCache();
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+
+        ByteBuffer datagram = header(ByteBuffer.allocate(1500), 1);
+        putData(datagram, 2);
+        Recordv9 early = new Recordv9(makeBuffer(datagram), exporter, templates);
+        assert early.getFlowCount() == 0;
+        assert templates.getPendingCount() == 1;
+
+        // the held data is reported along with the template.
+        datagram = header(ByteBuffer.allocate(1500), 1);
+        putTemplate(datagram);
+        Recordv9 late = new Recordv9(makeBuffer(datagram), exporter, templates);
+        assert late.getFlowCount() == 2;
+        assert late.flows.get(1).numOctets == 3000;
+        assert templates.getPendingCount() == 0;
+    }
+
+    @Test
+    public void testPendingIsBounded() throws Exception {
+        TemplateCache templates = new TemplateCache(60000, 2);
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+
+        for (int i = 0; i < 5; i++) {
+            ByteBuffer datagram = header(ByteBuffer.allocate(1500), 1);
+            putData(datagram, 1);
+            new Recordv9(makeBuffer(datagram), exporter, templates);
+        }
+        assert templates.getPendingCount() == 2;
+        assert templates.getExpiredCount() == 3;
+    }
+
+    @Test(expected = CorruptDatagram.class)
+    public void testBadFlowSetLength() throws Exception {
+        ByteBuffer datagram = header(ByteBuffer.allocate(1500), 1);
+        datagram.putShort((short)TEMPLATE_ID);
+        datagram.putShort((short)400);
+        datagram.put(new byte[20]);
+        new Recordv9(makeBuffer(datagram), InetAddress.getByName("127.0.0.1"), new TemplateCache());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+public class SequenceTrackerTests {
+    @Test
+    public void testGapsAndLateRecords() throws Exception {
+        SequenceTracker tracker = new SequenceTracker();
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+
+        assert tracker.update(exporter, 0, 100, 30) == 0;
+        assert tracker.update(exporter, 0, 130, 30) == 0;
+        // 160 went missing.
+        assert tracker.update(exporter, 0, 190, 30) == 30;
+        assert tracker.getLostFlows() == 30;
+        assert tracker.getLostFlows(exporter, 0) == 30;
+
+        // ... then turned up late.
+        assert tracker.update(exporter, 0, 160, 30) == 0;
+        assert tracker.getLostFlows() == 0;
+        assert tracker.getLateRecords() == 1;
+
+        // other engines behind the same address are tracked separately.
+        assert tracker.update(exporter, 1, 5000, 30) == 0;
+        assert tracker.getLostFlows(exporter, 1) == 0;
+        assert tracker.getLostFlows(exporter, 2) == -1;
+        assert tracker.getReceivedFlows() == 150;
+    }
+
+    @Test
+    public void testWrapAndRestart() throws Exception {
+        SequenceTracker tracker = new SequenceTracker();
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+
+        // the sequence is 32 bits, and wraps.
+        assert tracker.update(exporter, 0, 0xffffffe0L, 30) == 0;
+        assert tracker.update(exporter, 0, 0xfffffffeL, 30) == 0;
+        assert tracker.update(exporter, 0, 28 + 30, 30) == 30;
+
+        // an exporter that restarts begins again at zero; that isn't loss or lateness.
+        tracker.update(exporter, 0, 50000000, 30);
+        long lost = tracker.getLostFlows();
+        assert tracker.update(exporter, 0, 0, 30) == 0;
+        assert tracker.update(exporter, 0, 30, 30) == 0;
+        assert tracker.getLostFlows() == lost;
+        assert tracker.getLateRecords() == 0;
+    }
+
+    @Test
+    public void testEarlyRestart() throws Exception {
+        SequenceTracker tracker = new SequenceTracker();
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+
+        // a few thousand flows, with one datagram lost...
+        for (long sequence = 0; sequence < 3000; sequence += 30)
+            if (sequence != 600)
+                tracker.update(exporter, 0, sequence, 30);
+        assert tracker.getLostFlows() == 30;
+
+        // ... then the exporter restarts; we follow it, rather than taking every record as late.
+        assert tracker.update(exporter, 0, 0, 30) == 0;
+        for (long sequence = 30; sequence < 6000; sequence += 30)
+            assert tracker.update(exporter, 0, sequence, 30) == 0;
+        assert tracker.getLostFlows() == 30;
+        assert tracker.getLostFlows(exporter, 0) == 30;
+        assert tracker.getLateRecords() == 0;
+    }
+
+    @Test
+    public void testDuplicates() throws Exception {
+        SequenceTracker tracker = new SequenceTracker();
+        InetAddress exporter = InetAddress.getByName("127.0.0.1");
+
+        assert tracker.update(exporter, 0, 0, 30) == 0;
+        assert tracker.update(exporter, 0, 30, 30) == 0;
+        assert tracker.update(exporter, 0, 30, 30) == 0;
+        assert tracker.update(exporter, 0, 0, 30) == 0;
+        assert tracker.update(exporter, 0, 60, 30) == 0;
+        assert tracker.getLostFlows() == 0;
+        assert tracker.getDuplicateRecords() == 2;
+
+        // a late record fills its gap only once; a second copy is a duplicate.
+        assert tracker.update(exporter, 0, 150, 30) == 60;
+        assert tracker.update(exporter, 0, 120, 30) == 0;
+        assert tracker.update(exporter, 0, 120, 30) == 0;
+        assert tracker.getLostFlows() == 30;
+        assert tracker.getLateRecords() == 1;
+        assert tracker.getDuplicateRecords() == 3;
+        assert tracker.update(exporter, 0, 90, 30) == 0;
+        assert tracker.getLostFlows() == 0;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.FlowBatch;
+
+public class BatchBackendsTests {
+    // one flow, whose octet count is the record's id.
+    private static class TestRecord extends AbstractRecord {
+        private final long id;
+
+        TestRecord(long id) {
+            super(null);
+            this.id = id;
+        }
+
+        @Override
+        protected void appendFlows(FlowBatch batch) {
+            int i = batch.add();
+            batch.setIPv4(i, 0x0a000001, 0x0a000002);
+            batch.numOctets[i] = id;
+        }
+    }
+
+    // records each batch it is handed, and its first row; optionally writes a record to another backend.
+    private static class Recording implements IBatchBackend {
+        final List<FlowBatch> batches = new ArrayList<FlowBatch>();
+        final List<Long> written = new ArrayList<Long>();
+        IBatchBackend nested;
+
+        public void write(AbstractRecord record) {
+            BatchBackends.write(this, record);
+        }
+
+        public void write(FlowBatch batch) {
+            batches.add(batch);
+            assert batch.size() == 1;
+            written.add(batch.numOctets[0]);
+            if (nested != null)
+                nested.write(new TestRecord(batch.numOctets[0] * 10));
+        }
+    }
+
+    @Test
+    public void testReusesBatch() {
+        Recording backend = new Recording();
+        for (long id = 1; id <= 3; id++)
+            backend.write(new TestRecord(id));
+        assert backend.written.equals(Arrays.asList(1L, 2L, 3L));
+        assert backend.batches.get(0) == backend.batches.get(1);
+        assert backend.batches.get(1) == backend.batches.get(2);
+    }
+
+    @Test
+    public void testNestedWrite() {
+        Recording outer = new Recording(), inner = new Recording();
+        outer.nested = inner;
+        outer.write(new TestRecord(1));
+        outer.write(new TestRecord(2));
+        assert outer.written.equals(Arrays.asList(1L, 2L));
+        assert inner.written.equals(Arrays.asList(10L, 20L));
+        assert outer.batches.get(0) != inner.batches.get(0);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.junit.Test;
+
+import com.rackspace.flewton.ConfigError;
+import com.rackspace.flewton.FlowBatch;
+
+public class PooledPythonTests {
+    private static final String SOURCE =
+        "instances = 0\n" +
+        "class Summer(object):\n" +
+        "    def __init__(self, config):\n" +
+        "        global instances\n" +
+        "        instances += 1\n" +
+        "        config.getProperty('instances').addAndGet(instances)\n" +
+        "        self.total = config.getProperty('total')\n" +
+        "    def write_batch(self, batch, size):\n" +
+        "        octets = batch.numOctets\n" +
+        "        sum = 0\n" +
+        "        for i in xrange(size):\n" +
+        "            sum += octets[i]\n" +
+        "        self.total.addAndGet(sum)\n";
+
+    @Test
+    public void testBatchesAcrossInterpreters() throws Exception {
+        AtomicLong instances = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        HierarchicalConfiguration config = new HierarchicalConfiguration();
+        config.setProperty("instances", instances);
+        config.setProperty("total", total);
+        final PooledPythonBackend backend = new PooledPythonBackend(SOURCE, "Summer", config, 2);
+
+        // each interpreter runs the module afresh, so both instances count themselves as the first.
+        assert instances.get() == 2;
+
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread() {
+                public void run() {
+                    FlowBatch batch = new FlowBatch();
+                    for (int n = 0; n < 50; n++) {
+                        batch.clear();
+                        for (int i = 0; i < 100; i++)
+                            batch.numOctets[batch.add()] = i;
+                        backend.write(batch);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+        assert total.get() == 4 * 50 * 4950L;
+    }
+
+    @Test(expected = ConfigError.class)
+    public void testMissingWriteBatch() throws Exception {
+        new PooledPythonBackend("class Summer(object):\n    def __init__(self, config): pass\n",
+                "Summer", new HierarchicalConfiguration(), 1);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.junit.Test;
+
+import com.rackspace.flewton.ConfigError;
+import com.rackspace.flewton.FlowBatch;
+
+public class PooledScriptTests {
+    private static final String JS_SOURCE =
+        "var total;\n" +
+        "function init(config) {\n" +
+        "    total = config.getProperty('total');\n" +
+        "}\n" +
+        "function writeBatch(batch, size) {\n" +
+        "    var octets = batch.numOctets, sum = 0;\n" +
+        "    for (var i = 0; i < size; i++)\n" +
+        "        sum += octets[i];\n" +
+        "    total.addAndGet(sum);\n" +
+        "}\n";
+
+    // each engine counts its own calls.
+    private static final String PY_SOURCE =
+        "def init(config):\n" +
+        "    global calls, out\n" +
+        "    calls = 0\n" +
+        "    out = config.getProperty('calls')\n" +
+        "def writeBatch(batch, size):\n" +
+        "    global calls\n" +
+        "    calls += 1\n" +
+        "    out.append(str(calls))\n";
+
+    /**
+     * An engine that can't compile, and only understands the two calls the
+     * backend makes, summing the batch's octets itself.  Sources containing
+     * "failInit" or "failWrite" make those calls throw.
+     */
+    private static class FakeEngine extends AbstractScriptEngine {
+        private final FakeFactory factory;
+        private String source = "";
+
+        private FakeEngine(FakeFactory factory) {
+            this.factory = factory;
+        }
+
+        public Object eval(String script, ScriptContext context) throws ScriptException {
+            factory.evaluated.add(script);
+            if (script.equals("init(config)")) {
+                if (source.contains("failInit"))
+                    throw new ScriptException("init failed");
+                assert context.getAttribute("config") != null;
+            } else if (script.equals("writeBatch(batch, size)")) {
+                if (source.contains("failWrite"))
+                    throw new ScriptException("writeBatch failed");
+                FlowBatch batch = (FlowBatch)context.getAttribute("batch");
+                int size = (Integer)context.getAttribute("size");
+                for (int i = 0; i < size; i++)
+                    factory.total.addAndGet(batch.numOctets[i]);
+                factory.lastContext = context;
+            } else {
+                source = script;
+            }
+            return null;
+        }
+
+        public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+            throw new ScriptException("not supported");
+        }
+
+        public Bindings createBindings() {
+            return new SimpleBindings();
+        }
+
+        public ScriptEngineFactory getFactory() {
+            return factory;
+        }
+    }
+
+    private static class FakeFactory implements ScriptEngineFactory {
+        private final List<String> evaluated = Collections.synchronizedList(new ArrayList<String>());
+        private final AtomicLong total = new AtomicLong();
+        private volatile ScriptContext lastContext;
+
+        public ScriptEngine getScriptEngine() {
+            return new FakeEngine(this);
+        }
+
+        public String getEngineName() { return "fake"; }
+        public String getEngineVersion() { return "1"; }
+        public List<String> getExtensions() { return Arrays.asList("fake"); }
+        public List<String> getMimeTypes() { return Collections.emptyList(); }
+        public List<String> getNames() { return Arrays.asList("fake"); }
+        public String getLanguageName() { return "fake"; }
+        public String getLanguageVersion() { return "1"; }
+        public Object getParameter(String key) { return null; }
+        public String getMethodCallSyntax(String obj, String m, String... args) { return null; }
+        public String getOutputStatement(String toDisplay) { return null; }
+        public String getProgram(String... statements) { return null; }
+    }
+
+    private static FlowBatch batch(int rows) {
+        FlowBatch batch = new FlowBatch();
+        for (int i = 0; i < rows; i++)
+            batch.numOctets[batch.add()] = i;
+        return batch;
+    }
+
+    @Test
+    public void testJavaScript() throws Exception {
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("JavaScript");
+        // not every JDK ships one.
+        if (engine == null)
+            return;
+        AtomicLong total = new AtomicLong();
+        HierarchicalConfiguration config = new HierarchicalConfiguration();
+        config.setProperty("total", total);
+        PooledScriptBackend backend = new PooledScriptBackend(engine.getFactory(), JS_SOURCE, config, 2);
+        for (int n = 0; n < 3; n++)
+            backend.write(batch(100));
+        assert total.get() == 3 * 4950L;
+    }
+
+    @Test
+    public void testCompiledEnginesKeepTheirOwnGlobals() throws Exception {
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("python");
+        assert engine instanceof Compilable;
+        StringBuilder calls = new StringBuilder();
+        HierarchicalConfiguration config = new HierarchicalConfiguration();
+        config.setProperty("calls", calls);
+        PooledScriptBackend backend = new PooledScriptBackend(engine.getFactory(), PY_SOURCE, config, 2);
+        // the pool hands out engines in turn.
+        for (int n = 0; n < 3; n++)
+            backend.write(batch(1));
+        assert calls.toString().equals("112") : calls;
+    }
+
+    @Test
+    public void testEvaluatedEngines() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        assert !(factory.getScriptEngine() instanceof Compilable);
+        PooledScriptBackend backend = new PooledScriptBackend(factory, "source", new HierarchicalConfiguration(), 2);
+        assert factory.evaluated.equals(Arrays.asList("source", "init(config)", "source", "init(config)"));
+
+        factory.evaluated.clear();
+        backend.write(batch(100));
+        backend.write(batch(10));
+        // empty batches never reach the script.
+        backend.write(batch(0));
+        assert factory.evaluated.equals(Arrays.asList("writeBatch(batch, size)", "writeBatch(batch, size)"));
+        assert factory.total.get() == 4950 + 45;
+        // the engine doesn't hang on to the batch.
+        assert factory.lastContext.getAttribute("batch") == null;
+    }
+
+    @Test
+    public void testScriptErrors() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        PooledScriptBackend backend = new PooledScriptBackend(factory, "failWrite", new HierarchicalConfiguration(), 1);
+        for (int n = 0; n < 2; n++) {
+            // the engine goes back to the pool, so the second write doesn't wait forever.
+            try {
+                backend.write(batch(1));
+                assert false;
+            } catch (RuntimeException ex) {
+                assert ex.getCause() instanceof ScriptException;
+            }
+        }
+    }
+
+    @Test(expected = ConfigError.class)
+    public void testFailedInit() throws Exception {
+        new PooledScriptBackend(new FakeFactory(), "failInit", new HierarchicalConfiguration(), 1);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.junit.Test;
+
+import com.rackspace.flewton.CollectorHandler;
+import com.rackspace.flewton.CollectorServer;
+import com.rackspace.flewton.FlowBatch;
+
+public class ProcessBackendTests {
+    // offset of numOctets in a record.
+    private static final int OCTETS = 4 * 8 + 3 * 4 + 8;
+
+    /** the child: grants two frames up front and one per frame read, and writes totals to args[0] at EOF. */
+    public static class Child {
+        public static void main(String[] args) throws Exception {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+            DataOutputStream out = new DataOutputStream(System.out);
+            if (in.readInt() != ProcessBackend.MAGIC || in.readInt() != ProcessBackend.VERSION)
+                System.exit(2);
+            int recordSize = in.readInt();
+            out.writeInt(2);
+            out.flush();
+
+            long frames = 0, flows = 0, octets = 0;
+            try {
+                while (true) {
+                    byte[] frame = new byte[in.readInt()];
+                    in.readFully(frame);
+                    ByteBuffer buf = ByteBuffer.wrap(frame);
+                    int count = buf.getInt();
+                    for (int i = 0; i < count; i++)
+                        octets += buf.getLong(4 + i * recordSize + OCTETS);
+                    flows += count;
+                    frames++;
+                    out.writeInt(1);
+                    out.flush();
+                }
+            } catch (EOFException done) { }
+            FileWriter result = new FileWriter(args[0]);
+            result.write(frames + " " + flows + " " + octets);
+            result.close();
+        }
+    }
+
+    /** a child that never grants credit, and exits at EOF. */
+    public static class Stingy {
+        public static void main(String[] args) throws Exception {
+            while (System.in.read() >= 0);
+        }
+    }
+
+    private static List<String> command(Class<?> child, String... args) {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(child.getName());
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    @Test
+    public void testFramesAndCredit() throws Exception {
+        File result = File.createTempFile("process-backend", ".txt");
+        result.deleteOnExit();
+        ProcessBackend backend = new ProcessBackend(command(Child.class, result.getPath()), 100);
+
+        FlowBatch batch = new FlowBatch();
+        long octets = 0;
+        for (int n = 0; n < 20; n++) {
+            batch.clear();
+            // 250 flows: frames of 100, 100 and 50, far more frames than the child grants up front.
+            for (int i = 0; i < 250; i++) {
+                int row = batch.add();
+                batch.setIPv4(row, 0x0a000001, 0x0a000002);
+                batch.numOctets[row] = i;
+                octets += i;
+            }
+            backend.write(batch);
+        }
+        assert backend.close() == 0;
+        Scanner totals = new Scanner(result);
+        assert totals.nextLong() == 60;
+        assert totals.nextLong() == 5000;
+        assert totals.nextLong() == octets;
+        assert backend.getDropped() == 0;
+    }
+
+    @Test
+    public void testCloseWhileWaitingForCredit() throws Exception {
+        final ProcessBackend backend = new ProcessBackend(command(Stingy.class), 100);
+        final FlowBatch batch = new FlowBatch();
+        for (int i = 0; i < 10; i++)
+            batch.setIPv4(batch.add(), 0x0a000001, 0x0a000002);
+        Thread writer = new Thread() {
+            public void run() {
+                backend.write(batch);
+            }
+        };
+        writer.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assert writer.getState() == Thread.State.WAITING;
+
+        final int[] exit = { -1 };
+        Thread closer = new Thread() {
+            public void run() {
+                try {
+                    exit[0] = backend.close();
+                } catch (InterruptedException ignore) { }
+            }
+        };
+        closer.start();
+        closer.join(10000);
+        assert !closer.isAlive() : "close() is stuck behind the writer";
+        writer.join(1000);
+        assert !writer.isAlive();
+        assert exit[0] == 0;
+        assert backend.getDropped() == 10;
+    }
+
+    @Test
+    public void testConfigured() throws Exception {
+        // configured as flewton.cfg shows it.
+        String section = "com/rackspace/flewton/backend/ProcessBackend";
+        HierarchicalINIConfiguration config = new HierarchicalINIConfiguration();
+        config.addProperty("backendClass", section);
+        for (String arg : command(Stingy.class))
+            config.addProperty(section + ".command", arg);
+        new CollectorServer().setup(config);
+        try {
+            List<IBackend> backends = CollectorHandler.getBackends();
+            assert backends.size() == 1;
+            assert backends.get(0) instanceof ProcessBackend;
+            assert ((ProcessBackend)backends.get(0)).close() == 0;
+        } finally {
+            CollectorHandler.setBackends(new ArrayList<IBackend>());
+        }
+    }
+
+    @Test
+    public void testRecordLayout() {
+        FlowBatch batch = new FlowBatch();
+        int row = batch.add();
+        batch.setIPv4(row, 0x0a000001, 0x0a000002);
+        batch.numOctets[row] = 1234;
+        batch.sourcePort[row] = 65535;
+        batch.destLabel[row] = 42;
+        batch.tos[row] = 7;
+        ByteBuffer frame = ByteBuffer.allocate(8 + ProcessBackend.RECORD_SIZE);
+        ProcessBackend.encode(batch, 0, 1, frame);
+        assert frame.position() == frame.capacity();
+        assert frame.getInt(0) == 4 + ProcessBackend.RECORD_SIZE;
+        assert frame.getInt(4) == 1;
+        assert frame.getLong(8 + 8) == 0x0000ffff0a000001L;
+        assert frame.getLong(8 + OCTETS) == 1234;
+        assert (frame.getShort(8 + 84) & 0xffff) == 65535;
+        assert frame.getInt(8 + 104) == 42;
+        assert frame.get(8 + 110) == 7;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.FlowBatch;
+import com.rackspace.flewton.InterfaceCounters;
+import com.rackspace.flewton.backend.QueuedBackend.FullPolicy;
+
+public class QueuedBackendTests {
+    // one flow, whose octet count is the record's id.
+    private static class TestRecord extends AbstractRecord {
+        private final long id;
+
+        TestRecord(long id) {
+            super(null);
+            this.id = id;
+        }
+
+        @Override
+        protected void appendFlows(FlowBatch batch) {
+            if (id < 0)
+                throw new IllegalStateException("bad record");
+            int i = batch.add();
+            batch.setIPv4(i, 0x0a000001, 0x0a000002);
+            batch.numOctets[i] = id;
+        }
+    }
+
+    // records what it is handed; the first write blocks until released.
+    private static class Recording implements IBackend {
+        final List<Long> written = Collections.synchronizedList(new ArrayList<Long>());
+        final Semaphore entered = new Semaphore(0);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public void write(AbstractRecord record) {
+            written(((TestRecord)record).id);
+        }
+
+        void written(long id) {
+            written.add(id);
+            entered.release();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // waits for the consumer to be stuck in the first write.
+        void awaitBlocked() throws InterruptedException {
+            assert entered.tryAcquire(5, TimeUnit.SECONDS);
+        }
+
+        List<Long> awaitWritten(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (written.size() < count && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+            Thread.sleep(20);
+            return new ArrayList<Long>(written);
+        }
+    }
+
+    // counter lists are recorded as minus their size.
+    private static class CounterRecording extends Recording implements ICounterBackend {
+        public void writeCounters(List<InterfaceCounters> counters) {
+            written(-counters.size());
+        }
+    }
+
+    // records every row of every batch.
+    private static class BatchRecording extends Recording implements IBatchBackend {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        public void write(FlowBatch batch) {
+            batchSizes.add(batch.size());
+            for (int i = 0; i < batch.size(); i++)
+                written(batch.numOctets[i]);
+        }
+    }
+
+    // a batch backend that also takes counters, and fails to write them.
+    private static class FailingCounterRecording extends BatchRecording implements ICounterBackend {
+        public void writeCounters(List<InterfaceCounters> counters) {
+            written(-counters.size());
+            throw new IllegalStateException("counters failed");
+        }
+    }
+
+    private static QueuedBackend blocked(Recording delegate, FullPolicy policy) throws InterruptedException {
+        return blocked(delegate, policy, 2);
+    }
+
+    private static QueuedBackend blocked(Recording delegate, FullPolicy policy, int capacity)
+            throws InterruptedException {
+        QueuedBackend backend = new QueuedBackend(delegate, "test", capacity, policy);
+        backend.write(new TestRecord(1));
+        delegate.awaitBlocked();
+        return backend;
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        Recording delegate = new Recording();
+        QueuedBackend backend = blocked(delegate, FullPolicy.DROP_NEWEST);
+        for (long id = 2; id <= 4; id++)
+            backend.write(new TestRecord(id));
+        assert backend.getQueued() == 2;
+        assert backend.getDropped() == 1;
+
+        delegate.release.countDown();
+        assert delegate.awaitWritten(3).equals(Arrays.asList(1L, 2L, 3L));
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        Recording delegate = new Recording();
+        QueuedBackend backend = blocked(delegate, FullPolicy.DROP_OLDEST);
+        for (long id = 2; id <= 4; id++)
+            backend.write(new TestRecord(id));
+        assert backend.getQueued() == 2;
+        assert backend.getDropped() == 1;
+
+        delegate.release.countDown();
+        assert delegate.awaitWritten(3).equals(Arrays.asList(1L, 3L, 4L));
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        Recording delegate = new Recording();
+        final QueuedBackend backend = blocked(delegate, FullPolicy.BLOCK);
+        backend.write(new TestRecord(2));
+        backend.write(new TestRecord(3));
+        Thread writer = new Thread() {
+            public void run() {
+                backend.write(new TestRecord(4));
+            }
+        };
+        writer.start();
+        writer.join(100);
+        assert writer.isAlive();
+
+        delegate.release.countDown();
+        writer.join(5000);
+        assert !writer.isAlive();
+        assert delegate.awaitWritten(4).equals(Arrays.asList(1L, 2L, 3L, 4L));
+        assert backend.getDropped() == 0;
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        List<InterfaceCounters> counters = Arrays.asList(new InterfaceCounters(), new InterfaceCounters());
+
+        // counters keep their place among the records.
+        CounterRecording counting = new CounterRecording();
+        QueuedBackend backend = blocked(counting, FullPolicy.BLOCK);
+        backend.writeCounters(counters);
+        backend.write(new TestRecord(2));
+        counting.release.countDown();
+        assert counting.awaitWritten(3).equals(Arrays.asList(1L, -2L, 2L));
+
+        // and are not queued at all for backends that don't want them.
+        Recording plain = new Recording();
+        backend = blocked(plain, FullPolicy.DROP_NEWEST);
+        backend.writeCounters(counters);
+        backend.writeCounters(counters);
+        backend.writeCounters(counters);
+        assert backend.getQueued() == 0;
+        assert backend.getDropped() == 0;
+        plain.release.countDown();
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        BatchRecording delegate = new BatchRecording();
+        QueuedBackend backend = blocked(delegate, FullPolicy.BLOCK);
+        backend.write(new TestRecord(2));
+        backend.write(new TestRecord(3));
+        delegate.release.countDown();
+        assert delegate.awaitWritten(3).equals(Arrays.asList(1L, 2L, 3L));
+        // everything queued behind the first batch is coalesced into the next.
+        assert delegate.batchSizes.equals(Arrays.asList(1, 2));
+    }
+
+    @Test
+    public void testBadRecordInBatch() throws Exception {
+        BatchRecording delegate = new BatchRecording();
+        QueuedBackend backend = blocked(delegate, FullPolicy.BLOCK, 4);
+        backend.write(new TestRecord(2));
+        backend.write(new TestRecord(-1));
+        backend.write(new TestRecord(3));
+        delegate.release.countDown();
+        // the batch holding the bad record is lost, but nothing in it comes back.
+        Thread.sleep(50);
+        backend.write(new TestRecord(4));
+        assert delegate.awaitWritten(2).equals(Arrays.asList(1L, 4L));
+    }
+
+    @Test
+    public void testCountersInBatch() throws Exception {
+        FailingCounterRecording delegate = new FailingCounterRecording();
+        QueuedBackend backend = blocked(delegate, FullPolicy.BLOCK, 4);
+        backend.write(new TestRecord(2));
+        backend.writeCounters(Arrays.asList(new InterfaceCounters(), new InterfaceCounters()));
+        backend.write(new TestRecord(3));
+        delegate.release.countDown();
+        // counters split the batch, keep their place, and failing to write them loses no flows.
+        assert delegate.awaitWritten(4).equals(Arrays.asList(1L, 2L, -2L, 3L));
+        assert delegate.batchSizes.equals(Arrays.asList(1, 1, 1));
+    }
+}
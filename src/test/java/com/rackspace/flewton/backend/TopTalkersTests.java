@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.util.List;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.junit.Test;
+
+import com.rackspace.flewton.FlowBatch;
+import com.rackspace.flewton.util.Address;
+import com.rackspace.flewton.util.SpaceSaving;
+
+public class TopTalkersTests {
+    private static void addFlow(FlowBatch batch, int source, int dest, int port, int protocol, long octets) {
+        int i = batch.add();
+        batch.setIPv4(i, source, dest);
+        batch.destPort[i] = port;
+        batch.protocol[i] = (byte)protocol;
+        batch.sourceAS[i] = 100;
+        batch.destAS[i] = source == 0x0a000001 ? 200 : 300;
+        batch.numOctets[i] = octets;
+    }
+
+    @Test
+    public void testDimensions() throws Exception {
+        HierarchicalConfiguration config = new HierarchicalConfiguration();
+        config.addProperty("dimensions", "ports, protocols, asPairs, conversations, hosts");
+        config.addProperty("network", "10.0.0.0/8");
+        config.addProperty("topN", 2);
+        TopTalkersBackend backend = new TopTalkersBackend(config);
+
+        FlowBatch batch = new FlowBatch();
+        addFlow(batch, 0x0a000001, 0x01020304, 443, 6, 1000);
+        addFlow(batch, 0x0a000001, 0x01020304, 443, 6, 500);
+        addFlow(batch, 0x0a000002, 0x01020305, 53, 17, 200);
+        addFlow(batch, 0x01020306, 0x0a000003, 80, 6, 100);
+        backend.write(batch);
+
+        List<List<SpaceSaving.Entry>> tops = backend.swap();
+        assert tops.size() == 5;
+        List<SpaceSaving.Entry> ports = tops.get(0);
+        assert ports.size() == 2;
+        assert ports.get(0).key[0] == ((6 << 16) | 443) && ports.get(0).count == 1500;
+        assert ports.get(1).key[0] == ((17 << 16) | 53) && ports.get(1).count == 200;
+        List<SpaceSaving.Entry> protocols = tops.get(1);
+        assert protocols.get(0).key[0] == 6 && protocols.get(0).count == 1600;
+        List<SpaceSaving.Entry> asPairs = tops.get(2);
+        assert asPairs.get(0).key[0] == ((100L << 32) | 200) && asPairs.get(0).count == 1500;
+        List<SpaceSaving.Entry> conversations = tops.get(3);
+        assert conversations.get(0).getAddress().equals(Address.fromIPv4(0x0a000001));
+        assert conversations.get(0).getPeer().equals(Address.fromIPv4(0x01020304));
+        // outgoing traffic counts the (internal) source, incoming the destination.
+        List<SpaceSaving.Entry> hosts = tops.get(4);
+        assert hosts.get(0).getAddress().equals(Address.fromIPv4(0x0a000001)) && hosts.get(0).count == 1500;
+        assert hosts.get(1).getAddress().equals(Address.fromIPv4(0x0a000002));
+
+        // the next interval starts empty.
+        tops = backend.swap();
+        for (List<SpaceSaving.Entry> top : tops)
+            assert top.isEmpty();
+    }
+
+    @Test
+    public void testSwapWhileWriting() throws Exception {
+        final TopTalkersBackend backend = new TopTalkersBackend(new HierarchicalConfiguration());
+        final FlowBatch batch = new FlowBatch();
+        for (int i = 0; i < 100; i++)
+            addFlow(batch, 0x0a000001, 0x01020304 + i % 4, 80, 6, 1);
+
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread() {
+                public void run() {
+                    for (int n = 0; n < 1000; n++)
+                        backend.write(batch);
+                }
+            };
+            writers[t].start();
+        }
+        // every byte lands in exactly one interval.
+        long total = 0;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread writer : writers)
+                running |= writer.isAlive();
+            for (SpaceSaving.Entry entry : backend.swap().get(0))
+                total += entry.count;
+        }
+        assert total == writers.length * 1000L * 100 : total;
+    }
+}
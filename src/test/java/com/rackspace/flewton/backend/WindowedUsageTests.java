@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.junit.Test;
+
+import com.rackspace.flewton.FlowBatch;
+import com.rackspace.flewton.util.Address;
+import com.rackspace.flewton.util.EventTimeWindows;
+
+public class WindowedUsageTests {
+    private static final long MINUTE = 60 * 1000;
+    private static final long T0 = 1300000000L * 1000 / MINUTE * MINUTE;
+    private static final int ROUTER = 1;
+
+    // windows logged, as { start, total, update (1 or 0), then the top hosts' { low, bytes } }.
+    private static class Recording extends WindowedUsageBackend {
+        private final List<long[]> reported = new ArrayList<long[]>();
+
+        Recording(HierarchicalConfiguration config) throws Exception {
+            super(config);
+        }
+
+        @Override
+        protected void report(EventTimeWindows.Window window, boolean update) {
+            List<long[]> top = top(window);
+            long[] row = new long[3 + 2 * top.size()];
+            row[0] = window.getStart();
+            row[1] = window.getTotal();
+            row[2] = update ? 1 : 0;
+            for (int i = 0; i < top.size(); i++) {
+                row[3 + 2 * i] = top.get(i)[1];
+                row[4 + 2 * i] = top.get(i)[2];
+            }
+            reported.add(row);
+        }
+    }
+
+    private static void addFlow(FlowBatch batch, String source, String dest, long time, long octets) {
+        int i = batch.add();
+        batch.setIPv4(i, (int)Address.parse(source).getLow(), (int)Address.parse(dest).getLow());
+        batch.timestampCalculated[i] = time;
+        batch.exporter[i] = ROUTER;
+        batch.numOctets[i] = octets;
+    }
+
+    @Test
+    public void testWindows() throws Exception {
+        HierarchicalConfiguration config = new HierarchicalConfiguration();
+        config.addProperty("network", "10.0.0.0/8");
+        config.addProperty("topN", 2);
+        config.addProperty("outOfOrderSecs", 0);
+        config.addProperty("advanceSecs", 3600);
+        Recording backend = new Recording(config);
+        long local1 = Address.mapIPv4(0x0a000001), local2 = Address.mapIPv4(0x0a000002);
+
+        FlowBatch batch = new FlowBatch();
+        addFlow(batch, "10.0.0.1", "1.2.3.4", T0 + 1000, 100);
+        addFlow(batch, "1.2.3.5", "10.0.0.2", T0 + 2000, 50);
+        addFlow(batch, "10.0.0.1", "10.0.0.2", T0 + 3000, 10);
+        addFlow(batch, "10.0.0.3", "1.2.3.4", T0 + 4000, 1);
+        // flow time, not arrival, puts this in the next window.
+        addFlow(batch, "10.0.0.1", "1.2.3.4", T0 + MINUTE, 1000);
+        backend.write(batch);
+        assert backend.advance(T0) == T0 + MINUTE;
+
+        assert backend.reported.size() == 1;
+        long[] first = backend.reported.get(0);
+        assert first.length == 7;
+        assert first[0] == T0 && first[1] == 171 && first[2] == 0;
+        assert first[3] == local1 && first[4] == 110;
+        assert first[5] == local2 && first[6] == 60;
+
+        // a late flow updates the window it belongs to.
+        batch.clear();
+        addFlow(batch, "1.2.3.5", "10.0.0.2", T0 + 5000, 60);
+        backend.write(batch);
+        backend.advance(T0);
+        assert backend.reported.size() == 2;
+        long[] update = backend.reported.get(1);
+        assert update[0] == T0 && update[1] == 231 && update[2] == 1;
+        assert update[3] == local2 && update[4] == 120;
+        assert backend.getDropped() == 0;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+
+import com.rackspace.flewton.AbstractRecord;
+import com.rackspace.flewton.Recordv5;
+import com.rackspace.flewton.backend.AbstractBackend;
+
+/**
+ * Counts what reaches it: records, flows, and how long records took to get
+ * here from receipt.
+ */
+public class CountingBackend extends AbstractBackend {
+    private final AtomicLong records = new AtomicLong(0);
+    private final AtomicLong flows = new AtomicLong(0);
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public CountingBackend(HierarchicalConfiguration config) {
+        super(config);
+    }
+
+    public void write(AbstractRecord record) {
+        latency.record(System.nanoTime() - record.getReceivedNanos());
+        records.incrementAndGet();
+        if (record instanceof Recordv5)
+            flows.addAndGet(((Recordv5)record).getFlowCount());
+        else
+            flows.addAndGet(record.flows.size());
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    public long getFlows() {
+        return flows.get();
+    }
+
+    /** time from receipt to this backend. */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public void reset() {
+        records.set(0);
+        flows.set(0);
+        latency.reset();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A simulated router: encodes datagrams of synthetic flows as Netflow v5, v9
+ * or IPFIX, with the sequence numbers, uptime and (for v9 and IPFIX) periodic
+ * template retransmission a real exporter would send.  Not thread-safe; each
+ * exporter belongs to one sending thread.
+ */
+public class FauxExporter {
+    public enum Format { V5, V9, IPFIX }
+
+    public static final int V5_MAX_FLOWS = 30;
+    public static final int TEMPLATE_ID = 256;
+    // v9 and IPFIX templates are resent every this many datagrams.
+    public static final int TEMPLATE_INTERVAL = 20;
+
+    // (type, length) pairs, v9 numbering; IPFIX shares it but uses absolute times.
+    private static final int[] V9_FIELDS = {
+        8, 4,  12, 4,  15, 4,  10, 2,  14, 2,  2, 4,  1, 4,  22, 4,  21, 4,
+        7, 2,  11, 2,  6, 1,  4, 1,  5, 1,  16, 2,  17, 2 };
+    private static final int[] IPFIX_FIELDS = {
+        8, 4,  12, 4,  15, 4,  10, 2,  14, 2,  2, 4,  1, 4,  152, 8,  153, 8,
+        7, 2,  11, 2,  6, 1,  4, 1,  5, 1,  16, 2,  17, 2 };
+
+    private final Format format;
+    private final int id;
+    private final int flowsPerDatagram;
+    private final ZipfDistribution sources;
+    private final ZipfDistribution destinations;
+    private final Random random;
+    private final long bootMillis;
+    private final ByteBuffer buffer;
+
+    private long datagrams = 0;
+    private long flows = 0;
+
+    // flow being encoded
+    private int srcAddr, dstAddr, nextHop, input, output, packets, octets;
+    private long first, last;
+    private int srcPort, dstPort, tcpFlags, protocol, tos, srcAS, dstAS;
+
+    /**
+     * @param id source id / observation domain (and v5 engine id)
+     * @param sources Zipf distribution of source hosts
+     * @param destinations Zipf distribution of destination hosts
+     */
+    public FauxExporter(Format format, int id, int flowsPerDatagram, ZipfDistribution sources,
+            ZipfDistribution destinations, long seed) {
+        if (format == Format.V5 && flowsPerDatagram > V5_MAX_FLOWS)
+            throw new IllegalArgumentException("Netflow v5 carries at most " + V5_MAX_FLOWS + " flows per datagram");
+        this.format = format;
+        this.id = id;
+        this.flowsPerDatagram = flowsPerDatagram;
+        this.sources = sources;
+        this.destinations = destinations;
+        this.random = new Random(seed);
+        // booted up to a day ago.
+        this.bootMillis = System.currentTimeMillis() - 60000 - random.nextInt(86400000);
+        this.buffer = ByteBuffer.allocate(maxSize(format, flowsPerDatagram));
+        if (buffer.capacity() > 65507)
+            throw new IllegalArgumentException(flowsPerDatagram + " flows don't fit in a datagram");
+    }
+
+    private static int maxSize(Format format, int flows) {
+        switch (format) {
+            case V5:
+                return 24 + flows * 48;
+            case V9:
+                return 20 + 8 + V9_FIELDS.length * 2 + 4 + flows * recordSize(V9_FIELDS) + 3;
+            default:
+                return 16 + 8 + IPFIX_FIELDS.length * 2 + 4 + flows * recordSize(IPFIX_FIELDS) + 3;
+        }
+    }
+
+    private static int recordSize(int[] fields) {
+        int size = 0;
+        for (int f = 1; f < fields.length; f += 2)
+            size += fields[f];
+        return size;
+    }
+
+    /** datagrams encoded so far. */
+    public long getDatagrams() {
+        return datagrams;
+    }
+
+    /** flows encoded so far; the v5 flow_sequence of the next datagram. */
+    public long getFlows() {
+        return flows;
+    }
+
+    public int getFlowsPerDatagram() {
+        return flowsPerDatagram;
+    }
+
+    /**
+     * Encodes the next datagram.  The returned buffer is reused by the next call;
+     * its backing array holds the datagram from 0 to limit().
+     */
+    public ByteBuffer next(long nowMillis) {
+        buffer.clear();
+        switch (format) {
+            case V5:
+                encodeV5(nowMillis);
+                break;
+            case V9:
+                encodeV9(nowMillis);
+                break;
+            case IPFIX:
+                encodeIpfix(nowMillis);
+                break;
+        }
+        datagrams++;
+        flows += flowsPerDatagram;
+        buffer.flip();
+        return buffer;
+    }
+
+    private void encodeV5(long nowMillis) {
+        long uptime = nowMillis - bootMillis;
+        buffer.putShort((short)5);
+        buffer.putShort((short)flowsPerDatagram);
+        buffer.putInt((int)uptime);
+        buffer.putInt((int)(nowMillis / 1000));
+        buffer.putInt((int)(nowMillis % 1000) * 1000000);
+        buffer.putInt((int)flows);          // flow_sequence
+        buffer.put((byte)0);                // engine type
+        buffer.put((byte)id);               // engine id
+        buffer.putShort((short)0);          // sampling
+        for (int i = 0; i < flowsPerDatagram; i++) {
+            makeFlow(uptime);
+            buffer.putInt(srcAddr);
+            buffer.putInt(dstAddr);
+            buffer.putInt(nextHop);
+            buffer.putShort((short)input);
+            buffer.putShort((short)output);
+            buffer.putInt(packets);
+            buffer.putInt(octets);
+            buffer.putInt((int)first);
+            buffer.putInt((int)last);
+            buffer.putShort((short)srcPort);
+            buffer.putShort((short)dstPort);
+            buffer.put((byte)0);
+            buffer.put((byte)tcpFlags);
+            buffer.put((byte)protocol);
+            buffer.put((byte)tos);
+            buffer.putShort((short)srcAS);
+            buffer.putShort((short)dstAS);
+            buffer.putInt(0);               // masks, padding
+        }
+    }
+
+    private void encodeV9(long nowMillis) {
+        long uptime = nowMillis - bootMillis;
+        boolean template = datagrams % TEMPLATE_INTERVAL == 0;
+        buffer.putShort((short)9);
+        buffer.putShort((short)(flowsPerDatagram + (template ? 1 : 0)));
+        buffer.putInt((int)uptime);
+        buffer.putInt((int)(nowMillis / 1000));
+        buffer.putInt((int)datagrams);      // package sequence
+        buffer.putInt(id);                  // source id
+        if (template)
+            putTemplate(0, V9_FIELDS);
+        putData(V9_FIELDS, uptime, nowMillis);
+    }
+
+    private void encodeIpfix(long nowMillis) {
+        buffer.putShort((short)10);
+        buffer.putShort((short)0);          // length, filled in below
+        buffer.putInt((int)(nowMillis / 1000));
+        buffer.putInt((int)flows);          // data records sent before this message
+        buffer.putInt(id);                  // observation domain
+        if (datagrams % TEMPLATE_INTERVAL == 0)
+            putTemplate(2, IPFIX_FIELDS);
+        putData(IPFIX_FIELDS, nowMillis - bootMillis, nowMillis);
+        buffer.putShort(2, (short)buffer.position());
+    }
+
+    private void putTemplate(int setId, int[] fields) {
+        buffer.putShort((short)setId);
+        buffer.putShort((short)(8 + fields.length * 2));
+        buffer.putShort((short)TEMPLATE_ID);
+        buffer.putShort((short)(fields.length / 2));
+        for (int field : fields)
+            buffer.putShort((short)field);
+    }
+
+    private void putData(int[] fields, long uptime, long nowMillis) {
+        int start = buffer.position();
+        buffer.putShort((short)TEMPLATE_ID);
+        buffer.putShort((short)0);
+        for (int i = 0; i < flowsPerDatagram; i++) {
+            makeFlow(uptime);
+            for (int f = 0; f < fields.length; f += 2)
+                putField(fields[f], nowMillis - uptime);
+        }
+        // pad to a 32 bit boundary.
+        while ((buffer.position() - start) % 4 != 0)
+            buffer.put((byte)0);
+        buffer.putShort(start + 2, (short)(buffer.position() - start));
+    }
+
+    private void putField(int type, long boot) {
+        switch (type) {
+            case 8: buffer.putInt(srcAddr); break;
+            case 12: buffer.putInt(dstAddr); break;
+            case 15: buffer.putInt(nextHop); break;
+            case 10: buffer.putShort((short)input); break;
+            case 14: buffer.putShort((short)output); break;
+            case 2: buffer.putInt(packets); break;
+            case 1: buffer.putInt(octets); break;
+            case 22: buffer.putInt((int)first); break;
+            case 21: buffer.putInt((int)last); break;
+            case 152: buffer.putLong(boot + first); break;
+            case 153: buffer.putLong(boot + last); break;
+            case 7: buffer.putShort((short)srcPort); break;
+            case 11: buffer.putShort((short)dstPort); break;
+            case 6: buffer.put((byte)tcpFlags); break;
+            case 4: buffer.put((byte)protocol); break;
+            case 5: buffer.put((byte)tos); break;
+            case 16: buffer.putShort((short)srcAS); break;
+            case 17: buffer.putShort((short)dstAS); break;
+            default: throw new AssertionError("no value for field " + type);
+        }
+    }
+
+    private void makeFlow(long uptime) {
+        boolean tcp = random.nextInt(10) < 8;
+        srcAddr = sourceAddress(sources.sample(random));
+        dstAddr = destinationAddress(destinations.sample(random));
+        nextHop = 0x0a0000fe | (id << 8);
+        input = 1 + random.nextInt(48);
+        output = 1 + random.nextInt(48);
+        packets = 1 + random.nextInt(1000);
+        octets = packets * (40 + random.nextInt(1460));
+        last = uptime - random.nextInt(30000);
+        first = last - random.nextInt(60000);
+        srcPort = 1024 + random.nextInt(64511);
+        dstPort = tcp ? 443 : 53;
+        tcpFlags = tcp ? 0x1b : 0;
+        protocol = tcp ? 6 : 17;
+        tos = 0;
+        srcAS = 64512 + id;
+        dstAS = random.nextInt(65536);
+    }
+
+    /** source hosts live in 10.0.0.0/8; ranks are scattered so the heavy hitters aren't neighbours. */
+    public static int sourceAddress(int rank) {
+        return 0x0a000000 | (((rank + 1) * 0x9e3779b1) >>> 8);
+    }
+
+    /** destination hosts are anywhere. */
+    public static int destinationAddress(int rank) {
+        return (rank + 1) * 0x9e3779b1;
+    }
+}
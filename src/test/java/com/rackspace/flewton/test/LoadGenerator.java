@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.rackspace.flewton.test.FauxExporter.Format;
+
+/**
+ * Sends synthetic Netflow at a target rate from many simulated exporters,
+ * spread over several threads, and reports the rate actually achieved.  Run
+ * it against a collector and raise the rate until the collector starts losing
+ * datagrams to find where it saturates.
+ *
+ * <pre>
+ * LoadGenerator [options] [host [port]]
+ *   --rate N        datagrams per second, in total (0 for as fast as possible; default 10000)
+ *   --threads N     sending threads (default 1)
+ *   --exporters N   simulated exporters, divided among the threads (default 1)
+ *   --flows N       flows per datagram (default 30, the most v5 allows)
+ *   --format F      v5, v9 or ipfix (default v5)
+ *   --hosts N       distinct source and destination hosts (default 100000)
+ *   --zipf S        Zipf exponent of the host distributions (default 1.0; 0 is uniform)
+ *   --duration N    seconds to run (default 60)
+ *   --bind ADDR     bind exporter i to ADDR + i, e.g. 127.0.0.1 gives each its own
+ *                   loopback address (default: all share the wildcard address)
+ * </pre>
+ */
+public class LoadGenerator {
+    private final InetSocketAddress target;
+    private int rate = 10000;
+    private int threads = 1;
+    private int exporters = 1;
+    private int flowsPerDatagram = FauxExporter.V5_MAX_FLOWS;
+    private Format format = Format.V5;
+    private int hosts = 100000;
+    private double zipf = 1.0;
+    private InetAddress bindBase = null;
+
+    private final AtomicLong sentDatagrams = new AtomicLong(0);
+    private final AtomicLong sentFlows = new AtomicLong(0);
+    private final AtomicLong sendErrors = new AtomicLong(0);
+    private volatile boolean running;
+
+    public LoadGenerator(InetSocketAddress target) {
+        this.target = target;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 9996;
+        int duration = 60;
+        List<String> positional = new ArrayList<String>();
+        String[] options = new String[args.length];
+        int optionCount = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options[optionCount++] = args[i];
+                options[optionCount++] = args[++i];
+            } else if (args[i].startsWith("--"))
+                usage("missing value for " + args[i]);
+            else
+                positional.add(args[i]);
+        }
+        if (positional.size() > 0)
+            host = positional.get(0);
+        if (positional.size() > 1)
+            port = Integer.parseInt(positional.get(1));
+
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port));
+        for (int i = 0; i < optionCount; i += 2) {
+            String name = options[i], value = options[i + 1];
+            if (name.equals("--rate"))
+                generator.setRate(Integer.parseInt(value));
+            else if (name.equals("--threads"))
+                generator.setThreads(Integer.parseInt(value));
+            else if (name.equals("--exporters"))
+                generator.setExporters(Integer.parseInt(value));
+            else if (name.equals("--flows"))
+                generator.setFlowsPerDatagram(Integer.parseInt(value));
+            else if (name.equals("--format"))
+                generator.setFormat(Format.valueOf(value.toUpperCase()));
+            else if (name.equals("--hosts"))
+                generator.setHosts(Integer.parseInt(value));
+            else if (name.equals("--zipf"))
+                generator.setZipf(Double.parseDouble(value));
+            else if (name.equals("--duration"))
+                duration = Integer.parseInt(value);
+            else if (name.equals("--bind"))
+                generator.setBindBase(InetAddress.getByName(value));
+            else
+                usage("unknown option " + name);
+        }
+
+        generator.run(duration * 1000L, true);
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("usage: LoadGenerator [--rate N] [--threads N] [--exporters N] [--flows N] "
+                + "[--format v5|v9|ipfix] [--hosts N] [--zipf S] [--duration SECS] [--bind ADDR] [host [port]]");
+        System.exit(1);
+    }
+
+    /**
+     * Sends for the given time, then returns the number of datagrams sent.
+     * 
+     * @param report print the achieved rate every second, and a summary at the end
+     */
+    public long run(long millis, boolean report) throws IOException, InterruptedException {
+        if (exporters < threads)
+            exporters = threads;
+        ZipfDistribution sources = new ZipfDistribution(hosts, zipf);
+        ZipfDistribution destinations = new ZipfDistribution(hosts, zipf);
+
+        List<Sender> senders = new ArrayList<Sender>();
+        for (int t = 0; t < threads; t++)
+            senders.add(new Sender(rate / (double)threads));
+        for (int e = 0; e < exporters; e++) {
+            DatagramSocket socket = bindBase == null ? new DatagramSocket() : new DatagramSocket(0, offset(bindBase, e));
+            FauxExporter exporter = new FauxExporter(format, e, flowsPerDatagram, sources, destinations, e);
+            senders.get(e % threads).add(exporter, socket);
+        }
+
+        if (report)
+            System.out.println(String.format("Sending %s, %d flows per datagram, from %d exporters on %d threads to %s at %s datagrams/s",
+                    format, flowsPerDatagram, exporters, threads, target, rate > 0 ? rate : "unlimited"));
+
+        running = true;
+        List<Thread> started = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(senders.get(t), "sender-" + t);
+            thread.start();
+            started.add(thread);
+        }
+
+        long start = System.currentTimeMillis();
+        long lastDatagrams = 0, lastFlows = 0, lastReport = start;
+        while (System.currentTimeMillis() - start < millis) {
+            Thread.sleep(Math.min(1000, Math.max(1, millis - (System.currentTimeMillis() - start))));
+            if (report) {
+                long now = System.currentTimeMillis();
+                long datagrams = sentDatagrams.get(), flows = sentFlows.get();
+                double secs = (now - lastReport) / 1000.0;
+                System.out.println(String.format("%8.0f datagrams/s %10.0f flows/s %12d sent",
+                        (datagrams - lastDatagrams) / secs, (flows - lastFlows) / secs, datagrams));
+                lastDatagrams = datagrams;
+                lastFlows = flows;
+                lastReport = now;
+            }
+        }
+        running = false;
+        for (Thread thread : started)
+            thread.join();
+        for (Sender sender : senders)
+            sender.close();
+
+        if (report) {
+            double secs = (System.currentTimeMillis() - start) / 1000.0;
+            System.out.println(String.format("Sent %d datagrams (%d flows) in %.1fs: %.0f datagrams/s, %.0f flows/s; %d send errors",
+                    sentDatagrams.get(), sentFlows.get(), secs, sentDatagrams.get() / secs, sentFlows.get() / secs,
+                    sendErrors.get()));
+        }
+        return sentDatagrams.get();
+    }
+
+    private static InetAddress offset(InetAddress base, int n) throws IOException {
+        byte[] addr = base.getAddress();
+        for (int i = addr.length - 1; i >= 0 && n != 0; i--) {
+            int sum = (addr[i] & 0xff) + (n & 0xff);
+            addr[i] = (byte)sum;
+            n = (n >>> 8) + (sum >> 8);
+        }
+        return InetAddress.getByAddress(addr);
+    }
+
+    // one thread; round-robins over its exporters at its share of the rate.
+    private class Sender implements Runnable {
+        private final double perNano;
+        private final List<FauxExporter> exporters = new ArrayList<FauxExporter>();
+        private final List<DatagramSocket> sockets = new ArrayList<DatagramSocket>();
+
+        private Sender(double rate) {
+            this.perNano = rate / 1e9;
+        }
+
+        private void add(FauxExporter exporter, DatagramSocket socket) {
+            exporters.add(exporter);
+            sockets.add(socket);
+        }
+
+        public void run() {
+            DatagramPacket packet = new DatagramPacket(new byte[0], 0, target.getAddress(), target.getPort());
+            long start = System.nanoTime();
+            long sent = 0;
+            int next = 0;
+            while (running) {
+                if (perNano > 0) {
+                    long elapsed = System.nanoTime() - start;
+                    long due = (long)(elapsed * perNano) + 1;
+                    if (sent >= due) {
+                        LockSupport.parkNanos((long)((sent + 1) / perNano) - elapsed);
+                        continue;
+                    }
+                }
+
+                FauxExporter exporter = exporters.get(next);
+                ByteBuffer datagram = exporter.next(System.currentTimeMillis());
+                packet.setData(datagram.array(), 0, datagram.limit());
+                try {
+                    sockets.get(next).send(packet);
+                    sentDatagrams.incrementAndGet();
+                    sentFlows.addAndGet(exporter.getFlowsPerDatagram());
+                } catch (IOException ex) {
+                    // usually ENOBUFS; the datagram is lost, as it would be on a real network.
+                    sendErrors.incrementAndGet();
+                }
+                sent++;
+                next = (next + 1) % exporters.size();
+            }
+        }
+
+        private void close() {
+            for (DatagramSocket socket : sockets)
+                socket.close();
+        }
+    }
+
+    public long getSentDatagrams() {
+        return sentDatagrams.get();
+    }
+
+    public long getSentFlows() {
+        return sentFlows.get();
+    }
+
+    public long getSendErrors() {
+        return sendErrors.get();
+    }
+
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setExporters(int exporters) {
+        this.exporters = exporters;
+    }
+
+    public void setFlowsPerDatagram(int flowsPerDatagram) {
+        this.flowsPerDatagram = flowsPerDatagram;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    public void setHosts(int hosts) {
+        this.hosts = hosts;
+    }
+
+    public void setZipf(double zipf) {
+        this.zipf = zipf;
+    }
+
+    public void setBindBase(InetAddress bindBase) {
+        this.bindBase = bindBase;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+
+import com.rackspace.flewton.CollectorHandler;
+import com.rackspace.flewton.CollectorServer;
+import com.rackspace.flewton.SequenceTracker;
+import com.rackspace.flewton.backend.IBackend;
+import com.rackspace.flewton.backend.QueuedBackend;
+import com.rackspace.flewton.test.FauxExporter.Format;
+
+/**
+ * End-to-end throughput and loss: runs a CollectorServer in this JVM with a
+ * {@link CountingBackend}, drives it over loopback with {@link LoadGenerator}
+ * at a series of increasing rates, and reports for each step what arrived,
+ * what was lost and how long records took to reach the backend.
+ *
+ * <pre>
+ * LoopbackBenchmark [options]
+ *   --start N       first rate, in datagrams per second (default 10000)
+ *   --step N        rate increase per step (default 10000)
+ *   --steps N       number of steps (default 10)
+ *   --duration N    seconds per step (default 10)
+ *   --format F      v5, v9 or ipfix (default v5; loss is only measured for v5)
+ *   --threads N     sending threads (default 2)
+ *   --exporters N   simulated exporters, each on its own loopback address (default 16)
+ *   --sockets N     collector receiveSockets (default 1)
+ *   --queue N       queue records for the backend, as queueSize (default 0, synchronous)
+ *   --port N        collector port (default 19996)
+ * </pre>
+ */
+public class LoopbackBenchmark {
+    public static void main(String[] args) throws Exception {
+        int start = 10000, step = 10000, steps = 10, duration = 10;
+        int threads = 2, exporters = 16, sockets = 1, queue = 0, port = 19996;
+        Format format = Format.V5;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String name = args[i], value = args[i + 1];
+            if (name.equals("--start"))
+                start = Integer.parseInt(value);
+            else if (name.equals("--step"))
+                step = Integer.parseInt(value);
+            else if (name.equals("--steps"))
+                steps = Integer.parseInt(value);
+            else if (name.equals("--duration"))
+                duration = Integer.parseInt(value);
+            else if (name.equals("--format"))
+                format = Format.valueOf(value.toUpperCase());
+            else if (name.equals("--threads"))
+                threads = Integer.parseInt(value);
+            else if (name.equals("--exporters"))
+                exporters = Integer.parseInt(value);
+            else if (name.equals("--sockets"))
+                sockets = Integer.parseInt(value);
+            else if (name.equals("--queue"))
+                queue = Integer.parseInt(value);
+            else if (name.equals("--port"))
+                port = Integer.parseInt(value);
+            else
+                throw new IllegalArgumentException("unknown option " + name);
+        }
+
+        HierarchicalINIConfiguration config = new HierarchicalINIConfiguration();
+        config.setProperty("listenPort", port);
+        config.setProperty("receiveSockets", sockets);
+        CollectorServer server = new CollectorServer();
+        server.setup(config);
+        server.setListenAddress("127.0.0.1");
+
+        CountingBackend counter = new CountingBackend(new HierarchicalConfiguration());
+        HierarchicalConfiguration queueConfig = new HierarchicalConfiguration();
+        queueConfig.setProperty("queueSize", queue);
+        IBackend backend = QueuedBackend.wrap(counter, "counter", queueConfig);
+        CollectorHandler.setBackends(Collections.singletonList(backend));
+        server.start();
+
+        System.out.println(String.format("%s from %d exporters on %d threads; %d receive sockets; backend queue %d",
+                format, exporters, threads, sockets, queue));
+        System.out.println(String.format("%10s %10s %12s %12s %8s %8s %10s %10s %10s %10s",
+                "target/s", "sent/s", "sent flows/s", "recv flows/s", "recv %", "lost %", "p50 us", "p99 us", "p99.9 us", "max us"));
+
+        try {
+            for (int s = 0; s < steps; s++) {
+                int rate = start + s * step;
+                LoadGenerator generator = new LoadGenerator(new InetSocketAddress("127.0.0.1", port));
+                generator.setRate(rate);
+                generator.setThreads(threads);
+                generator.setExporters(exporters);
+                generator.setFormat(format);
+                generator.setBindBase(InetAddress.getByName("127.0.0.1"));
+
+                counter.reset();
+                // a new generator's exporters start their sequences over.
+                SequenceTracker sequences = CollectorHandler.getSequenceTracker();
+                sequences.clear();
+                long began = System.currentTimeMillis();
+                generator.run(duration * 1000L, false);
+                double secs = (System.currentTimeMillis() - began) / 1000.0;
+                // let queues drain before counting.
+                Thread.sleep(500);
+
+                long sentFlows = generator.getSentFlows();
+                LatencyHistogram latency = counter.getLatency();
+                System.out.println(String.format("%10d %10.0f %12.0f %12.0f %8.2f %8.2f %10.1f %10.1f %10.1f %10.1f",
+                        rate,
+                        generator.getSentDatagrams() / secs,
+                        sentFlows / secs,
+                        counter.getFlows() / secs,
+                        sentFlows == 0 ? 0 : 100.0 * counter.getFlows() / sentFlows,
+                        sentFlows == 0 ? 0 : 100.0 * sequences.getLostFlows() / sentFlows,
+                        latency.percentile(0.5) / 1000.0,
+                        latency.percentile(0.99) / 1000.0,
+                        latency.percentile(0.999) / 1000.0,
+                        latency.percentile(1.0) / 1000.0));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EventTimeWindowsTests {
+    private static final long MINUTE = 60 * 1000;
+    private static final long T0 = 1300000000L * 1000 / MINUTE * MINUTE;
+    private static final int ROUTER_A = 1, ROUTER_B = 2;
+
+    // windows reported, as { start, total, key 1's sum, update (1 or 0) }.
+    private static class Recorder implements EventTimeWindows.Listener {
+        private final List<long[]> reported = new ArrayList<long[]>();
+
+        public void windowClosed(EventTimeWindows.Window window, boolean update) {
+            reported.add(new long[] { window.getStart(), window.getTotal(), window.getSums().get(0, 1), update ? 1 : 0 });
+        }
+    }
+
+    @Test
+    public void testTumblingWithLateFlows() {
+        Recorder recorder = new Recorder();
+        // one minute windows; flows trail by up to 30s, and may be 5 minutes late.
+        EventTimeWindows windows = new EventTimeWindows(MINUTE, MINUTE, 30000, 5 * MINUTE, 10 * MINUTE, 60 * MINUTE, recorder);
+        long now = T0;
+
+        windows.add(ROUTER_A, T0 + 1000, 0, 1, 10);
+        windows.add(ROUTER_A, T0 + 59999, 0, 2, 20);
+        windows.add(ROUTER_A, T0 + MINUTE, 0, 1, 5);
+        windows.add(ROUTER_B, T0 + 2000, 0, 1, 1);
+        assert windows.advance(now) == T0 + 2000 - 30000;
+        assert recorder.reported.isEmpty();
+        assert windows.getOpenWindows() == 2;
+
+        // both routers move on; the first window closes.
+        windows.add(ROUTER_A, T0 + 2 * MINUTE, 0, 1, 1);
+        windows.add(ROUTER_B, T0 + MINUTE + 40000, 0, 1, 1);
+        windows.advance(now);
+        assert windows.getWatermark() == T0 + MINUTE + 10000;
+        assert recorder.reported.size() == 1;
+        long[] first = recorder.reported.get(0);
+        assert first[0] == T0 && first[1] == 31 && first[2] == 11 && first[3] == 0;
+
+        // a late flow for it is still within its lateness: it's reported again.
+        assert windows.add(ROUTER_B, T0 + 3000, 0, 1, 100);
+        windows.advance(now);
+        assert recorder.reported.size() == 2;
+        long[] update = recorder.reported.get(1);
+        assert update[0] == T0 && update[1] == 131 && update[3] == 1;
+        // nothing new, nothing reported.
+        windows.advance(now);
+        assert recorder.reported.size() == 2;
+
+        // once the watermark is past its lateness, it's gone and its flows are dropped.
+        windows.add(ROUTER_A, T0 + 7 * MINUTE, 0, 1, 1);
+        windows.add(ROUTER_B, T0 + 7 * MINUTE, 0, 1, 1);
+        windows.advance(now);
+        assert !windows.add(ROUTER_A, T0 + 3000, 0, 1, 1);
+        assert windows.getDroppedLate() == 1;
+        assert !windows.getWindowStarts().contains(T0);
+        // ...and so are flows from a router whose clock is an hour ahead.
+        assert !windows.add(ROUTER_B, T0 + 70 * MINUTE, 0, 1, 1);
+        assert windows.getDroppedAhead() == 1;
+
+        windows.flush();
+        assert windows.getOpenWindows() == 0;
+    }
+
+    @Test
+    public void testIdleExporter() {
+        Recorder recorder = new Recorder();
+        EventTimeWindows windows = new EventTimeWindows(MINUTE, MINUTE, 0, 0, 5 * MINUTE, 60 * MINUTE, recorder);
+        windows.add(ROUTER_A, T0, 0, 1, 1);
+        windows.add(ROUTER_B, T0, 0, 1, 1);
+        windows.advance(T0);
+
+        // B goes quiet: the watermark waits for it, until it has been idle too long.
+        for (int m = 1; m <= 10; m++) {
+            windows.add(ROUTER_A, T0 + m * MINUTE, 0, 1, 1);
+            windows.advance(T0 + m * MINUTE);
+            assert windows.getWatermark() == (m < 5 ? T0 : T0 + m * MINUTE) : m;
+        }
+        assert recorder.reported.size() == 10;
+    }
+
+    @Test
+    public void testSliding() {
+        Recorder recorder = new Recorder();
+        // five minute windows every minute.
+        EventTimeWindows windows = new EventTimeWindows(5 * MINUTE, MINUTE, 0, 0, MINUTE, 60 * MINUTE, recorder);
+        for (int m = 0; m < 10; m++)
+            for (int host = 0; host < 1000; host++)
+                windows.add(ROUTER_A, T0 + m * MINUTE + host, 0, host, 1);
+        assert windows.getOpenWindows() == 14;
+        windows.flush();
+
+        assert recorder.reported.size() == 14;
+        for (long[] window : recorder.reported) {
+            // each window spans up to five minutes' worth of 1000 flows.
+            long minutes = Math.min(window[0] + 5 * MINUTE, T0 + 10 * MINUTE) - Math.max(window[0], T0);
+            assert window[1] == minutes / MINUTE * 1000 : window[0] - T0;
+            assert window[2] == minutes / MINUTE;
+        }
+    }
+
+    @Test
+    public void testManyExporters() {
+        Recorder recorder = new Recorder();
+        EventTimeWindows windows = new EventTimeWindows(MINUTE, MINUTE, 0, 0, 10 * MINUTE, 60 * MINUTE, recorder);
+        // the slowest of many exporters holds the watermark back.
+        for (int router = 1; router <= 100; router++)
+            windows.add(router, T0 + router * 100, 0, 1, 1);
+        assert windows.advance(T0) == T0 + 100;
+        for (int router = 1; router <= 100; router++)
+            windows.add(router, T0 + MINUTE + router * 100, 0, 1, 1);
+        assert windows.advance(T0) == T0 + MINUTE + 100;
+        assert recorder.reported.size() == 1 && recorder.reported.get(0)[1] == 100;
+    }
+}
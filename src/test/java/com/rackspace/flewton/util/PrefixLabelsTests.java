@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import com.rackspace.flewton.Flow;
+import com.rackspace.flewton.FlowBatch;
+import com.rackspace.flewton.Recordv5;
+import com.rackspace.flewton.test.SendFauxFlowsv5;
+
+public class PrefixLabelsTests {
+    private static File compile(String csv) throws IOException {
+        File source = File.createTempFile("labels", ".csv");
+        File table = File.createTempFile("labels", ".tbl");
+        source.deleteOnExit();
+        table.deleteOnExit();
+        FileWriter out = new FileWriter(source);
+        out.write(csv);
+        out.close();
+        PrefixLabels.compile(source, table);
+        return table;
+    }
+
+    @Test
+    public void testNestedPrefixes() throws Exception {
+        PrefixLabels labels = new PrefixLabels(compile(
+                "# tenant prefixes\n" +
+                "10.0.0.0/8, 1\n" +
+                "10.1.0.0/16, 2\n" +
+                "\n" +
+                "10.1.1.1/32, 3\n" +
+                "10.2.0.0/16, 1\n" +
+                "192.168.0.0/24, 4\n" +
+                "192.168.0.0/24, 5\n"));
+
+        assert labels.lookup(0x0a000001) == 1;
+        assert labels.lookup(0x0a010001) == 2;
+        assert labels.lookup(0x0a010101) == 3;
+        assert labels.lookup(0x0a010102) == 2;
+        assert labels.lookup(0x0a020000) == 1;
+        assert labels.lookup(0x0affffff) == 1;
+        assert labels.lookup(0xc0a800ff) == 5;
+        assert labels.lookup(0xc0a80100) == PrefixLabels.NO_LABEL;
+        assert labels.lookup(0x09ffffff) == PrefixLabels.NO_LABEL;
+        // 10/8 less 10.1/16, 10.1/16 either side of 10.1.1.1, 10.1.1.1 and 192.168.0/24.
+        assert labels.size() == 6;
+    }
+
+    @Test
+    public void testAgainstTrie() throws Exception {
+        Random random = new Random(42);
+        PrefixTrie trie = new PrefixTrie();
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            int length = random.nextInt(33);
+            int network = 0x0a000000 | (random.nextInt() >>> 12);
+            int label = random.nextInt(50);
+            trie.put(network, length, label);
+            csv.append(HostResolver.int2dotted(network)).append('/').append(length).append(',').append(label).append('\n');
+        }
+        PrefixLabels labels = new PrefixLabels(compile(csv.toString()));
+
+        for (int n = 0; n < 100000; n++) {
+            int addr = n % 2 == 0 ? 0x0a000000 | (random.nextInt() >>> 12) : random.nextInt();
+            assert labels.lookup(addr) == trie.lookup(addr);
+        }
+    }
+
+    @Test
+    public void testReloadAndEnrichment() throws Exception {
+        File table = compile("10.1.0.1/32,7\n");
+        PrefixLabels labels = new PrefixLabels(table);
+        assert !labels.reloadIfChanged();
+
+        // flows from 10.1.0.1 to 10.1.0.2.
+        ChannelBuffer buff = ChannelBuffers.wrappedBuffer(SendFauxFlowsv5.makeRecord());
+        buff.readShort();
+        Recordv5 record = new Recordv5(buff);
+        record.setLabels(labels);
+        FlowBatch batch = new FlowBatch();
+        record.appendTo(batch);
+        assert batch.sourceLabel[0] == 7;
+        assert batch.destLabel[0] == PrefixLabels.NO_LABEL;
+        Flow flow = record.flows.get(0);
+        assert flow.sourceLabel == 7;
+        assert flow.destLabel == PrefixLabels.NO_LABEL;
+
+        // compile a new table over the old one.
+        File source = File.createTempFile("labels", ".csv");
+        source.deleteOnExit();
+        FileWriter out = new FileWriter(source);
+        out.write("10.1.0.0/16,8\n10.1.0.2/32,9\n");
+        out.close();
+        PrefixLabels.compile(source, table);
+        table.setLastModified(table.lastModified() + 2000);
+        assert labels.reloadIfChanged();
+        assert labels.lookup(0x0a010001) == 8;
+        assert labels.lookup(0x0a010002) == 9;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.junit.Test;
+
+public class PrefixTrieTests {
+    @Test
+    public void testLongestPrefixMatch() {
+        PrefixTrie trie = new PrefixTrie();
+        trie.put(0x0a000000, 8, 1);      // 10/8
+        trie.put(0x0a010000, 16, 2);     // 10.1/16
+        trie.put(0x0a010100, 24, 3);     // 10.1.1/24
+        trie.put(0x0a010101, 32, 4);     // 10.1.1.1/32
+        trie.put(0x0a800000, 9, 5);      // 10.128/9, split off 10/8's edge
+
+        assert trie.size() == 5;
+        assert trie.lookup(0x0a020304) == 1;
+        assert trie.lookup(0x0a010203) == 2;
+        assert trie.lookup(0x0a0101fe) == 3;
+        assert trie.lookup(0x0a010101) == 4;
+        assert trie.lookup(0x0a800001) == 5;
+        assert trie.lookup(0x0b000000) == PrefixTrie.NO_MATCH;
+
+        // replacing a value doesn't add a prefix; a default route matches everything.
+        trie.put(0x0a010100, 24, 6);
+        trie.put(0, 0, 7);
+        assert trie.size() == 6;
+        assert trie.lookup(0x0a0101fe) == 6;
+        assert trie.lookup(0x0b000000) == 7;
+    }
+
+    @Test
+    public void testAgainstLinearScan() {
+        Random random = new Random(42);
+        int count = 4000;
+        int[] networks = new int[count];
+        int[] lengths = new int[count];
+        PrefixTrie trie = new PrefixTrie();
+        for (int i = 0; i < count; i++) {
+            lengths[i] = random.nextInt(33);
+            // cluster the prefixes so that plenty of them nest.
+            networks[i] = (0x0a000000 | (random.nextInt() >>> 12)) & (lengths[i] == 0 ? 0 : 0xffffffff << (32 - lengths[i]));
+            trie.put(networks[i], lengths[i], i);
+        }
+
+        for (int n = 0; n < 100000; n++) {
+            int addr = n % 2 == 0 ? 0x0a000000 | (random.nextInt() >>> 12) : random.nextInt();
+            // the longest match, the latest one added winning ties, as put() replaces.
+            int expected = PrefixTrie.NO_MATCH, best = -1;
+            for (int i = 0; i < count; i++) {
+                int mask = lengths[i] == 0 ? 0 : 0xffffffff << (32 - lengths[i]);
+                if ((addr & mask) == networks[i] && lengths[i] >= best) {
+                    best = lengths[i];
+                    expected = i;
+                }
+            }
+            assert trie.lookup(addr) == expected;
+        }
+    }
+
+    @Test
+    public void testIPv6() {
+        PrefixTrie trie = new PrefixTrie();
+        HostResolver.addBlock(trie, "2001:db8::/32", 1);
+        HostResolver.addBlock(trie, "2001:db8:0:1::/64", 2);
+        HostResolver.addBlock(trie, "2001:db8:0:1::1/128", 3);
+        HostResolver.addBlock(trie, "10.0.0.0/8", 4);
+
+        assert trie.size() == 4;
+        assert lookup(trie, "2001:db8:ffff::1") == 1;
+        assert lookup(trie, "2001:db8:0:1:ffff::") == 2;
+        assert lookup(trie, "2001:db8:0:1::1") == 3;
+        assert lookup(trie, "2001:db9::") == PrefixTrie.NO_MATCH;
+        // IPv4 prefixes only match IPv4 (or IPv4-mapped) addresses.
+        assert lookup(trie, "10.1.2.3") == 4;
+        assert lookup(trie, "::ffff:10.1.2.3") == 4;
+        assert lookup(trie, "::10.1.2.3") == PrefixTrie.NO_MATCH;
+        assert trie.lookup(0x0a010203) == 4;
+
+        // a default route for each family.
+        trie.put(0, 0, 0, 5);
+        assert lookup(trie, "2001:db9::") == 5;
+        assert lookup(trie, "11.0.0.0") == 5;
+        trie.put(0, 0, 6);
+        assert lookup(trie, "2001:db9::") == 5;
+        assert lookup(trie, "11.0.0.0") == 6;
+    }
+
+    private static int lookup(PrefixTrie trie, String addr) {
+        Address address = Address.parse(addr);
+        return trie.lookup(address.getHigh(), address.getLow());
+    }
+
+    @Test
+    public void testAddress() throws Exception {
+        String[] literals = { "2001:db8::1", "::", "::1", "fe80::204:61ff:fe9d:f156", "2001:db8:0:1:1:1:1:1",
+                "2001:0:0:1::1", "1.2.3.4", "0.0.0.0" };
+        for (String literal : literals) {
+            Address address = Address.parse(literal);
+            assert address.toString().equals(literal) : address;
+            assert address.toInetAddress().equals(InetAddress.getByName(literal));
+            assert Address.fromInetAddress(InetAddress.getByName(literal)).equals(address);
+        }
+        assert Address.parse("2001:DB8:0:0:0:0:0:1").toString().equals("2001:db8::1");
+        assert Address.parse("1.2.3.4").equals(Address.fromIPv4(0x01020304));
+        assert Address.parse("1.2.3.4").isIPv4();
+        assert !Address.parse("::1").isIPv4();
+        assert Address.parse("::1").compareTo(Address.parse("1.2.3.4")) < 0;
+        assert Address.parse("8000::").compareTo(Address.parse("::1")) > 0;
+    }
+
+    @Test
+    public void testHostResolver() throws Exception {
+        HierarchicalConfiguration config = new HierarchicalConfiguration();
+        config.addProperty("network", "11.11.11.0/20");
+        config.addProperty("network", "22.22.22.0/24");
+        HostResolver resolver = new HostResolver(config);
+
+        assert resolver.isInternal(InetAddress.getByName("11.11.0.1"));
+        assert resolver.isInternal(InetAddress.getByName("22.22.22.255"));
+        assert !resolver.isInternal(InetAddress.getByName("22.22.23.0"));
+        assert !resolver.isInternal(InetAddress.getByName("::1"));
+        config.addProperty("network", "2001:db8::/32");
+        resolver = new HostResolver(config);
+        assert resolver.isInternal(InetAddress.getByName("2001:db8::1"));
+        assert !resolver.isInternal(InetAddress.getByName("2001:db9::1"));
+        assert resolver.isInternal(0x0b0b0f01);
+        assert !resolver.isInternal(0x0b0b1001);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PrimitiveMapsTests {
+    @Test
+    public void testIntLongMap() {
+        Random random = new Random(42);
+        final IntLongMap map = new IntLongMap();
+        final Map<Integer, Long> expected = new HashMap<Integer, Long>();
+        for (int n = 0; n < 100000; n++) {
+            // sequential addresses, as hosts on a subnet are.
+            int key = 0x0a000000 + random.nextInt(5000);
+            long sum = map.addAndGet(key, n);
+            Long old = expected.get(key);
+            expected.put(key, old == null ? n : old + n);
+            assert sum == expected.get(key);
+        }
+        assert map.size() == expected.size();
+        assert map.get(0x0b000000) == 0 && !map.containsKey(0x0b000000);
+        final int[] visited = { 0 };
+        map.forEach(new IntLongMap.Visitor() {
+            public void visit(int key, long value) {
+                assert expected.get(key) == value;
+                visited[0]++;
+            }
+        });
+        assert visited[0] == expected.size();
+
+        map.clear();
+        assert map.size() == 0 && map.get(0x0a000000) == 0;
+        assert map.addAndGet(0, 5) == 5;
+    }
+
+    @Test
+    public void testLongLongMap() {
+        Random random = new Random(42);
+        LongLongMap map = new LongLongMap(4);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        for (int n = 0; n < 100000; n++) {
+            // address and second, as CumulativeUsageBackend keys them.
+            long key = ((long)(0x0a000000 + random.nextInt(100)) << 32) | (1300000000 + random.nextInt(50));
+            map.addAndGet(key, 1);
+            Long old = expected.get(key);
+            expected.put(key, old == null ? 1 : old + 1);
+        }
+        assert map.size() == expected.size();
+        for (Map.Entry<Long, Long> entry : expected.entrySet())
+            assert map.get(entry.getKey()) == entry.getValue();
+        assert map.addAndGet(Long.MIN_VALUE, -1) == -1;
+
+        // merging, as per-thread counters are; sums go past int range.
+        LongLongMap other = new LongLongMap();
+        other.addAndGet(Long.MIN_VALUE, 1L << 40);
+        other.addAndGet(7, 3);
+        map.addAll(other);
+        assert map.get(Long.MIN_VALUE) == (1L << 40) - 1;
+        assert map.get(7) == 3;
+        assert map.size() == expected.size() + 2;
+    }
+
+    @Test
+    public void testAddressLongMap() {
+        AddressLongMap map = new AddressLongMap();
+        for (int i = 0; i < 10000; i++) {
+            map.addAndGet(0, Address.mapIPv4(i), i);
+            // an IPv6 address differing only in its high half.
+            map.addAndGet(0x20010db800000000L, Address.mapIPv4(i), 1);
+        }
+        assert map.size() == 20000;
+        assert map.get(0, Address.mapIPv4(9999)) == 9999;
+        assert map.get(0x20010db800000000L, Address.mapIPv4(9999)) == 1;
+        assert !map.containsKey(1, Address.mapIPv4(0));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ReverseDnsTests {
+    // names 10.0.0.x as hostx; anything else has no name.  Counts lookups.
+    private static class StubResolver implements ReverseDns.Resolver {
+        private final AtomicInteger lookups = new AtomicInteger();
+        private final Map<String, Integer> perAddress = new HashMap<String, Integer>();
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+
+        public String resolve(InetAddress address) throws Exception {
+            gate.await();
+            lookups.incrementAndGet();
+            String literal = address.getHostAddress();
+            synchronized (this) {
+                perAddress.put(literal, lookups(literal) + 1);
+                notifyAll();
+            }
+            if (literal.startsWith("10.0.0."))
+                return "host" + literal.substring(7);
+            if (literal.startsWith("10.0.1."))
+                throw new Exception("SERVFAIL");
+            return null;
+        }
+
+        synchronized int lookups(String literal) {
+            Integer count = perAddress.get(literal);
+            return count == null ? 0 : count;
+        }
+
+        // waits until the address has been looked up (at least) count times.
+        synchronized void awaitLookups(String literal, int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (lookups(literal) < count) {
+                long wait = deadline - System.currentTimeMillis();
+                assert wait > 0 : literal + " looked up " + lookups(literal) + " times";
+                wait(wait);
+            }
+        }
+    }
+
+    // the name lookup() returns once it has one.
+    private static String settled(ReverseDns dns, String literal) throws Exception {
+        InetAddress address = InetAddress.getByName(literal);
+        for (int i = 0; i < 200; i++) {
+            String name = dns.lookup(address);
+            if (!name.equals(literal))
+                return name;
+            Thread.sleep(10);
+        }
+        return literal;
+    }
+
+    @Test
+    public void testNeverBlocks() throws Exception {
+        StubResolver resolver = new StubResolver();
+        resolver.gate = new CountDownLatch(1);
+        ReverseDns dns = new ReverseDns(resolver, 1, 10, 100, 60000, 60000);
+
+        // the resolver is stuck, so we get the address back, and only one lookup is queued for it.
+        InetAddress address = InetAddress.getByName("10.0.0.1");
+        for (int i = 0; i < 1000; i++)
+            assert dns.lookup(address).equals("10.0.0.1");
+        resolver.gate.countDown();
+        assert settled(dns, "10.0.0.1").equals("host1");
+        assert resolver.lookups.get() == 1;
+        assert dns.lookup(Address.fromIPv4(0x0a000001).getHigh(), Address.fromIPv4(0x0a000001).getLow()).equals("host1");
+    }
+
+    @Test
+    public void testNegativeCachingAndExpiry() throws Exception {
+        StubResolver resolver = new StubResolver();
+        // one thread, so lookups finish in the order they were queued.
+        ReverseDns dns = new ReverseDns(resolver, 1, 10, 100, 100, 60000);
+        InetAddress none = InetAddress.getByName("192.168.0.1"), failing = InetAddress.getByName("10.0.1.1");
+
+        // no name, and a failed lookup, are both remembered.
+        assert dns.lookup(none).equals("192.168.0.1");
+        assert dns.lookup(failing).equals("10.0.1.1");
+        resolver.awaitLookups("192.168.0.1", 1);
+        resolver.awaitLookups("10.0.1.1", 1);
+        assert dns.lookup(none).equals("192.168.0.1");
+        assert dns.lookup(failing).equals("10.0.1.1");
+
+        // an expired name is still used while it's looked up again.
+        assert settled(dns, "10.0.0.2").equals("host2");
+        Thread.sleep(150);
+        assert dns.lookup(InetAddress.getByName("10.0.0.2")).equals("host2");
+        resolver.awaitLookups("10.0.0.2", 2);
+        // anything queued behind the first lookups has run by now.
+        assert resolver.lookups("192.168.0.1") == 1;
+        assert resolver.lookups("10.0.1.1") == 1;
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        StubResolver resolver = new StubResolver();
+        ReverseDns dns = new ReverseDns(resolver, 2, 1000, 50, 60000, 60000);
+        for (int i = 0; i < 500; i++) {
+            InetAddress address = InetAddress.getByAddress(new byte[]{10, 0, (byte)(i >> 8), (byte)i});
+            dns.lookup(address);
+            Thread.sleep(1);
+        }
+        Thread.sleep(200);
+        assert dns.size() <= 50;
+    }
+}
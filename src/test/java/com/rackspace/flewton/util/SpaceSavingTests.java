@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010 Rackspace
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package com.rackspace.flewton.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.rackspace.flewton.test.ZipfDistribution;
+
+public class SpaceSavingTests {
+    @Test
+    public void testExactUnderCapacity() {
+        SpaceSaving sketch = new SpaceSaving(10);
+        for (int i = 0; i < 5; i++)
+            for (int host = 0; host <= i; host++)
+                sketch.add(0, Address.mapIPv4(host), 100);
+        // one IPv6 address, with the same low half as an IPv4 one.
+        sketch.add(1, Address.mapIPv4(0), 1000);
+
+        List<SpaceSaving.Entry> top = sketch.top(3);
+        assert top.size() == 3;
+        assert top.get(0).getAddress().equals(new Address(1, Address.mapIPv4(0)));
+        assert top.get(1).getAddress().equals(Address.fromIPv4(0)) && top.get(1).count == 500;
+        assert top.get(2).getAddress().equals(Address.fromIPv4(1)) && top.get(2).count == 400;
+        assert top.get(2).error == 0;
+        assert sketch.size() == 6;
+        assert sketch.getTotal() == 2500;
+        assert sketch.getMaxError() == 0;
+    }
+
+    @Test
+    public void testErrorBounds() {
+        Random random = new Random(42);
+        ZipfDistribution zipf = new ZipfDistribution(20000, 1.1);
+        int capacity = 200;
+        SpaceSaving sketch = new SpaceSaving(capacity);
+        Map<Integer, Long> exact = new HashMap<Integer, Long>();
+        long total = 0;
+        for (int n = 0; n < 200000; n++) {
+            int host = zipf.sample(random);
+            long bytes = 40 + random.nextInt(1460);
+            sketch.add(0, Address.mapIPv4(host), bytes);
+            Long sum = exact.get(host);
+            exact.put(host, sum == null ? bytes : sum + bytes);
+            total += bytes;
+        }
+
+        assert sketch.getTotal() == total;
+        assert sketch.getMaxError() <= total / capacity;
+        List<SpaceSaving.Entry> top = sketch.top(capacity);
+        for (SpaceSaving.Entry entry : top) {
+            long truth = exact.get(entry.getAddress().getIPv4());
+            assert entry.count >= truth;
+            assert entry.getGuaranteed() <= truth;
+            assert entry.error <= total / capacity;
+        }
+        // every host heavier than total / capacity is held.
+        int held = 0;
+        for (Map.Entry<Integer, Long> host : exact.entrySet()) {
+            if (host.getValue() <= total / capacity)
+                continue;
+            boolean found = false;
+            for (SpaceSaving.Entry entry : top)
+                found |= entry.getAddress().getIPv4() == host.getKey();
+            assert found : host;
+            held++;
+        }
+        assert held > 0;
+        // and the heaviest comes first.
+        assert top.get(0).getAddress().getIPv4() == 0;
+    }
+
+    @Test
+    public void testHeavyHittersStripes() throws Exception {
+        final HeavyHitters hitters = new HeavyHitters(256, 4);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int n = 0; n < 50000; n++)
+                        hitters.add(0, Address.mapIPv4(n % 16 == 0 ? 7 : n), 10);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assert hitters.getTotal() == 4 * 50000 * 10;
+        List<SpaceSaving.Entry> top = hitters.top(5, true);
+        assert top.size() == 5;
+        assert top.get(0).getAddress().getIPv4() == 7;
+        assert top.get(0).getGuaranteed() <= 4 * (50000 / 16 + 1) * 10;
+        assert top.get(0).count >= 4 * (50000 / 16) * 10;
+        assert hitters.getTotal() == 0;
+    }
+}